@@ -0,0 +1,225 @@
+package org.sharextras.oauth.benchmark;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the JMH GC profiler and checks the bytes allocated by each operation against a budget.
+ *
+ * <p>The budget is a properties file giving the maximum bytes per operation for each benchmark, keyed by the simple
+ * class name and method, e.g. <code>ProxiedRequestBenchmark.proxiedGet=65536</code>. The process exits with status 1
+ * if any benchmark allocates more than its budget, or has no budget, so that the build fails. Until a baseline has
+ * been recorded, and no benchmark has a budget, allocation is only reported.</p>
+ *
+ * <p>If the <code>allocation.record</code> system property is <code>true</code>, the budgets are instead set from the
+ * allocation measured by this run, plus <code>allocation.headroom</code> (0.1 by default) for run to run variation,
+ * and written back to the file. This is used to take the baseline, and should only be done on an unchanged build.</p>
+ */
+public class AllocationGate
+{
+    private static final String ALLOC_RATE_NORM = "gc.alloc.rate.norm";
+    private static final String CHARSET = "ISO-8859-1";
+
+    public static void main(String[] args) throws IOException, RunnerException
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Usage: AllocationGate <budget.properties> [benchmark regexp]");
+            System.exit(2);
+        }
+        Properties budget = loadBudget(args[0]);
+
+        Options options = new OptionsBuilder()
+                .include(args.length > 1 ? args[1] : AllocationGate.class.getPackage().getName() + ".*")
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        if (Boolean.getBoolean("allocation.record"))
+        {
+            record(args[0], results, Double.parseDouble(System.getProperty("allocation.headroom", "0.1")));
+            return;
+        }
+
+        // Budgets are only enforced once a baseline has been recorded, rather than against figures which were guessed
+        boolean baselineRecorded = hasBudget(budget);
+        int failures = 0;
+        System.out.println();
+        System.out.println("Allocation per operation (bytes)");
+        for (RunResult result : results)
+        {
+            String benchmark = getBenchmarkName(result.getParams().getBenchmark());
+            Double allocated = getAllocationPerOp(result.getSecondaryResults());
+            String limit = budget.getProperty(benchmark);
+            String verdict;
+            if (allocated == null)
+            {
+                verdict = "FAILED - no allocation measured";
+                failures++;
+            }
+            else if ((limit == null || limit.trim().length() == 0) && !baselineRecorded)
+            {
+                verdict = "not checked - no baseline recorded";
+            }
+            else if (limit == null || limit.trim().length() == 0)
+            {
+                verdict = "FAILED - no budget in " + args[0] + ", record one with -Dallocation.record=true";
+                failures++;
+            }
+            else if (allocated.doubleValue() > Double.parseDouble(limit.trim()))
+            {
+                verdict = "FAILED - over budget of " + limit.trim();
+                failures++;
+            }
+            else
+            {
+                verdict = "ok, budget " + limit.trim();
+            }
+            System.out.println(String.format("  %-50s %12.1f  %s", benchmark, allocated != null ? allocated : Double.NaN, verdict));
+        }
+
+        if (!baselineRecorded)
+        {
+            System.out.println("No baseline is recorded in " + args[0] + ", so allocation is not enforced. Record one " +
+                    "on an unchanged build with -Dallocation.record=true");
+        }
+        if (failures > 0)
+        {
+            System.out.println(failures + " benchmark(s) failed the allocation budget");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Whether any benchmark has a budget, i.e. whether a baseline has been recorded
+     */
+    private static boolean hasBudget(Properties budget)
+    {
+        for (String name : budget.stringPropertyNames())
+        {
+            if (budget.getProperty(name).trim().length() > 0)
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Set the budget for each benchmark from the allocation measured, keeping the rest of the file as it is
+     */
+    private static void record(String path, Collection<RunResult> results, double headroom) throws IOException
+    {
+        Map<String, Long> budgets = new LinkedHashMap<String, Long>();
+        System.out.println();
+        System.out.println("Recorded allocation per operation (bytes)");
+        for (RunResult result : results)
+        {
+            String benchmark = getBenchmarkName(result.getParams().getBenchmark());
+            Double allocated = getAllocationPerOp(result.getSecondaryResults());
+            if (allocated == null)
+            {
+                System.out.println("  " + benchmark + ": no allocation measured, budget not changed");
+                continue;
+            }
+            long limit = (long) Math.ceil(allocated.doubleValue() * (1.0 + headroom));
+            budgets.put(benchmark, Long.valueOf(limit));
+            System.out.println(String.format("  %-50s %12.1f  budget %d", benchmark, allocated, limit));
+        }
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(path), CHARSET));
+        try
+        {
+            for (String line = in.readLine(); line != null; line = in.readLine())
+            {
+                int separator = line.indexOf('=');
+                String key = separator > 0 && !line.startsWith("#") ? line.substring(0, separator).trim() : null;
+                Long limit = key != null ? budgets.remove(key) : null;
+                lines.add(limit != null ? key + "=" + limit : line);
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+        for (Map.Entry<String, Long> budget : budgets.entrySet())
+        {
+            lines.add(budget.getKey() + "=" + budget.getValue());
+        }
+
+        Writer out = new OutputStreamWriter(new FileOutputStream(path), CHARSET);
+        try
+        {
+            for (String line : lines)
+            {
+                out.write(line);
+                out.write('\n');
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        System.out.println("Budgets written to " + path);
+    }
+
+    private static Properties loadBudget(String path) throws IOException
+    {
+        Properties budget = new Properties();
+        InputStream in = new FileInputStream(path);
+        try
+        {
+            budget.load(in);
+        }
+        finally
+        {
+            in.close();
+        }
+        return budget;
+    }
+
+    /**
+     * Get the name of a benchmark without its package, as used in the budget
+     */
+    private static String getBenchmarkName(String benchmark)
+    {
+        int methodStart = benchmark.lastIndexOf('.');
+        int classStart = methodStart > 0 ? benchmark.lastIndexOf('.', methodStart - 1) : -1;
+        return benchmark.substring(classStart + 1);
+    }
+
+    private static Double getAllocationPerOp(Map<String, Result> secondaryResults)
+    {
+        for (Map.Entry<String, Result> result : secondaryResults.entrySet())
+        {
+            // Older versions of JMH prefix the name with a separator character
+            if (result.getKey().endsWith(ALLOC_RATE_NORM))
+            {
+                return Double.valueOf(result.getValue().getScore());
+            }
+        }
+        return null;
+    }
+
+}
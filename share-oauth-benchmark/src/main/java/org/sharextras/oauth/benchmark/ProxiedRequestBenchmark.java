@@ -0,0 +1,183 @@
+package org.sharextras.oauth.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sharextras.oauth.loadtest.MockOAuth2Provider;
+import org.sharextras.webscripts.connector.HttpOAuth2Connector;
+import org.sharextras.webscripts.connector.OAuth2Authenticator;
+import org.sharextras.webscripts.connector.OAuth2RateLimiter;
+import org.sharextras.webscripts.connector.OAuth2RequestCoalescer;
+import org.sharextras.webscripts.connector.OAuth2ResponseBudget;
+import org.sharextras.webscripts.connector.OAuth2Tracer;
+import org.sharextras.webscripts.connector.OAuth2UpstreamMetrics;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.extensions.config.RemoteConfigElement.EndpointDescriptor;
+import org.springframework.extensions.webscripts.connector.ConnectorContext;
+import org.springframework.extensions.webscripts.connector.ConnectorSession;
+import org.springframework.extensions.webscripts.connector.HttpMethod;
+import org.springframework.extensions.webscripts.connector.RemoteClient;
+import org.springframework.extensions.webscripts.connector.Response;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Measures the work done by {@link HttpOAuth2Connector} to proxy a request, calling a mock provider running in the
+ * same JVM with no added latency.
+ *
+ * <p>The connector is set up as it is in Share for a user whose access token is already in the connector session,
+ * which is the case for nearly every request. Only the beans it needs are created, and the endpoint configuration is
+ * given directly rather than read from the Share configuration.</p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxiedRequestBenchmark
+{
+    private static final String ENDPOINT_ID = "benchmark-provider";
+    private static final String URI = "/api/items";
+
+    private MockOAuth2Provider provider;
+
+    private StaticApplicationContext applicationContext;
+
+    private BenchmarkConnector connector;
+
+    private MockHttpServletRequest req;
+
+    private MockHttpServletResponse res;
+
+    private RemoteClient remoteClient;
+
+    private ConnectorContext context;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        provider = new MockOAuth2Provider(0);
+        provider.setTokenLatency(0L);
+        provider.setApiLatency(0L);
+        provider.setLatencyJitter(0L);
+        provider.setApiResponseSize(Integer.getInteger("api.size", 2048));
+        provider.start();
+
+        applicationContext = new StaticApplicationContext();
+        applicationContext.registerPrototype("connector.remoteclient", RemoteClient.class);
+        applicationContext.registerSingleton("oAuth2RequestCoalescer", OAuth2RequestCoalescer.class);
+        applicationContext.registerSingleton("oAuth2ResponseBudget", OAuth2ResponseBudget.class);
+        applicationContext.registerSingleton("oAuth2Tracer", OAuth2Tracer.class);
+        applicationContext.registerSingleton("oAuth2UpstreamMetrics", OAuth2UpstreamMetrics.class);
+        applicationContext.registerSingleton("oAuth2RateLimiter", OAuth2RateLimiter.class);
+        applicationContext.refresh();
+
+        ConnectorSession session = new ConnectorSession(ENDPOINT_ID);
+        session.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN, provider.issueTokens()[0]);
+        session.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES, "-1");
+
+        connector = new BenchmarkConnector(provider.getUrl());
+        connector.setApplicationContext(applicationContext);
+        connector.setConnectorSession(session);
+
+        req = new MockHttpServletRequest("GET", "/share/proxy/" + ENDPOINT_ID + URI);
+        req.setContextPath("/share");
+        req.setServletPath("/proxy");
+        req.setPathInfo("/" + ENDPOINT_ID + URI);
+        req.addHeader("Accept", "application/json");
+        res = new MockHttpServletResponse();
+
+        remoteClient = (RemoteClient) applicationContext.getBean("connector.remoteclient");
+        context = new ConnectorContext(HttpMethod.GET, null, null);
+
+        // Fail straight away rather than measuring error responses
+        Response resp = proxiedGet();
+        if (resp == null || resp.getStatus().getCode() != 200)
+        {
+            throw new IllegalStateException("Mock provider returned " + (resp != null ? resp.getStatus().getCode() : null) +
+                    " for " + URI);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        provider.stop();
+        applicationContext.close();
+    }
+
+    /**
+     * A GET request proxied to the provider, including the call made by the HTTP client
+     */
+    @Benchmark
+    public Response proxiedGet()
+    {
+        // The response is reused, as the servlet container would reuse its own response objects
+        res.setCommitted(false);
+        res.reset();
+        return connector.call(URI, new ConnectorContext(HttpMethod.GET, null, null), req, res);
+    }
+
+    /**
+     * Setting the request headers, including the Authorization header, on the remote client for a call
+     */
+    @Benchmark
+    public RemoteClient applyAuthentication()
+    {
+        connector.applyRequestAuthentication(remoteClient, context);
+        return remoteClient;
+    }
+
+    /**
+     * Connector for a single endpoint whose configuration is given here rather than by the connector service
+     */
+    private static final class BenchmarkConnector extends HttpOAuth2Connector
+    {
+        private final Map<String, String> properties = new HashMap<String, String>();
+
+        private BenchmarkConnector(String endpoint)
+        {
+            super(null, endpoint);
+            properties.put(PARAM_AUTH_METHOD, AUTH_METHOD_BEARER);
+        }
+
+        @Override
+        public String getEndpointId()
+        {
+            return ENDPOINT_ID;
+        }
+
+        @Override
+        protected EndpointDescriptor getEndpointDescriptor(String endpointId)
+        {
+            return null;
+        }
+
+        @Override
+        protected String getDescriptorProperty(String propertyName, EndpointDescriptor endpointDescriptor)
+        {
+            return properties.get(propertyName);
+        }
+
+        @Override
+        public void applyRequestAuthentication(RemoteClient remoteClient, ConnectorContext context)
+        {
+            super.applyRequestAuthentication(remoteClient, context);
+        }
+    }
+
+}
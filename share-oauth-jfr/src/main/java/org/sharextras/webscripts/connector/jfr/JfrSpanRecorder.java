@@ -0,0 +1,199 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+import org.sharextras.webscripts.connector.OAuth2Span;
+import org.sharextras.webscripts.connector.OAuth2SpanRecorder;
+import org.sharextras.webscripts.connector.OAuth2Tracer;
+
+/**
+ * Records the stages of proxied requests as Java Flight Recorder events, so that they can be seen in a recording
+ * alongside the JVM's own events for the same threads, e.g. in JDK Mission Control.
+ *
+ * Spans are only passed to the recorder while a recording is running, which is tracked by listening for changes in
+ * the state of recordings, so when there is none the cost to each span is reading a field. Each event type can also
+ * be turned off in the recording settings, in which case its spans are not recorded either.
+ */
+public class JfrSpanRecorder implements OAuth2SpanRecorder, FlightRecorderListener
+{
+    private OAuth2Tracer tracer;
+
+    private volatile boolean recording;
+
+    /**
+     * Start receiving spans from the tracer
+     */
+    public void register()
+    {
+        FlightRecorder.addListener(this);
+        // Avoid starting Flight Recorder just to find out that nothing is recording
+        if (FlightRecorder.isInitialized())
+        {
+            updateRecording();
+        }
+        tracer.setRecorder(this);
+    }
+
+    /**
+     * Stop receiving spans from the tracer
+     */
+    public void unregister()
+    {
+        if (tracer.getRecorder() == this)
+        {
+            tracer.setRecorder(null);
+        }
+        FlightRecorder.removeListener(this);
+    }
+
+    @Override
+    public void recorderInitialized(FlightRecorder recorder)
+    {
+        updateRecording();
+    }
+
+    @Override
+    public void recordingStateChanged(Recording recording)
+    {
+        updateRecording();
+    }
+
+    private void updateRecording()
+    {
+        boolean running = false;
+        for (Recording r : FlightRecorder.getFlightRecorder().getRecordings())
+        {
+            if (r.getState() == RecordingState.RUNNING)
+            {
+                running = true;
+                break;
+            }
+        }
+        recording = running;
+    }
+
+    @Override
+    public boolean isRecording()
+    {
+        return recording;
+    }
+
+    @Override
+    public Object start(OAuth2Span span)
+    {
+        OAuth2Event event = newEvent(span.getName());
+        if (event == null || !event.isEnabled())
+        {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    @Override
+    public void end(OAuth2Span span, Object recording)
+    {
+        OAuth2Event event = (OAuth2Event) recording;
+        event.end();
+        if (!event.shouldCommit())
+        {
+            return;
+        }
+        event.endpoint = getEndpoint(span);
+        event.traceId = span.getTraceId();
+        if (event instanceof ProxyCallEvent)
+        {
+            ProxyCallEvent proxyCall = (ProxyCallEvent) event;
+            proxyCall.method = (String) span.getAttribute("method");
+            proxyCall.path = (String) span.getAttribute("path");
+            proxyCall.status = getInt(span, "status");
+            proxyCall.bytes = getLong(span, "bytes");
+        }
+        else if (event instanceof ProviderCallEvent)
+        {
+            ProviderCallEvent providerCall = (ProviderCallEvent) event;
+            providerCall.status = getInt(span, "status");
+            providerCall.bytes = getLong(span, "bytes");
+        }
+        else if (event instanceof TokenLoadEvent)
+        {
+            ((TokenLoadEvent) event).found = Boolean.TRUE.equals(span.getAttribute("found"));
+        }
+        else if (event instanceof TokenRefreshEvent)
+        {
+            TokenRefreshEvent tokenRefresh = (TokenRefreshEvent) event;
+            tokenRefresh.grantType = (String) span.getAttribute("grantType");
+            tokenRefresh.status = getInt(span, "status");
+        }
+        else if (event instanceof VaultSaveEvent)
+        {
+            ((VaultSaveEvent) event).saved = Boolean.TRUE.equals(span.getAttribute("saved"));
+        }
+        else if (event instanceof RejectionEvent)
+        {
+            ((RejectionEvent) event).reason = (String) span.getAttribute("reason");
+        }
+        event.commit();
+    }
+
+    /**
+     * Create the event for a span, or return null if the span has no event type
+     */
+    private static OAuth2Event newEvent(String spanName)
+    {
+        switch (spanName)
+        {
+            case "oauth2.proxy":
+                return new ProxyCallEvent();
+            case "oauth2.providerCall":
+                return new ProviderCallEvent();
+            case "oauth2.loadTokens":
+                return new TokenLoadEvent();
+            case "oauth2.tokenRequest":
+                return new TokenRefreshEvent();
+            case "oauth2.saveTokens":
+                return new VaultSaveEvent();
+            case "oauth2.rejected":
+                return new RejectionEvent();
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Get the endpoint ID from the span, or the nearest enclosing span which has one
+     */
+    private static String getEndpoint(OAuth2Span span)
+    {
+        for (OAuth2Span s = span; s != null; s = s.getParent())
+        {
+            Object endpoint = s.getAttribute("endpoint");
+            if (endpoint != null)
+            {
+                return endpoint.toString();
+            }
+        }
+        return null;
+    }
+
+    private static int getInt(OAuth2Span span, String key)
+    {
+        Object value = span.getAttribute(key);
+        return value instanceof Number ? ((Number) value).intValue() : -1;
+    }
+
+    private static long getLong(OAuth2Span span, String key)
+    {
+        Object value = span.getAttribute(key);
+        return value instanceof Number ? ((Number) value).longValue() : -1L;
+    }
+
+    public void setTracer(OAuth2Tracer tracer)
+    {
+        this.tracer = tracer;
+    }
+
+}
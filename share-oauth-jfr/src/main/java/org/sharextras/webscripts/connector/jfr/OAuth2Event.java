@@ -0,0 +1,23 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.StackTrace;
+
+/**
+ * Flight Recorder event for a stage of a proxied request. The event's duration is the time taken by the stage, and
+ * the trace ID allows it to be matched with the spans written to the log for sampled traces.
+ */
+@Category({ "Share OAuth" })
+@StackTrace(false)
+abstract class OAuth2Event extends Event
+{
+    @Label("Endpoint")
+    @Description("ID of the endpoint the request was made to")
+    String endpoint;
+
+    @Label("Trace ID")
+    String traceId;
+}
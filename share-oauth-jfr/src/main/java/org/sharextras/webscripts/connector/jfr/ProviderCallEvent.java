@@ -0,0 +1,21 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A single call made to a provider's API. There may be more than one for each proxied request, if the access token
+ * had to be refreshed.
+ */
+@Name("org.sharextras.oauth.ProviderCall")
+@Label("OAuth Provider Call")
+class ProviderCallEvent extends OAuth2Event
+{
+    @Label("Status")
+    int status;
+
+    @Label("Response Size")
+    @DataAmount
+    long bytes;
+}
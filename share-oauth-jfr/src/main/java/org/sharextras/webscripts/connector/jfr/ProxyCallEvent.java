@@ -0,0 +1,26 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A request proxied to a provider, from the point of view of the client, including any tokens loaded or refreshed
+ */
+@Name("org.sharextras.oauth.ProxyCall")
+@Label("OAuth Proxy Call")
+class ProxyCallEvent extends OAuth2Event
+{
+    @Label("Method")
+    String method;
+
+    @Label("Path")
+    String path;
+
+    @Label("Status")
+    int status;
+
+    @Label("Response Size")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,15 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A request turned away, or handled in a reduced way, because a limit on shared resources was reached
+ */
+@Name("org.sharextras.oauth.Rejection")
+@Label("OAuth Rejection")
+class RejectionEvent extends OAuth2Event
+{
+    @Label("Reason")
+    String reason;
+}
@@ -0,0 +1,15 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Tokens loaded from the repository into the connector session
+ */
+@Name("org.sharextras.oauth.TokenLoad")
+@Label("OAuth Token Load")
+class TokenLoadEvent extends OAuth2Event
+{
+    @Label("Found")
+    boolean found;
+}
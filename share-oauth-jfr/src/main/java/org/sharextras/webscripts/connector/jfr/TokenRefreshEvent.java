@@ -0,0 +1,18 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * A request to the provider's token endpoint, to refresh an access token or otherwise obtain one
+ */
+@Name("org.sharextras.oauth.TokenRefresh")
+@Label("OAuth Token Refresh")
+class TokenRefreshEvent extends OAuth2Event
+{
+    @Label("Grant Type")
+    String grantType;
+
+    @Label("Status")
+    int status;
+}
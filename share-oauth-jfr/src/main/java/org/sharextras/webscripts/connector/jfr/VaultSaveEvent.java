@@ -0,0 +1,15 @@
+package org.sharextras.webscripts.connector.jfr;
+
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Tokens saved to the credential vault in the repository
+ */
+@Name("org.sharextras.oauth.VaultSave")
+@Label("OAuth Vault Save")
+class VaultSaveEvent extends OAuth2Event
+{
+    @Label("Saved")
+    boolean saved;
+}
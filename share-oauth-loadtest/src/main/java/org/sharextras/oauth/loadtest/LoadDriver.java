@@ -0,0 +1,208 @@
+package org.sharextras.oauth.loadtest;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs calls from a number of threads for a fixed time and reports their throughput and latency percentiles.
+ *
+ * <p>If an expiry storm is configured, it is started at a fixed interval while the calls are running, and calls
+ * ending shortly after each storm are reported separately, so that the cost of many clients refreshing their
+ * tokens at once can be seen apart from the steady state.</p>
+ */
+public class LoadDriver
+{
+    /**
+     * A single call to measure
+     */
+    public interface Call
+    {
+        /**
+         * @return The HTTP status of the response
+         */
+        int call() throws IOException;
+    }
+
+    private int threads = 16;
+
+    private long duration = 30000L;
+
+    private long warmup = 5000L;
+
+    private long stormInterval = 0L;
+
+    private long stormWindow = 2000L;
+
+    private Runnable storm;
+
+    private volatile long lastStorm;
+
+    /**
+     * Run the calls and report the results
+     *
+     * @param call  The call to make repeatedly from each thread
+     * @param out   Stream to print the report to
+     * @return The number of calls which failed or did not return a successful status
+     */
+    public long run(final Call call, PrintStream out) throws InterruptedException
+    {
+        final long start = System.currentTimeMillis(), measureFrom = start + warmup, end = measureFrom + duration;
+        final Recorder steady = new Recorder(), stormed = new Recorder();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int i = 0; i < threads; i++)
+        {
+            Thread worker = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        long now;
+                        while ((now = System.currentTimeMillis()) < end)
+                        {
+                            long callStart = System.nanoTime();
+                            int status;
+                            try
+                            {
+                                status = call.call();
+                            }
+                            catch (IOException e)
+                            {
+                                status = 0;
+                            }
+                            if (now >= measureFrom)
+                            {
+                                // Calls which end soon after a storm include any time spent refreshing tokens
+                                boolean inStorm = System.currentTimeMillis() - lastStorm < stormWindow;
+                                (inStorm ? stormed : steady).record(System.nanoTime() - callStart, status);
+                            }
+                        }
+                    }
+                    finally
+                    {
+                        done.countDown();
+                    }
+                }
+            }, "LoadDriver-" + (i + 1));
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        while (!done.await(stormInterval > 0 ? stormInterval : duration, TimeUnit.MILLISECONDS))
+        {
+            if (storm != null && stormInterval > 0 && System.currentTimeMillis() >= measureFrom)
+            {
+                lastStorm = System.currentTimeMillis();
+                storm.run();
+            }
+        }
+
+        out.println("Threads: " + threads + ", measured for " + duration + " ms after " + warmup + " ms warmup");
+        steady.report("Steady state", duration, out);
+        if (stormed.count.get() > 0)
+        {
+            stormed.report("Within " + stormWindow + " ms of an expiry storm", duration, out);
+        }
+        return steady.failures.get() + stormed.failures.get();
+    }
+
+    /**
+     * Latencies and statuses recorded by the worker threads
+     */
+    private static final class Recorder
+    {
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+        private final Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+        private long[] latencies = new long[1024];
+
+        private synchronized void record(long latency, int status)
+        {
+            int n = (int) count.getAndIncrement();
+            if (n == latencies.length)
+            {
+                latencies = Arrays.copyOf(latencies, n * 2);
+            }
+            latencies[n] = latency;
+            Long statusCount = statuses.get(status);
+            statuses.put(status, statusCount != null ? statusCount + 1 : 1L);
+            if (status < 200 || status >= 400)
+            {
+                failures.incrementAndGet();
+            }
+        }
+
+        private synchronized void report(String title, long duration, PrintStream out)
+        {
+            int n = (int) count.get();
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            out.println();
+            out.println(title);
+            out.println(String.format("  Calls: %d, throughput: %.1f/s, failures: %d, statuses: %s",
+                    n, n * 1000.0 / duration, failures.get(), statuses));
+            if (n > 0)
+            {
+                out.println(String.format("  Latency ms: p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, max %.2f",
+                        percentile(sorted, 50.0), percentile(sorted, 90.0), percentile(sorted, 99.0),
+                        percentile(sorted, 99.9), sorted[n - 1] / 1e6));
+            }
+        }
+
+        private static double percentile(long[] sorted, double percentile)
+        {
+            int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(Math.min(index, sorted.length - 1), 0)] / 1e6;
+        }
+    }
+
+    /**
+     * @param threads   Number of threads making calls
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    /**
+     * @param duration  Time in milliseconds to measure calls for
+     */
+    public void setDuration(long duration)
+    {
+        this.duration = duration;
+    }
+
+    /**
+     * @param warmup    Time in milliseconds to make calls for before measuring them
+     */
+    public void setWarmup(long warmup)
+    {
+        this.warmup = warmup;
+    }
+
+    /**
+     * @param storm Action which makes the provider reject all current access tokens
+     * @param stormInterval Time in milliseconds between storms
+     */
+    public void setStorm(Runnable storm, long stormInterval)
+    {
+        this.storm = storm;
+        this.stormInterval = stormInterval;
+    }
+
+    /**
+     * @param stormWindow   Time in milliseconds after a storm during which calls ending are reported separately
+     */
+    public void setStormWindow(long stormWindow)
+    {
+        this.stormWindow = stormWindow;
+    }
+
+}
@@ -0,0 +1,307 @@
+package org.sharextras.oauth.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts the mock provider and the token store stand-in, and measures calls made through them.
+ *
+ * <p>If the <code>target</code> system property is set, calls are made to that URL, which is normally a Share proxy
+ * URL for an endpoint using the mock provider, such as
+ * <code>http://localhost:8081/share/proxy/mock-provider/api/items</code>. Headers to send with each call, such as a
+ * session cookie, are given as <code>header.*</code> properties. Otherwise the calls are made straight to the mock
+ * provider by a client which loads, refreshes and saves tokens in the same way as the connector, which gives a
+ * baseline for the mocks themselves. The connector itself is not used in that mode, so only runs with a
+ * <code>target</code> measure it.</p>
+ *
+ * <p>All settings are system properties, for example:</p>
+ * <pre>
+ * java -Dtarget=http://localhost:8081/share/proxy/mock-provider/api/items -Dheader.Cookie=JSESSIONID=... \
+ *     -Dthreads=32 -Dduration=60 -Dtoken.lifetime=30 -Dstorm.interval=10 -jar share-oauth-loadtest.jar
+ * </pre>
+ */
+public class LoadTest
+{
+    private static final String ENDPOINT_NAME = "mock-provider";
+    private static final String HEADER_PREFIX = "header.";
+
+    public static void main(String[] args) throws Exception
+    {
+        final MockOAuth2Provider provider = new MockOAuth2Provider(Integer.getInteger("provider.port", 9180));
+        provider.setTokenLifetime(Integer.getInteger("token.lifetime", 3600));
+        provider.setRotateRefreshTokens(Boolean.parseBoolean(System.getProperty("token.rotate", "true")));
+        provider.setTokenLatency(Long.getLong("token.latency", 50L));
+        provider.setApiLatency(Long.getLong("api.latency", 20L));
+        provider.setLatencyJitter(Long.getLong("latency.jitter", 10L));
+        provider.setApiResponseSize(Integer.getInteger("api.size", 2048));
+
+        MockTokenStore tokenStore = new MockTokenStore(Integer.getInteger("tokenstore.port", 9181));
+        tokenStore.setLatency(Long.getLong("tokenstore.latency", 10L));
+
+        long failures;
+        provider.start();
+        tokenStore.start();
+        try
+        {
+            int users = Integer.getInteger("users", 1);
+            List<String> userIds = new ArrayList<String>(users);
+            for (int i = 1; i <= users; i++)
+            {
+                String userId = users == 1 ? System.getProperty("user", "admin") : "user" + i;
+                String[] tokens = provider.issueTokens();
+                tokenStore.saveTokens(userId, ENDPOINT_NAME, tokens[0], tokens[1], null);
+                userIds.add(userId);
+            }
+
+            System.out.println("Mock provider: " + provider.getUrl() + MockOAuth2Provider.PATH_API +
+                    ", token URL " + provider.getUrl() + MockOAuth2Provider.PATH_TOKEN);
+            System.out.println("Token store: " + tokenStore.getUrl() + "/alfresco/service, users " + userIds);
+
+            LoadDriver driver = new LoadDriver();
+            driver.setThreads(Integer.getInteger("threads", 16));
+            driver.setDuration(Long.getLong("duration", 30L) * 1000L);
+            driver.setWarmup(Long.getLong("warmup", 5L) * 1000L);
+            driver.setStormWindow(Long.getLong("storm.window", 2000L));
+            long stormInterval = Long.getLong("storm.interval", 0L) * 1000L;
+            if (stormInterval > 0)
+            {
+                driver.setStorm(new Runnable()
+                {
+                    public void run()
+                    {
+                        provider.expireAll();
+                    }
+                }, stormInterval);
+            }
+
+            String target = System.getProperty("target");
+            LoadDriver.Call call = target != null ? new ProxyCall(target, getHeaders()) :
+                    new DirectCall(provider.getUrl(), tokenStore.getUrl(), userIds);
+            System.out.println("Calling " + (target != null ? target :
+                    "mock provider directly, without the connector (set target to measure calls through Share)") + "\n");
+
+            failures = driver.run(call, System.out);
+
+            System.out.println();
+            System.out.println("Provider: " + provider.getApiRequests() + " API requests, " + provider.getRejectedRequests() +
+                    " rejected, " + provider.getTokenRequests() + " token requests");
+            System.out.println("Token store: " + tokenStore.getLoads() + " loads, " + tokenStore.getSaves() + " saves");
+        }
+        finally
+        {
+            tokenStore.stop();
+            provider.stop();
+        }
+        System.exit(failures > 0 ? 1 : 0);
+    }
+
+    private static Map<String, String> getHeaders()
+    {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        for (String name : System.getProperties().stringPropertyNames())
+        {
+            if (name.startsWith(HEADER_PREFIX))
+            {
+                headers.put(name.substring(HEADER_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        return headers;
+    }
+
+    private static String readResponse(HttpURLConnection conn) throws IOException
+    {
+        InputStream in = conn.getResponseCode() < 400 ? conn.getInputStream() : conn.getErrorStream();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (in != null)
+        {
+            byte[] buffer = new byte[8192];
+            for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+            {
+                out.write(buffer, 0, n);
+            }
+            in.close();
+        }
+        return out.toString(MockServer.CHARSET_UTF8);
+    }
+
+    /**
+     * Call to a URL, normally on the Share proxy
+     */
+    private static final class ProxyCall implements LoadDriver.Call
+    {
+        private final URL url;
+        private final Map<String, String> headers;
+
+        private ProxyCall(String url, Map<String, String> headers) throws IOException
+        {
+            this.url = new URL(url);
+            this.headers = headers;
+        }
+
+        public int call() throws IOException
+        {
+            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+            for (Map.Entry<String, String> header : headers.entrySet())
+            {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+            readResponse(conn);
+            return conn.getResponseCode();
+        }
+    }
+
+    /**
+     * Call straight to the mock provider, loading, refreshing and saving tokens in the same way as the connector.
+     * Each user's tokens are shared by the threads calling as that user, and only one of them refreshes a rejected
+     * token.
+     */
+    private static final class DirectCall implements LoadDriver.Call
+    {
+        private final String providerUrl;
+        private final String tokenStoreUrl;
+        private final List<UserSession> sessions = new ArrayList<UserSession>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final ThreadLocal<UserSession> session = new ThreadLocal<UserSession>()
+        {
+            @Override
+            protected UserSession initialValue()
+            {
+                return sessions.get(next.getAndIncrement() % sessions.size());
+            }
+        };
+
+        private DirectCall(String providerUrl, String tokenStoreUrl, List<String> userIds)
+        {
+            this.providerUrl = providerUrl;
+            this.tokenStoreUrl = tokenStoreUrl;
+            for (String userId : userIds)
+            {
+                sessions.add(new UserSession(userId));
+            }
+        }
+
+        public int call() throws IOException
+        {
+            UserSession user = session.get();
+            String accessToken = user.getAccessToken(this);
+            int status = callApi(accessToken);
+            if (status == 401 && user.refresh(this, accessToken))
+            {
+                status = callApi(user.getAccessToken(this));
+            }
+            return status;
+        }
+
+        private int callApi(String accessToken) throws IOException
+        {
+            HttpURLConnection conn = (HttpURLConnection) new URL(providerUrl + MockOAuth2Provider.PATH_API + "items").openConnection();
+            conn.setRequestProperty("Authorization", "Bearer " + accessToken);
+            readResponse(conn);
+            return conn.getResponseCode();
+        }
+
+        private HttpURLConnection openTokenStore(String userId) throws IOException
+        {
+            HttpURLConnection conn = (HttpURLConnection) new URL(tokenStoreUrl + "/alfresco/service/extras/oauth2/token/" +
+                    ENDPOINT_NAME).openConnection();
+            conn.setRequestProperty("X-Alfresco-Remote-User", userId);
+            return conn;
+        }
+
+        private String[] loadTokens(String userId) throws IOException
+        {
+            String json = readResponse(openTokenStore(userId));
+            return new String[] { MockServer.getJsonString(json, "accessToken"), MockServer.getJsonString(json, "refreshToken") };
+        }
+
+        private void saveTokens(String userId, String accessToken, String refreshToken) throws IOException
+        {
+            HttpURLConnection conn = openTokenStore(userId);
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", MockServer.MIMETYPE_JSON);
+            OutputStream out = conn.getOutputStream();
+            out.write(("{\"name\":" + MockServer.quote(ENDPOINT_NAME) + ",\"accessToken\":" + MockServer.quote(accessToken) +
+                    ",\"refreshToken\":" + MockServer.quote(refreshToken) + "}").getBytes(MockServer.CHARSET_UTF8));
+            out.close();
+            readResponse(conn);
+        }
+
+        private String[] requestTokens(String refreshToken) throws IOException
+        {
+            HttpURLConnection conn = (HttpURLConnection) new URL(providerUrl + MockOAuth2Provider.PATH_TOKEN).openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            OutputStream out = conn.getOutputStream();
+            out.write(("grant_type=refresh_token&refresh_token=" + URLEncoder.encode(refreshToken, MockServer.CHARSET_UTF8))
+                    .getBytes(MockServer.CHARSET_UTF8));
+            out.close();
+            String json = readResponse(conn);
+            if (conn.getResponseCode() != 200)
+            {
+                return null;
+            }
+            String newRefreshToken = MockServer.getJsonString(json, "refresh_token");
+            return new String[] { MockServer.getJsonString(json, "access_token"),
+                    newRefreshToken != null ? newRefreshToken : refreshToken };
+        }
+    }
+
+    /**
+     * Tokens held for a user, as they would be in the connector session
+     */
+    private static final class UserSession
+    {
+        private final String userId;
+        private String accessToken;
+        private String refreshToken;
+
+        private UserSession(String userId)
+        {
+            this.userId = userId;
+        }
+
+        private synchronized String getAccessToken(DirectCall client) throws IOException
+        {
+            if (accessToken == null)
+            {
+                String[] tokens = client.loadTokens(userId);
+                accessToken = tokens[0];
+                refreshToken = tokens[1];
+            }
+            return accessToken;
+        }
+
+        /**
+         * Refresh the tokens, unless another thread has already replaced the rejected token
+         */
+        private synchronized boolean refresh(DirectCall client, String rejectedToken) throws IOException
+        {
+            if (!rejectedToken.equals(accessToken))
+            {
+                return true;
+            }
+            String[] tokens = client.requestTokens(refreshToken);
+            if (tokens == null)
+            {
+                return false;
+            }
+            accessToken = tokens[0];
+            refreshToken = tokens[1];
+            client.saveTokens(userId, accessToken, refreshToken);
+            return true;
+        }
+    }
+
+}
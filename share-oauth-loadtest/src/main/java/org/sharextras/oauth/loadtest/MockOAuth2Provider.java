@@ -0,0 +1,284 @@
+package org.sharextras.oauth.loadtest;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Stand-in for an OAuth 2.0 provider, with a token endpoint and a protected API.
+ *
+ * <p>The token endpoint at <code>/oauth/token</code> supports the <code>authorization_code</code>,
+ * <code>refresh_token</code> and <code>client_credentials</code> grants. Access tokens expire after a configurable
+ * lifetime, and refresh tokens can be rotated on each use, as many providers do. The protected API accepts any path
+ * under <code>/api/</code> with a valid access token, given either as a bearer token or as an
+ * <code>access_token</code> parameter, and returns a JSON body of a configurable size.</p>
+ *
+ * <p>Latency can be added to both endpoints. Posting to <code>/admin/expire</code> expires all access tokens at
+ * once, so that every client has to refresh at the same time.</p>
+ */
+public class MockOAuth2Provider extends MockServer
+{
+    public static final String PATH_TOKEN = "/oauth/token";
+    public static final String PATH_API = "/api/";
+    public static final String PATH_EXPIRE = "/admin/expire";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+
+    // Access tokens and their expiry times
+    private final ConcurrentMap<String, Long> accessTokens = new ConcurrentHashMap<String, Long>();
+
+    private final ConcurrentMap<String, Boolean> refreshTokens = new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicLong tokenRequests = new AtomicLong();
+    private final AtomicLong apiRequests = new AtomicLong();
+    private final AtomicLong rejectedRequests = new AtomicLong();
+
+    private final Random random = new Random();
+
+    private int tokenLifetime = 3600;
+
+    private boolean rotateRefreshTokens = true;
+
+    private long tokenLatency = 50L;
+
+    private long apiLatency = 20L;
+
+    private long latencyJitter = 10L;
+
+    private byte[] apiBody = buildBody(2048);
+
+    public MockOAuth2Provider(int port)
+    {
+        super(port);
+    }
+
+    /**
+     * Issue a pair of tokens directly, as if the user had just authorized the client
+     *
+     * @return The access token and the refresh token
+     */
+    public String[] issueTokens()
+    {
+        return new String[] { newAccessToken(), newRefreshToken() };
+    }
+
+    /**
+     * Expire all of the access tokens issued so far
+     */
+    public void expireAll()
+    {
+        accessTokens.clear();
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        if (PATH_TOKEN.equals(path) && "POST".equals(exchange.getRequestMethod()))
+        {
+            handleTokenRequest(exchange);
+        }
+        else if (path.startsWith(PATH_API))
+        {
+            handleApiRequest(exchange);
+        }
+        else if (PATH_EXPIRE.equals(path) && "POST".equals(exchange.getRequestMethod()))
+        {
+            expireAll();
+            sendJson(exchange, 200, "{\"expired\":true}");
+        }
+        else
+        {
+            sendJson(exchange, 404, "{\"error\":\"not_found\"}");
+        }
+    }
+
+    private void handleTokenRequest(HttpExchange exchange) throws IOException
+    {
+        tokenRequests.incrementAndGet();
+        Map<String, String> params = parseForm(readBody(exchange));
+        pause(withJitter(tokenLatency));
+
+        String grantType = params.get("grant_type"), refreshToken = null;
+        if ("refresh_token".equals(grantType))
+        {
+            refreshToken = params.get("refresh_token");
+            if (refreshToken == null || !refreshTokens.containsKey(refreshToken))
+            {
+                sendJson(exchange, 400, "{\"error\":\"invalid_grant\"}");
+                return;
+            }
+            if (rotateRefreshTokens)
+            {
+                refreshTokens.remove(refreshToken);
+                refreshToken = newRefreshToken();
+            }
+        }
+        else if ("authorization_code".equals(grantType))
+        {
+            refreshToken = newRefreshToken();
+        }
+        else if (!"client_credentials".equals(grantType))
+        {
+            sendJson(exchange, 400, "{\"error\":\"unsupported_grant_type\"}");
+            return;
+        }
+
+        StringBuilder json = new StringBuilder("{\"access_token\":").append(quote(newAccessToken()))
+                .append(",\"token_type\":\"Bearer\",\"expires_in\":").append(tokenLifetime);
+        if (refreshToken != null)
+        {
+            json.append(",\"refresh_token\":").append(quote(refreshToken));
+        }
+        sendJson(exchange, 200, json.append('}').toString());
+    }
+
+    private void handleApiRequest(HttpExchange exchange) throws IOException
+    {
+        apiRequests.incrementAndGet();
+        if ("POST".equals(exchange.getRequestMethod()) || "PUT".equals(exchange.getRequestMethod()))
+        {
+            readBody(exchange);
+        }
+        pause(withJitter(apiLatency));
+
+        String accessToken = getAccessToken(exchange);
+        Long expiresAt = accessToken != null ? accessTokens.get(accessToken) : null;
+        if (expiresAt == null || expiresAt.longValue() < System.currentTimeMillis())
+        {
+            rejectedRequests.incrementAndGet();
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer error=\"invalid_token\"");
+            sendJson(exchange, 401, "{\"error\":\"invalid_token\"}");
+            return;
+        }
+        send(exchange, 200, MIMETYPE_JSON, apiBody);
+    }
+
+    private static String getAccessToken(HttpExchange exchange)
+    {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.startsWith(BEARER_PREFIX))
+        {
+            return authorization.substring(BEARER_PREFIX.length()).trim();
+        }
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null)
+        {
+            for (String pair : query.split("&"))
+            {
+                if (pair.startsWith("access_token="))
+                {
+                    return pair.substring("access_token=".length());
+                }
+            }
+        }
+        return null;
+    }
+
+    private String newAccessToken()
+    {
+        String token = "at-" + UUID.randomUUID();
+        accessTokens.put(token, Long.valueOf(System.currentTimeMillis() + tokenLifetime * 1000L));
+        return token;
+    }
+
+    private String newRefreshToken()
+    {
+        String token = "rt-" + UUID.randomUUID();
+        refreshTokens.put(token, Boolean.TRUE);
+        return token;
+    }
+
+    private long withJitter(long latency)
+    {
+        if (latency <= 0)
+        {
+            return 0L;
+        }
+        synchronized (random)
+        {
+            return latency + (latencyJitter > 0 ? (long) (random.nextDouble() * latencyJitter) : 0L);
+        }
+    }
+
+    private static byte[] buildBody(int size)
+    {
+        byte[] body = new byte[Math.max(size, 16)];
+        Arrays.fill(body, (byte) 'x');
+        byte[] start = "{\"data\":\"".getBytes(), end = "\"}".getBytes();
+        System.arraycopy(start, 0, body, 0, start.length);
+        System.arraycopy(end, 0, body, body.length - end.length, end.length);
+        return body;
+    }
+
+    public long getTokenRequests()
+    {
+        return tokenRequests.get();
+    }
+
+    public long getApiRequests()
+    {
+        return apiRequests.get();
+    }
+
+    public long getRejectedRequests()
+    {
+        return rejectedRequests.get();
+    }
+
+    /**
+     * @param tokenLifetime Lifetime of access tokens in seconds
+     */
+    public void setTokenLifetime(int tokenLifetime)
+    {
+        this.tokenLifetime = tokenLifetime;
+    }
+
+    /**
+     * @param rotateRefreshTokens   Whether a new refresh token is issued each time one is used
+     */
+    public void setRotateRefreshTokens(boolean rotateRefreshTokens)
+    {
+        this.rotateRefreshTokens = rotateRefreshTokens;
+    }
+
+    /**
+     * @param tokenLatency  Time in milliseconds taken by the token endpoint
+     */
+    public void setTokenLatency(long tokenLatency)
+    {
+        this.tokenLatency = tokenLatency;
+    }
+
+    /**
+     * @param apiLatency    Time in milliseconds taken by the protected API
+     */
+    public void setApiLatency(long apiLatency)
+    {
+        this.apiLatency = apiLatency;
+    }
+
+    /**
+     * @param latencyJitter Maximum random time in milliseconds added to each latency
+     */
+    public void setLatencyJitter(long latencyJitter)
+    {
+        this.latencyJitter = latencyJitter;
+    }
+
+    /**
+     * @param apiResponseSize   Size in bytes of the API response body
+     */
+    public void setApiResponseSize(int apiResponseSize)
+    {
+        this.apiBody = buildBody(apiResponseSize);
+    }
+
+}
@@ -0,0 +1,192 @@
+package org.sharextras.oauth.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Base class for the HTTP servers which stand in for the systems the connectors talk to, using the HTTP server
+ * built into the JDK so that no network access or further libraries are needed
+ */
+public abstract class MockServer
+{
+    protected static final String CHARSET_UTF8 = "UTF-8";
+    protected static final String MIMETYPE_JSON = "application/json";
+
+    // Patterns for a value in a JSON object, given the quoted key
+    private static final String JSON_STRING = "\"%s\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"";
+    private static final String JSON_NUMBER = "\"%s\"\\s*:\\s*(-?\\d+)";
+
+    private final int port;
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    protected MockServer(int port)
+    {
+        this.port = port;
+    }
+
+    /**
+     * Start the server, listening on the loopback interface only
+     */
+    public void start() throws IOException
+    {
+        // Small responses are otherwise held back by Nagle's algorithm, adding tens of milliseconds to every call
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+        {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 1024);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                try
+                {
+                    MockServer.this.handle(exchange);
+                }
+                catch (RuntimeException e)
+                {
+                    sendJson(exchange, 500, "{\"error\":\"" + escape(String.valueOf(e.getMessage())) + "\"}");
+                }
+                finally
+                {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    public void stop()
+    {
+        if (server != null)
+        {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return The port the server is listening on
+     */
+    public int getPort()
+    {
+        return server != null ? server.getAddress().getPort() : port;
+    }
+
+    /**
+     * @return The base URL of the server
+     */
+    public String getUrl()
+    {
+        return "http://localhost:" + getPort();
+    }
+
+    protected abstract void handle(HttpExchange exchange) throws IOException;
+
+    protected static void pause(long millis)
+    {
+        if (millis > 0)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    protected static String readBody(HttpExchange exchange) throws IOException
+    {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        for (int n = in.read(buffer); n != -1; n = in.read(buffer))
+        {
+            out.write(buffer, 0, n);
+        }
+        return out.toString(CHARSET_UTF8);
+    }
+
+    protected static Map<String, String> parseForm(String form) throws UnsupportedEncodingException
+    {
+        Map<String, String> params = new HashMap<String, String>();
+        if (form != null)
+        {
+            for (String pair : form.split("&"))
+            {
+                int eq = pair.indexOf('=');
+                if (eq > 0)
+                {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), CHARSET_UTF8),
+                            URLDecoder.decode(pair.substring(eq + 1), CHARSET_UTF8));
+                }
+            }
+        }
+        return params;
+    }
+
+    /**
+     * Get a string value from a flat JSON object, which is all that the stand-in servers need to read
+     */
+    protected static String getJsonString(String json, String key)
+    {
+        Matcher m = Pattern.compile(String.format(JSON_STRING, Pattern.quote(key))).matcher(json);
+        return m.find() ? m.group(1).replace("\\\"", "\"").replace("\\\\", "\\") : null;
+    }
+
+    protected static Long getJsonNumber(String json, String key)
+    {
+        Matcher m = Pattern.compile(String.format(JSON_NUMBER, Pattern.quote(key))).matcher(json);
+        return m.find() ? Long.valueOf(m.group(1)) : null;
+    }
+
+    protected static String escape(String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    protected static String quote(String value)
+    {
+        return value != null ? "\"" + escape(value) + "\"" : "null";
+    }
+
+    protected static void sendJson(HttpExchange exchange, int status, String json) throws IOException
+    {
+        send(exchange, status, MIMETYPE_JSON, json.getBytes(CHARSET_UTF8));
+    }
+
+    protected static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException
+    {
+        exchange.getResponseHeaders().set("Content-Type", contentType + ";charset=" + CHARSET_UTF8);
+        exchange.sendResponseHeaders(status, body.length > 0 ? body.length : -1);
+        if (body.length > 0)
+        {
+            OutputStream out = exchange.getResponseBody();
+            out.write(body);
+            out.close();
+        }
+    }
+
+}
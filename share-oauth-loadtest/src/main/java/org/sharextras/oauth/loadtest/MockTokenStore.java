@@ -0,0 +1,198 @@
+package org.sharextras.oauth.loadtest;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * In-memory stand-in for the repository web scripts which store users' OAuth 2.0 tokens, so that the Share
+ * connectors can be run without an Alfresco repository.
+ *
+ * <p>The <code>/extras/oauth2/token/{name}</code> web scripts are answered under <code>/alfresco/service</code>,
+ * <code>/alfresco/s</code> and <code>/alfresco/wcs</code>, in the same JSON format as the repository. The login and
+ * user metadata calls which Share makes when a user logs in are also answered, accepting any password. The user is
+ * taken from the <code>alf_ticket</code> parameter, or from the <code>X-Alfresco-Remote-User</code> header used with
+ * external authentication.</p>
+ */
+public class MockTokenStore extends MockServer
+{
+    private static final String[] SERVICE_PATHS = { "/alfresco/service/", "/alfresco/s/", "/alfresco/wcs/" };
+
+    private static final String PATH_TOKEN = "extras/oauth2/token/";
+    private static final String PATH_LOGIN = "api/login";
+    private static final String PATH_TICKET = "api/login/ticket/";
+    private static final String PATH_USER_METADATA = "webframework/content/metadata";
+
+    private static final String TICKET_PREFIX = "TICKET_";
+
+    private final ConcurrentMap<String, StoredTokens> tokens = new ConcurrentHashMap<String, StoredTokens>();
+
+    private final AtomicLong loads = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+
+    private long latency = 10L;
+
+    public MockTokenStore(int port)
+    {
+        super(port);
+    }
+
+    /**
+     * Store tokens for a user, as if they had been saved by Share
+     */
+    public void saveTokens(String userId, String name, String accessToken, String refreshToken, Long expiresAt)
+    {
+        tokens.put(getKey(userId, name), new StoredTokens(accessToken, refreshToken, expiresAt));
+    }
+
+    @Override
+    protected void handle(HttpExchange exchange) throws IOException
+    {
+        String path = getServicePath(exchange.getRequestURI().getPath()), method = exchange.getRequestMethod();
+        if (path == null)
+        {
+            sendJson(exchange, 404, "{\"message\":\"Not found\"}");
+            return;
+        }
+        pause(latency);
+
+        if (PATH_LOGIN.equals(path) && "POST".equals(method))
+        {
+            String username = getJsonString(readBody(exchange), "username");
+            sendJson(exchange, 200, "{\"data\":{\"ticket\":" + quote(TICKET_PREFIX + username) + "}}");
+            return;
+        }
+        if (path.startsWith(PATH_TICKET))
+        {
+            send(exchange, 200, "text/xml", ("<ticket>" + path.substring(PATH_TICKET.length()) + "</ticket>").getBytes(CHARSET_UTF8));
+            return;
+        }
+
+        String userId = getUserId(exchange);
+        if (userId == null)
+        {
+            sendJson(exchange, 401, "{\"message\":\"Authentication required\"}");
+            return;
+        }
+
+        if (path.equals(PATH_USER_METADATA))
+        {
+            sendJson(exchange, 200, "{\"data\":{\"properties\":{" +
+                    "\"{http://www.alfresco.org/model/content/1.0}userName\":" + quote(userId) + "," +
+                    "\"{http://www.alfresco.org/model/content/1.0}firstName\":" + quote(userId) + "}," +
+                    "\"capabilities\":{\"isAdmin\":false,\"isGuest\":false,\"isMutable\":true}}}");
+        }
+        else if (path.startsWith(PATH_TOKEN))
+        {
+            handleTokenRequest(exchange, userId, URLDecoder.decode(path.substring(PATH_TOKEN.length()), CHARSET_UTF8));
+        }
+        else
+        {
+            sendJson(exchange, 404, "{\"message\":\"Not found\"}");
+        }
+    }
+
+    private void handleTokenRequest(HttpExchange exchange, String userId, String name) throws IOException
+    {
+        String method = exchange.getRequestMethod(), key = getKey(userId, name);
+        if ("GET".equals(method))
+        {
+            loads.incrementAndGet();
+            StoredTokens stored = tokens.get(key);
+            if (stored == null)
+            {
+                sendJson(exchange, 404, "{\"message\":\"Could not find credentials with name " + escape(name) + "\"}");
+                return;
+            }
+            sendJson(exchange, 200, "{\"accessToken\":" + quote(stored.accessToken) +
+                    ",\"refreshToken\":" + quote(stored.refreshToken) +
+                    ",\"ticketExpiresAt\":" + quote(stored.expiresAt != null ? new Date(stored.expiresAt.longValue()).toString() : null) +
+                    ",\"ticketTokenIssuedAt\":" + quote(new Date(stored.issuedAt).toString()) +
+                    ",\"expiresAt\":" + (stored.expiresAt != null ? stored.expiresAt.toString() : "null") + "}");
+        }
+        else if ("POST".equals(method))
+        {
+            saves.incrementAndGet();
+            String json = readBody(exchange);
+            tokens.put(key, new StoredTokens(getJsonString(json, "accessToken"), getJsonString(json, "refreshToken"),
+                    getJsonNumber(json, "expiresAt")));
+            sendJson(exchange, 200, "{\"success\":true}");
+        }
+        else if ("DELETE".equals(method))
+        {
+            tokens.remove(key);
+            sendJson(exchange, 200, "{\"success\":true}");
+        }
+        else
+        {
+            sendJson(exchange, 405, "{\"message\":\"Method not allowed\"}");
+        }
+    }
+
+    private static String getServicePath(String path)
+    {
+        for (String servicePath : SERVICE_PATHS)
+        {
+            if (path.startsWith(servicePath))
+            {
+                return path.substring(servicePath.length());
+            }
+        }
+        return null;
+    }
+
+    private static String getUserId(HttpExchange exchange) throws UnsupportedEncodingException
+    {
+        String ticket = parseForm(exchange.getRequestURI().getRawQuery()).get("alf_ticket");
+        if (ticket != null && ticket.startsWith(TICKET_PREFIX))
+        {
+            return ticket.substring(TICKET_PREFIX.length());
+        }
+        return exchange.getRequestHeaders().getFirst("X-Alfresco-Remote-User");
+    }
+
+    private static String getKey(String userId, String name)
+    {
+        return userId + "/" + name;
+    }
+
+    public long getLoads()
+    {
+        return loads.get();
+    }
+
+    public long getSaves()
+    {
+        return saves.get();
+    }
+
+    /**
+     * @param latency   Time in milliseconds taken by each request
+     */
+    public void setLatency(long latency)
+    {
+        this.latency = latency;
+    }
+
+    private static final class StoredTokens
+    {
+        private final String accessToken;
+        private final String refreshToken;
+        private final Long expiresAt;
+        private final long issuedAt = System.currentTimeMillis();
+
+        private StoredTokens(String accessToken, String refreshToken, Long expiresAt)
+        {
+            this.accessToken = accessToken;
+            this.refreshToken = refreshToken;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+}
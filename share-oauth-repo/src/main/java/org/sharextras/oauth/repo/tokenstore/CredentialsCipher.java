@@ -0,0 +1,144 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Base64;
+import org.alfresco.error.AlfrescoRuntimeException;
+
+/**
+ * Encrypts token values for export from the credentials store, using a key derived from a passphrase.
+ *
+ * <p>Values are encrypted with AES in CBC mode and authenticated with HMAC-SHA256. Encryption and MAC keys
+ * are derived from the passphrase and a salt using PBKDF2, so the same passphrase and salt must be used to
+ * decrypt the values again.</p>
+ */
+public class CredentialsCipher
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int SALT_LENGTH = 16;
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int KEY_ITERATIONS = 10000;
+
+    private final SecretKeySpec encryptionKey;
+    private final SecretKeySpec macKey;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param passphrase    Passphrase from which the keys are derived
+     * @param salt          Salt from which the keys are derived
+     */
+    public CredentialsCipher(String passphrase, byte[] salt)
+    {
+        try
+        {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+            byte[] keys = factory.generateSecret(
+                    new PBEKeySpec(passphrase.toCharArray(), salt, KEY_ITERATIONS, 512)).getEncoded();
+            encryptionKey = new SecretKeySpec(Arrays.copyOfRange(keys, 0, 16), "AES");
+            macKey = new SecretKeySpec(Arrays.copyOfRange(keys, 32, 64), "HmacSHA256");
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to derive keys from passphrase", e);
+        }
+    }
+
+    /**
+     * @return A new random salt
+     */
+    public static byte[] newSalt()
+    {
+        byte[] salt = new byte[SALT_LENGTH];
+        new SecureRandom().nextBytes(salt);
+        return salt;
+    }
+
+    /**
+     * Encrypt a value
+     *
+     * @param value The value to encrypt, may be null
+     * @return The encrypted value, Base64-encoded, or null if the value was null
+     */
+    public String encrypt(String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        try
+        {
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            byte[] encrypted = cipher.doFinal(value.getBytes(UTF_8));
+
+            byte[] result = new byte[IV_LENGTH + encrypted.length + MAC_LENGTH];
+            System.arraycopy(iv, 0, result, 0, IV_LENGTH);
+            System.arraycopy(encrypted, 0, result, IV_LENGTH, encrypted.length);
+            System.arraycopy(mac(result, IV_LENGTH + encrypted.length), 0, result, IV_LENGTH + encrypted.length, MAC_LENGTH);
+            return Base64.encodeBase64String(result);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to encrypt value", e);
+        }
+    }
+
+    /**
+     * Decrypt a value
+     *
+     * @param value The encrypted value, as returned by {@link #encrypt(String)}, may be null
+     * @return The decrypted value, or null if the value was null
+     * @throws AlfrescoRuntimeException if the value was not encrypted with the same passphrase and salt
+     */
+    public String decrypt(String value)
+    {
+        if (value == null)
+        {
+            return null;
+        }
+        byte[] data = Base64.decodeBase64(value);
+        if (data.length < IV_LENGTH + MAC_LENGTH)
+        {
+            throw new AlfrescoRuntimeException("Encrypted value is too short");
+        }
+        try
+        {
+            int macOffset = data.length - MAC_LENGTH;
+            if (!MessageDigest.isEqual(mac(data, macOffset), Arrays.copyOfRange(data, macOffset, data.length)))
+            {
+                throw new AlfrescoRuntimeException("Encrypted value failed verification - check the passphrase");
+            }
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(data, 0, IV_LENGTH));
+            return new String(cipher.doFinal(data, IV_LENGTH, macOffset - IV_LENGTH), UTF_8);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new AlfrescoRuntimeException("Unable to decrypt value", e);
+        }
+    }
+
+    private byte[] mac(byte[] data, int length) throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(macKey);
+        mac.update(data, 0, length);
+        return mac.doFinal();
+    }
+
+}
@@ -0,0 +1,374 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alfresco.repo.lock.JobLockService;
+import org.alfresco.repo.lock.LockAcquisitionException;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.remotecredentials.BaseCredentialsInfo;
+import org.alfresco.service.cmr.remotecredentials.OAuth2CredentialsInfo;
+import org.alfresco.service.cmr.remotecredentials.RemoteCredentialsService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.namespace.NamespaceService;
+import org.alfresco.service.namespace.QName;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Removes stale OAuth 2.0 credentials from the credentials store. This is normally run on a schedule by
+ * {@link OAuth2CredentialsCleanupJob}.
+ *
+ * <p>Credentials are stale if the access token expired more than the grace period ago and there is no refresh
+ * token which could be used to obtain a new one, or the refresh token has not been used for longer than the
+ * configured maximum age. If a list of remote systems is configured then credentials for any other remote
+ * system are also stale.</p>
+ *
+ * <p>Users are processed in batches, each in its own transaction, with a pause between batches so that the
+ * sweep does not compete with normal load. A cluster-wide lock ensures that only one node runs a sweep at a
+ * time, and the number of credentials removed in a single run is capped.</p>
+ */
+public class OAuth2CredentialsCleaner
+{
+    private static final QName LOCK_QNAME = QName.createQName(NamespaceService.SYSTEM_MODEL_1_0_URI, "OAuth2CredentialsCleaner");
+
+    private static final long DAY_MILLIS = 24L * 60L * 60L * 1000L;
+
+    private static Log logger = LogFactory.getLog(OAuth2CredentialsCleaner.class);
+
+    // Services
+    private RemoteCredentialsService remoteCredentialsService;
+    private PersonService personService;
+    private TransactionService transactionService;
+    private JobLockService jobLockService;
+
+    private boolean enabled = true;
+    private int batchSize = 100;
+    private long batchDelay = 1000L;
+    private int maxCredentialsPerRun = 10000;
+    private long gracePeriod = DAY_MILLIS;
+    private int refreshTokenMaxAgeDays = 0;
+    private List<String> remoteSystems;
+    private long lockTtl = 60000L;
+
+    private volatile CleanupReport lastReport;
+
+    /**
+     * Run a single sweep of the credentials store, unless another node is already running one
+     *
+     * @return A report of the credentials removed, or null if the sweep did not run
+     */
+    public CleanupReport execute()
+    {
+        if (!enabled)
+        {
+            logger.debug("Credentials cleanup is disabled");
+            return null;
+        }
+        final String lockToken;
+        try
+        {
+            lockToken = jobLockService.getLock(LOCK_QNAME, lockTtl);
+        }
+        catch (LockAcquisitionException e)
+        {
+            logger.debug("Credentials cleanup is already running elsewhere");
+            return null;
+        }
+        final CleanupReport report = new CleanupReport();
+        try
+        {
+            AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
+            {
+                public Void doWork() throws Exception
+                {
+                    sweep(report, lockToken);
+                    return null;
+                }
+            });
+        }
+        catch (LockAcquisitionException e)
+        {
+            logger.warn("Lost lock during credentials cleanup, stopping early", e);
+        }
+        finally
+        {
+            report.endTime = new Date();
+            lastReport = report;
+            jobLockService.releaseLock(lockToken, LOCK_QNAME);
+        }
+        if (logger.isInfoEnabled())
+            logger.info("Credentials cleanup scanned " + report.usersScanned + " users and removed " +
+                    report.credentialsRemoved + " credentials " + report.removedBySystem);
+        return report;
+    }
+
+    private void sweep(CleanupReport report, String lockToken)
+    {
+        UserWorkProvider workProvider = new UserWorkProvider(personService,
+                transactionService.getRetryingTransactionHelper(), null, batchSize);
+        Collection<String> userNames;
+        while (!(userNames = workProvider.getNextWork()).isEmpty())
+        {
+            jobLockService.refreshLock(lockToken, LOCK_QNAME, lockTtl);
+
+            Map<String, Integer> removed = processBatch(userNames, maxCredentialsPerRun - report.credentialsRemoved);
+            report.usersScanned += userNames.size();
+            for (Map.Entry<String, Integer> entry : removed.entrySet())
+            {
+                Integer count = report.removedBySystem.get(entry.getKey());
+                report.removedBySystem.put(entry.getKey(), (count != null ? count : 0) + entry.getValue());
+                report.credentialsRemoved += entry.getValue();
+            }
+
+            if (report.credentialsRemoved >= maxCredentialsPerRun)
+            {
+                logger.info("Removed maximum of " + maxCredentialsPerRun + " credentials, remainder will be removed in the next run");
+                return;
+            }
+            if (batchDelay > 0)
+            {
+                try
+                {
+                    Thread.sleep(batchDelay);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        report.complete = true;
+    }
+
+    /**
+     * Remove the stale credentials of a batch of users in a single transaction
+     *
+     * @return The number of credentials removed for each remote system
+     */
+    private Map<String, Integer> processBatch(final Collection<String> userNames, final int limit)
+    {
+        return transactionService.getRetryingTransactionHelper().doInTransaction(new RetryingTransactionCallback<Map<String, Integer>>()
+        {
+            public Map<String, Integer> execute() throws Throwable
+            {
+                // A new map is used on each attempt, so the counts are only those of the committed transaction
+                final Map<String, Integer> removed = new HashMap<String, Integer>();
+                final int[] total = new int[1];
+                for (String userName : userNames)
+                {
+                    if (total[0] >= limit)
+                    {
+                        break;
+                    }
+                    AuthenticationUtil.runAs(new RunAsWork<Void>()
+                    {
+                        public Void doWork() throws Exception
+                        {
+                            total[0] += processUser(removed, limit - total[0]);
+                            return null;
+                        }
+                    }, userName);
+                }
+                return removed;
+            }
+        }, false, true);
+    }
+
+    private int processUser(Map<String, Integer> removed, int limit)
+    {
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for (String system : RemoteCredentialsHelper.listPersonalRemoteSystems(remoteCredentialsService))
+        {
+            if (count >= limit)
+            {
+                break;
+            }
+            BaseCredentialsInfo credentials = remoteCredentialsService.getPersonalCredentials(system);
+            if (!(credentials instanceof OAuth2CredentialsInfo) || !isStale(system, (OAuth2CredentialsInfo) credentials, now))
+            {
+                continue;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Removing stale credentials for " + system + " from user " + AuthenticationUtil.getRunAsUser());
+            remoteCredentialsService.deleteCredentials(credentials);
+            Integer systemCount = removed.get(system);
+            removed.put(system, (systemCount != null ? systemCount : 0) + 1);
+            count++;
+        }
+        return count;
+    }
+
+    private boolean isStale(String system, OAuth2CredentialsInfo credentials, long now)
+    {
+        if (remoteSystems != null && !remoteSystems.isEmpty() && !remoteSystems.contains(system))
+        {
+            return true;
+        }
+        // Nothing is known about when credentials saved by older versions expire, so these are kept
+        Date expiresAt = credentials.getOAuthTicketExpiresAt();
+        if (expiresAt == null || expiresAt.getTime() + gracePeriod > now)
+        {
+            return false;
+        }
+        String refreshToken = credentials.getOAuthRefreshToken();
+        if (refreshToken == null || refreshToken.length() == 0)
+        {
+            return true;
+        }
+        // Credentials are saved again each time the token is refreshed, so the issue date is that of the last refresh
+        Date issuedAt = credentials.getOAuthTicketIssuedAt();
+        return refreshTokenMaxAgeDays > 0 && issuedAt != null &&
+                issuedAt.getTime() + refreshTokenMaxAgeDays * DAY_MILLIS < now;
+    }
+
+    /**
+     * @return The report from the most recent run on this node, or null if no run has completed
+     */
+    public CleanupReport getLastReport()
+    {
+        return lastReport;
+    }
+
+    /**
+     * Results of a single run
+     */
+    public static class CleanupReport
+    {
+        private final Date startTime = new Date();
+        private volatile Date endTime;
+        private int usersScanned;
+        private int credentialsRemoved;
+        private final Map<String, Integer> removedBySystem = new HashMap<String, Integer>();
+        private boolean complete;
+
+        public Date getStartTime()
+        {
+            return startTime;
+        }
+
+        public Date getEndTime()
+        {
+            return endTime;
+        }
+
+        public int getUsersScanned()
+        {
+            return usersScanned;
+        }
+
+        public int getCredentialsRemoved()
+        {
+            return credentialsRemoved;
+        }
+
+        /**
+         * @return Number of credentials removed for each remote system
+         */
+        public Map<String, Integer> getRemovedBySystem()
+        {
+            return Collections.unmodifiableMap(removedBySystem);
+        }
+
+        /**
+         * @return false if the run stopped before all users were processed
+         */
+        public boolean isComplete()
+        {
+            return complete;
+        }
+    }
+
+    public void setRemoteCredentialsService(RemoteCredentialsService remoteCredentialsService)
+    {
+        this.remoteCredentialsService = remoteCredentialsService;
+    }
+
+    public void setPersonService(PersonService personService)
+    {
+        this.personService = personService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    public void setJobLockService(JobLockService jobLockService)
+    {
+        this.jobLockService = jobLockService;
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @param batchSize Number of users processed in each transaction
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param batchDelay    Time in milliseconds to pause between batches
+     */
+    public void setBatchDelay(long batchDelay)
+    {
+        this.batchDelay = batchDelay;
+    }
+
+    /**
+     * @param maxCredentialsPerRun  Maximum number of credentials removed in a single run
+     */
+    public void setMaxCredentialsPerRun(int maxCredentialsPerRun)
+    {
+        this.maxCredentialsPerRun = maxCredentialsPerRun;
+    }
+
+    /**
+     * @param gracePeriod   Time in milliseconds after an access token expires before its credentials may be removed
+     */
+    public void setGracePeriod(long gracePeriod)
+    {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * @param refreshTokenMaxAgeDays    Number of days after which an unused refresh token is treated as no longer
+     *                                  valid, or 0 to keep credentials for as long as they have a refresh token
+     */
+    public void setRefreshTokenMaxAgeDays(int refreshTokenMaxAgeDays)
+    {
+        this.refreshTokenMaxAgeDays = refreshTokenMaxAgeDays;
+    }
+
+    /**
+     * @param remoteSystems Remote systems which are still in use, or null or empty to keep credentials for all
+     *                      remote systems
+     */
+    public void setRemoteSystems(List<String> remoteSystems)
+    {
+        this.remoteSystems = remoteSystems;
+    }
+
+    /**
+     * @param lockTtl   Time in milliseconds for which the cluster lock is held between batches
+     */
+    public void setLockTtl(long lockTtl)
+    {
+        this.lockTtl = lockTtl;
+    }
+
+}
@@ -0,0 +1,28 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.quartz.Job;
+import org.quartz.JobExecutionContext;
+import org.quartz.JobExecutionException;
+
+/**
+ * Scheduled job which runs the {@link OAuth2CredentialsCleaner}. The cleaner must be supplied in the job data
+ * under the key <code>credentialsCleaner</code>.
+ */
+public class OAuth2CredentialsCleanupJob implements Job
+{
+    public static final String KEY_CREDENTIALS_CLEANER = "credentialsCleaner";
+
+    @Override
+    public void execute(JobExecutionContext context) throws JobExecutionException
+    {
+        Object cleaner = context.getJobDetail().getJobDataMap().get(KEY_CREDENTIALS_CLEANER);
+        if (!(cleaner instanceof OAuth2CredentialsCleaner))
+        {
+            throw new AlfrescoRuntimeException("OAuth2CredentialsCleanupJob data must contain valid '" +
+                    KEY_CREDENTIALS_CLEANER + "' reference");
+        }
+        ((OAuth2CredentialsCleaner) cleaner).execute();
+    }
+
+}
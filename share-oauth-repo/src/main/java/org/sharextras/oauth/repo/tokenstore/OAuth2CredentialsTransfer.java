@@ -0,0 +1,342 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.oauth2.OAuth2CredentialsStoreService;
+import org.alfresco.service.cmr.remotecredentials.BaseCredentialsInfo;
+import org.alfresco.service.cmr.remotecredentials.OAuth2CredentialsInfo;
+import org.alfresco.service.cmr.remotecredentials.RemoteCredentialsService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.transaction.TransactionService;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+
+/**
+ * Exports and imports the OAuth 2.0 credentials of all users as newline-delimited JSON, for moving the credentials
+ * store between environments.
+ *
+ * <p>The first line of an export is a header object giving the format version and the salt used to derive the
+ * encryption keys. Each following line holds the credentials for one user and remote system, with the token
+ * values encrypted using a {@link CredentialsCipher}. Both directions stream the data in pages of users, so
+ * memory use does not depend on the size of the store, and imports are written in batched transactions.</p>
+ */
+public class OAuth2CredentialsTransfer implements ApplicationEventPublisherAware
+{
+    public static final String FORMAT_NAME = "sharextras-oauth2-credentials";
+    public static final int FORMAT_VERSION = 1;
+
+    private static final String JSON_PROP_FORMAT = "format";
+    private static final String JSON_PROP_VERSION = "version";
+    private static final String JSON_PROP_SALT = "salt";
+    private static final String JSON_PROP_USER = "user";
+    private static final String JSON_PROP_REMOTE_SYSTEM = "remoteSystem";
+    private static final String JSON_PROP_ACCESS_TOKEN = "accessToken";
+    private static final String JSON_PROP_REFRESH_TOKEN = "refreshToken";
+    private static final String JSON_PROP_EXPIRES_AT = "expiresAt";
+    private static final String JSON_PROP_ISSUED_AT = "issuedAt";
+
+    private static Log logger = LogFactory.getLog(OAuth2CredentialsTransfer.class);
+
+    // Services
+    private OAuth2CredentialsStoreService oauth2CredentialsStoreService;
+    private RemoteCredentialsService remoteCredentialsService;
+    private PersonService personService;
+    private TransactionService transactionService;
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    private int batchSize = 200;
+    private int workerThreads = 2;
+    private int loggingInterval = 10000;
+
+    /**
+     * Write the credentials of all users to the given writer
+     *
+     * @param writer        Writer to send the output to
+     * @param remoteSystem  Only export credentials for this remote system, or null for all
+     * @param passphrase    Passphrase used to encrypt the token values
+     * @return The number of credentials exported
+     */
+    public int exportCredentials(final Writer writer, final String remoteSystem, String passphrase) throws IOException
+    {
+        byte[] salt = CredentialsCipher.newSalt();
+        final CredentialsCipher cipher = new CredentialsCipher(passphrase, salt);
+
+        JSONObject header = new JSONObject();
+        try
+        {
+            header.put(JSON_PROP_FORMAT, FORMAT_NAME);
+            header.put(JSON_PROP_VERSION, FORMAT_VERSION);
+            header.put(JSON_PROP_SALT, Base64.encodeBase64String(salt));
+        }
+        catch (JSONException e)
+        {
+            throw new AlfrescoRuntimeException("Error building export header", e);
+        }
+        writer.write(header.toString());
+        writer.write('\n');
+
+        int count = 0;
+        UserWorkProvider users = new UserWorkProvider(personService, transactionService.getRetryingTransactionHelper(),
+                null, batchSize);
+        for (Collection<String> page = users.getNextWork(); !page.isEmpty(); page = users.getNextWork())
+        {
+            final Collection<String> userNames = page;
+            // Read the whole page before writing, so that a retried transaction cannot write lines twice
+            List<String> lines = AuthenticationUtil.runAsSystem(new RunAsWork<List<String>>()
+            {
+                public List<String> doWork() throws Exception
+                {
+                    return transactionService.getRetryingTransactionHelper().doInTransaction(
+                            new RetryingTransactionCallback<List<String>>()
+                    {
+                        public List<String> execute() throws Throwable
+                        {
+                            List<String> lines = new ArrayList<String>();
+                            for (String userName : userNames)
+                            {
+                                lines.addAll(exportUser(userName, remoteSystem, cipher));
+                            }
+                            return lines;
+                        }
+                    }, true, true);
+                }
+            });
+            for (String line : lines)
+            {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            count += lines.size();
+        }
+
+        if (logger.isInfoEnabled())
+            logger.info("Exported " + count + " OAuth 2.0 credentials");
+        return count;
+    }
+
+    private List<String> exportUser(final String userName, final String remoteSystem, final CredentialsCipher cipher)
+    {
+        return AuthenticationUtil.runAs(new RunAsWork<List<String>>()
+        {
+            public List<String> doWork() throws Exception
+            {
+                List<String> systems = remoteSystem != null ? Collections.singletonList(remoteSystem) :
+                    RemoteCredentialsHelper.listPersonalRemoteSystems(remoteCredentialsService);
+                List<String> lines = new ArrayList<String>(systems.size());
+                for (String system : systems)
+                {
+                    BaseCredentialsInfo credentials = remoteCredentialsService.getPersonalCredentials(system);
+                    if (credentials instanceof OAuth2CredentialsInfo)
+                    {
+                        OAuth2CredentialsInfo oauthCredentials = (OAuth2CredentialsInfo) credentials;
+                        JSONObject json = new JSONObject();
+                        json.put(JSON_PROP_USER, userName);
+                        json.put(JSON_PROP_REMOTE_SYSTEM, system);
+                        json.put(JSON_PROP_ACCESS_TOKEN, cipher.encrypt(oauthCredentials.getOAuthAccessToken()));
+                        json.put(JSON_PROP_REFRESH_TOKEN, cipher.encrypt(oauthCredentials.getOAuthRefreshToken()));
+                        if (oauthCredentials.getOAuthTicketExpiresAt() != null)
+                        {
+                            json.put(JSON_PROP_EXPIRES_AT, oauthCredentials.getOAuthTicketExpiresAt().getTime());
+                        }
+                        if (oauthCredentials.getOAuthTicketIssuedAt() != null)
+                        {
+                            json.put(JSON_PROP_ISSUED_AT, oauthCredentials.getOAuthTicketIssuedAt().getTime());
+                        }
+                        lines.add(json.toString());
+                    }
+                }
+                return lines;
+            }
+        }, userName);
+    }
+
+    /**
+     * Read credentials from the given reader, as written by {@link #exportCredentials(Writer, String, String)},
+     * and store them. Existing credentials for the same user and remote system are replaced.
+     *
+     * @param reader        Reader to read the input from
+     * @param passphrase    Passphrase used to decrypt the token values
+     * @return The batch processor used for the import, from which the results can be read
+     */
+    public BatchProcessor<JSONObject> importCredentials(Reader reader, String passphrase) throws IOException
+    {
+        final BufferedReader lineReader = new BufferedReader(reader);
+        final CredentialsCipher cipher;
+        String headerLine = lineReader.readLine();
+        if (headerLine == null)
+        {
+            throw new AlfrescoRuntimeException("No header line was found");
+        }
+        try
+        {
+            JSONObject header = new JSONObject(headerLine);
+            if (!FORMAT_NAME.equals(header.optString(JSON_PROP_FORMAT)) || header.optInt(JSON_PROP_VERSION) != FORMAT_VERSION)
+            {
+                throw new AlfrescoRuntimeException("Unsupported credentials format " + header.optString(JSON_PROP_FORMAT) +
+                        " version " + header.optInt(JSON_PROP_VERSION));
+            }
+            cipher = new CredentialsCipher(passphrase, Base64.decodeBase64(header.getString(JSON_PROP_SALT)));
+        }
+        catch (JSONException e)
+        {
+            throw new AlfrescoRuntimeException("Could not read header line", e);
+        }
+
+        // Lines are read as the batch processor asks for more work, so only a few batches are held at once
+        BatchProcessWorkProvider<JSONObject> workProvider = new BatchProcessWorkProvider<JSONObject>()
+        {
+            public int getTotalEstimatedWorkSize()
+            {
+                return 0;
+            }
+
+            public Collection<JSONObject> getNextWork()
+            {
+                List<JSONObject> work = new ArrayList<JSONObject>(batchSize);
+                try
+                {
+                    String line;
+                    while (work.size() < batchSize && (line = lineReader.readLine()) != null)
+                    {
+                        if (line.trim().length() > 0)
+                        {
+                            work.add(new JSONObject(line));
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new AlfrescoRuntimeException("Error reading import data", e);
+                }
+                catch (JSONException e)
+                {
+                    throw new AlfrescoRuntimeException("Could not parse import data", e);
+                }
+                return work;
+            }
+        };
+
+        BatchProcessor<JSONObject> batchProcessor = new BatchProcessor<JSONObject>(
+                "OAuth2CredentialsImport",
+                transactionService.getRetryingTransactionHelper(),
+                workProvider, workerThreads, batchSize,
+                applicationEventPublisher, logger, loggingInterval);
+
+        batchProcessor.process(new BatchProcessWorkerAdaptor<JSONObject>()
+        {
+            @Override
+            public String getIdentifier(JSONObject entry)
+            {
+                return entry.optString(JSON_PROP_USER) + "/" + entry.optString(JSON_PROP_REMOTE_SYSTEM);
+            }
+
+            @Override
+            public void beforeProcess() throws Throwable
+            {
+                AuthenticationUtil.setRunAsUserSystem();
+            }
+
+            @Override
+            public void afterProcess() throws Throwable
+            {
+                AuthenticationUtil.clearCurrentSecurityContext();
+            }
+
+            @Override
+            public void process(final JSONObject entry) throws Throwable
+            {
+                final String remoteSystem = entry.getString(JSON_PROP_REMOTE_SYSTEM),
+                        accessToken = cipher.decrypt(entry.optString(JSON_PROP_ACCESS_TOKEN, null)),
+                        refreshToken = cipher.decrypt(entry.optString(JSON_PROP_REFRESH_TOKEN, null));
+                final Date expiresAt = entry.has(JSON_PROP_EXPIRES_AT) ? new Date(entry.getLong(JSON_PROP_EXPIRES_AT)) : null,
+                        issuedAt = entry.has(JSON_PROP_ISSUED_AT) ? new Date(entry.getLong(JSON_PROP_ISSUED_AT)) : new Date();
+                AuthenticationUtil.runAs(new RunAsWork<Void>()
+                {
+                    public Void doWork() throws Exception
+                    {
+                        oauth2CredentialsStoreService.storePersonalOAuth2Credentials(
+                                remoteSystem, accessToken, refreshToken, expiresAt, issuedAt);
+                        return null;
+                    }
+                }, entry.getString(JSON_PROP_USER));
+            }
+        }, true);
+
+        if (logger.isInfoEnabled())
+            logger.info("Imported " + batchProcessor.getSuccessfullyProcessedEntries() + " OAuth 2.0 credentials, " +
+                    batchProcessor.getTotalErrors() + " errors");
+        return batchProcessor;
+    }
+
+    public void setOauth2CredentialsStoreService(OAuth2CredentialsStoreService oauth2CredentialsStoreService)
+    {
+        this.oauth2CredentialsStoreService = oauth2CredentialsStoreService;
+    }
+
+    public void setRemoteCredentialsService(RemoteCredentialsService remoteCredentialsService)
+    {
+        this.remoteCredentialsService = remoteCredentialsService;
+    }
+
+    public void setPersonService(PersonService personService)
+    {
+        this.personService = personService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher)
+    {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    /**
+     * @param batchSize Number of users read from the repository, or credentials written, in each transaction
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param workerThreads Number of import batches processed in parallel
+     */
+    public void setWorkerThreads(int workerThreads)
+    {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * @param loggingInterval Number of credentials imported between progress log messages
+     */
+    public void setLoggingInterval(int loggingInterval)
+    {
+        this.loggingInterval = loggingInterval;
+    }
+
+}
@@ -0,0 +1,524 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.repo.batch.BatchProcessor.BatchProcessWorkerAdaptor;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.AlfrescoTransactionSupport;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.repo.transaction.TransactionListenerAdapter;
+import org.alfresco.service.cmr.remotecredentials.BaseCredentialsInfo;
+import org.alfresco.service.cmr.remotecredentials.OAuth2CredentialsInfo;
+import org.alfresco.service.cmr.remotecredentials.RemoteCredentialsService;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.transaction.TransactionService;
+import org.alfresco.util.TraceableThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.ApplicationEventPublisherAware;
+
+/**
+ * Removes OAuth 2.0 credentials from the credentials store in bulk, e.g. when a client secret has been rotated
+ * or a provider is no longer used.
+ *
+ * <p>Credentials may be selected by remote system, by user and by the date they were issued. Work runs in the
+ * background using a {@link BatchProcessor}, so each batch of users is processed in its own transaction and
+ * progress is available while the job runs. Only one job may run at a time.</p>
+ *
+ * <p>Tokens can optionally be revoked at the provider before they are removed, using the revocation endpoint and
+ * OAuth client configured for their remote system. Tokens are only ever sent to the provider they were issued by,
+ * and credentials for remote systems without a configured endpoint are kept and reported as not revoked. Provider
+ * calls are not made while a
+ * transaction is open, so that they are never repeated when a transaction is retried. Instead the matching
+ * credentials are noted while the users are processed, and once all users have been processed each is revoked and
+ * then removed in a transaction of its own. Credentials whose tokens could not be revoked are kept, and reported in
+ * the job status.</p>
+ */
+public class OAuth2TokenBulkRevoker implements ApplicationEventPublisherAware
+{
+    private static Log logger = LogFactory.getLog(OAuth2TokenBulkRevoker.class);
+
+    // Services
+    private RemoteCredentialsService remoteCredentialsService;
+    private PersonService personService;
+    private TransactionService transactionService;
+    private ApplicationEventPublisher applicationEventPublisher;
+
+    private int batchSize = 100;
+    private int workerThreads = 2;
+    private int loggingInterval = 1000;
+    private int maxReportedFailures = 1000;
+    private Map<String, TokenRevocationClient> revocationClients = Collections.emptyMap();
+
+    private final ExecutorService executor;
+
+    private volatile RevocationJob currentJob;
+
+    public OAuth2TokenBulkRevoker()
+    {
+        TraceableThreadFactory threadFactory = new TraceableThreadFactory();
+        threadFactory.setThreadDaemon(true);
+        threadFactory.setNamePrefix("OAuth2TokenBulkRevoker");
+        executor = Executors.newSingleThreadExecutor(threadFactory);
+    }
+
+    /**
+     * Start a new job in the background
+     *
+     * @param remoteSystem  Remote system to remove credentials for, or null for all remote systems
+     * @param userNames     Users to remove credentials for, or null for all users
+     * @param issuedBefore  Only remove credentials issued before this date, or null to ignore the issue date
+     * @param revoke      Whether to revoke tokens at the provider before removing them
+     * @return The new job
+     * @throws IllegalStateException if a job is already running
+     * @throws IllegalArgumentException if tokens are to be revoked for a remote system with no revocation endpoint
+     */
+    public synchronized RevocationJob start(String remoteSystem, List<String> userNames, Date issuedBefore,
+            boolean revoke)
+    {
+        if (revoke && remoteSystem != null && !revocationClients.containsKey(remoteSystem))
+        {
+            throw new IllegalArgumentException("No revocation endpoint is configured for remote system " + remoteSystem);
+        }
+        if (currentJob != null && !currentJob.isFinished())
+        {
+            throw new IllegalStateException("A bulk revocation job is already running");
+        }
+        final RevocationJob job = new RevocationJob(remoteSystem, userNames, issuedBefore, revoke);
+        currentJob = job;
+        executor.execute(new Runnable()
+        {
+            public void run()
+            {
+                AuthenticationUtil.runAsSystem(new RunAsWork<Void>()
+                {
+                    public Void doWork() throws Exception
+                    {
+                        job.run();
+                        return null;
+                    }
+                });
+            }
+        });
+        return job;
+    }
+
+    /**
+     * @return The running or most recently finished job, or null if no job has been started
+     */
+    public RevocationJob getCurrentJob()
+    {
+        return currentJob;
+    }
+
+    /**
+     * A single bulk revocation
+     */
+    public class RevocationJob
+    {
+        private final String remoteSystem;
+        private final List<String> userNames;
+        private final Date issuedBefore;
+        private final boolean revoke;
+
+        private final BatchProcessor<String> batchProcessor;
+
+        private final AtomicInteger credentialsRemoved = new AtomicInteger();
+        private final AtomicInteger providerRevocations = new AtomicInteger();
+        private final AtomicInteger providerRevocationFailures = new AtomicInteger();
+
+        // Credentials to revoke at the provider and then remove, once all users have been processed
+        private final Queue<PendingRevocation> pendingRevocations = new ConcurrentLinkedQueue<PendingRevocation>();
+        // Users and remote systems whose tokens could not be revoked, and whose credentials have been kept
+        private final List<String> failedRevocations = new CopyOnWriteArrayList<String>();
+
+        private volatile boolean finished = false;
+
+        private RevocationJob(String remoteSystem, List<String> userNames, Date issuedBefore, boolean revoke)
+        {
+            this.remoteSystem = remoteSystem;
+            this.userNames = userNames;
+            this.issuedBefore = issuedBefore;
+            this.revoke = revoke;
+            this.batchProcessor = new BatchProcessor<String>(
+                    "OAuth2TokenBulkRevoker",
+                    transactionService.getRetryingTransactionHelper(),
+                    new UserWorkProvider(personService, transactionService.getRetryingTransactionHelper(),
+                            userNames, batchSize * workerThreads),
+                    workerThreads, batchSize,
+                    applicationEventPublisher, logger, loggingInterval);
+        }
+
+        private void run()
+        {
+            try
+            {
+                batchProcessor.process(new BatchProcessWorkerAdaptor<String>()
+                {
+                    @Override
+                    public String getIdentifier(String userName)
+                    {
+                        return userName;
+                    }
+
+                    @Override
+                    public void beforeProcess() throws Throwable
+                    {
+                        AuthenticationUtil.setRunAsUserSystem();
+                    }
+
+                    @Override
+                    public void afterProcess() throws Throwable
+                    {
+                        AuthenticationUtil.clearCurrentSecurityContext();
+                    }
+
+                    @Override
+                    public void process(final String userName) throws Throwable
+                    {
+                        AuthenticationUtil.runAs(new RunAsWork<Void>()
+                        {
+                            public Void doWork() throws Exception
+                            {
+                                processUser(userName);
+                                return null;
+                            }
+                        }, userName);
+                    }
+                }, true);
+                revokePending();
+            }
+            finally
+            {
+                finished = true;
+                if (logger.isInfoEnabled())
+                    logger.info("Bulk revocation finished, removed " + credentialsRemoved.get() + " credentials");
+            }
+        }
+
+        /**
+         * Remove the matching credentials of the current user, or note them to be revoked at the provider first
+         */
+        private void processUser(final String userName)
+        {
+            final int[] removed = new int[1];
+            final List<String> toRevoke = new ArrayList<String>();
+            for (String system : getRemoteSystems())
+            {
+                OAuth2CredentialsInfo credentials = getMatchingCredentials(system);
+                if (credentials == null)
+                {
+                    continue;
+                }
+                if (revoke)
+                {
+                    toRevoke.add(system);
+                    continue;
+                }
+                remoteCredentialsService.deleteCredentials(credentials);
+                removed[0]++;
+            }
+
+            // Only count the work once the transaction has committed, since it may be retried
+            AlfrescoTransactionSupport.bindListener(new TransactionListenerAdapter()
+            {
+                @Override
+                public void afterCommit()
+                {
+                    credentialsRemoved.addAndGet(removed[0]);
+                    for (String system : toRevoke)
+                    {
+                        pendingRevocations.add(new PendingRevocation(userName, system));
+                    }
+                }
+            });
+        }
+
+        /**
+         * Revoke the tokens noted while processing users, removing the credentials of those which were revoked
+         */
+        private void revokePending()
+        {
+            if (!pendingRevocations.isEmpty() && logger.isInfoEnabled())
+                logger.info("Revoking " + pendingRevocations.size() + " tokens at the provider");
+            PendingRevocation pending;
+            while ((pending = pendingRevocations.poll()) != null)
+            {
+                final PendingRevocation revocation = pending;
+                AuthenticationUtil.runAs(new RunAsWork<Void>()
+                {
+                    public Void doWork() throws Exception
+                    {
+                        revoke(revocation);
+                        return null;
+                    }
+                }, revocation.userName);
+            }
+        }
+
+        /**
+         * Revoke the tokens in a user's credentials for a remote system, and remove the credentials if this
+         * succeeds. The provider is called between two transactions, rather than within one.
+         */
+        private void revoke(final PendingRevocation revocation)
+        {
+            RetryingTransactionHelper transactionHelper = transactionService.getRetryingTransactionHelper();
+            final OAuth2CredentialsInfo credentials = transactionHelper.doInTransaction(
+                    new RetryingTransactionCallback<OAuth2CredentialsInfo>()
+            {
+                public OAuth2CredentialsInfo execute() throws Throwable
+                {
+                    return getMatchingCredentials(revocation.remoteSystem);
+                }
+            }, true, true);
+            if (credentials == null)
+            {
+                // Removed or replaced since the user was processed
+                return;
+            }
+
+            // Tokens are only sent to the provider of their own remote system
+            TokenRevocationClient revocationClient = revocationClients.get(revocation.remoteSystem);
+            if (revocationClient == null)
+            {
+                addFailedRevocation(revocation);
+                logger.warn("No revocation endpoint is configured for " + revocation.remoteSystem +
+                        ", keeping credentials of " + revocation.userName);
+                return;
+            }
+
+            // Revoking the refresh token will normally revoke the access token too
+            boolean success = hasText(credentials.getOAuthRefreshToken()) ?
+                    revocationClient.revoke(credentials.getOAuthRefreshToken(), TokenRevocationClient.TOKEN_TYPE_REFRESH_TOKEN) :
+                    revocationClient.revoke(credentials.getOAuthAccessToken(), TokenRevocationClient.TOKEN_TYPE_ACCESS_TOKEN);
+            if (!success)
+            {
+                addFailedRevocation(revocation);
+                logger.warn("Unable to revoke token for " + revocation.userName + " on " + revocation.remoteSystem +
+                        ", keeping credentials");
+                return;
+            }
+            providerRevocations.incrementAndGet();
+
+            boolean deleted = transactionHelper.doInTransaction(new RetryingTransactionCallback<Boolean>()
+            {
+                public Boolean execute() throws Throwable
+                {
+                    // Keep any credentials the user has authorized since the tokens were read
+                    OAuth2CredentialsInfo current = getMatchingCredentials(revocation.remoteSystem);
+                    if (current == null || !isSameTokens(current, credentials))
+                    {
+                        return Boolean.FALSE;
+                    }
+                    remoteCredentialsService.deleteCredentials(current);
+                    return Boolean.TRUE;
+                }
+            }, false, true);
+            if (deleted)
+            {
+                credentialsRemoved.incrementAndGet();
+            }
+        }
+
+        private void addFailedRevocation(PendingRevocation revocation)
+        {
+            providerRevocationFailures.incrementAndGet();
+            if (failedRevocations.size() < maxReportedFailures)
+            {
+                failedRevocations.add(revocation.userName + "/" + revocation.remoteSystem);
+            }
+        }
+
+        /**
+         * Get the current user's credentials for a remote system, if they match the job's criteria
+         *
+         * @return The credentials, or null if there are none or they do not match
+         */
+        private OAuth2CredentialsInfo getMatchingCredentials(String system)
+        {
+            BaseCredentialsInfo credentials = remoteCredentialsService.getPersonalCredentials(system);
+            if (!(credentials instanceof OAuth2CredentialsInfo))
+            {
+                return null;
+            }
+            OAuth2CredentialsInfo oauthCredentials = (OAuth2CredentialsInfo) credentials;
+            if (issuedBefore != null && (oauthCredentials.getOAuthTicketIssuedAt() == null ||
+                    !oauthCredentials.getOAuthTicketIssuedAt().before(issuedBefore)))
+            {
+                return null;
+            }
+            return oauthCredentials;
+        }
+
+        private List<String> getRemoteSystems()
+        {
+            if (remoteSystem != null)
+            {
+                return Collections.singletonList(remoteSystem);
+            }
+            return RemoteCredentialsHelper.listPersonalRemoteSystems(remoteCredentialsService);
+        }
+
+        public BatchProcessor<String> getBatchProcessor()
+        {
+            return batchProcessor;
+        }
+
+        public String getRemoteSystem()
+        {
+            return remoteSystem;
+        }
+
+        public List<String> getUserNames()
+        {
+            return userNames;
+        }
+
+        public Date getIssuedBefore()
+        {
+            return issuedBefore;
+        }
+
+        public boolean isRevoke()
+        {
+            return revoke;
+        }
+
+        public int getCredentialsRemoved()
+        {
+            return credentialsRemoved.get();
+        }
+
+        public int getProviderRevocations()
+        {
+            return providerRevocations.get();
+        }
+
+        public int getProviderRevocationFailures()
+        {
+            return providerRevocationFailures.get();
+        }
+
+        /**
+         * @return The users and remote systems, as <code>user/system</code>, whose tokens could not be revoked and
+         *          whose credentials were kept, up to the maximum number reported
+         */
+        public List<String> getFailedRevocations()
+        {
+            return failedRevocations;
+        }
+
+        public boolean isFinished()
+        {
+            return finished;
+        }
+    }
+
+    /**
+     * User's credentials for a remote system, noted to be revoked at the provider
+     */
+    private static final class PendingRevocation
+    {
+        private final String userName;
+        private final String remoteSystem;
+
+        private PendingRevocation(String userName, String remoteSystem)
+        {
+            this.userName = userName;
+            this.remoteSystem = remoteSystem;
+        }
+    }
+
+    private static boolean hasText(String value)
+    {
+        return value != null && value.length() > 0;
+    }
+
+    private static boolean isSameTokens(OAuth2CredentialsInfo credentials, OAuth2CredentialsInfo other)
+    {
+        return nullSafeEquals(credentials.getOAuthAccessToken(), other.getOAuthAccessToken()) &&
+                nullSafeEquals(credentials.getOAuthRefreshToken(), other.getOAuthRefreshToken());
+    }
+
+    private static boolean nullSafeEquals(String value, String other)
+    {
+        return value == null ? other == null : value.equals(other);
+    }
+
+    public void setRemoteCredentialsService(RemoteCredentialsService remoteCredentialsService)
+    {
+        this.remoteCredentialsService = remoteCredentialsService;
+    }
+
+    public void setPersonService(PersonService personService)
+    {
+        this.personService = personService;
+    }
+
+    public void setTransactionService(TransactionService transactionService)
+    {
+        this.transactionService = transactionService;
+    }
+
+    @Override
+    public void setApplicationEventPublisher(ApplicationEventPublisher applicationEventPublisher)
+    {
+        this.applicationEventPublisher = applicationEventPublisher;
+    }
+
+    /**
+     * @param batchSize Number of users processed in each transaction
+     */
+    public void setBatchSize(int batchSize)
+    {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param workerThreads Number of batches processed in parallel
+     */
+    public void setWorkerThreads(int workerThreads)
+    {
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * @param loggingInterval Number of users processed between progress log messages
+     */
+    public void setLoggingInterval(int loggingInterval)
+    {
+        this.loggingInterval = loggingInterval;
+    }
+
+    /**
+     * @param maxReportedFailures Number of failed revocations listed in the job status
+     */
+    public void setMaxReportedFailures(int maxReportedFailures)
+    {
+        this.maxReportedFailures = maxReportedFailures;
+    }
+
+    /**
+     * @param revocationClients Token revocation endpoint and OAuth client of each remote system, by remote system name
+     */
+    public void setRevocationClients(Map<String, TokenRevocationClient> revocationClients)
+    {
+        this.revocationClients = revocationClients != null ? revocationClients :
+                Collections.<String, TokenRevocationClient>emptyMap();
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.service.cmr.remotecredentials.RemoteCredentialsService;
+
+/**
+ * Helper methods for working with the remote credentials of the current user
+ */
+public class RemoteCredentialsHelper
+{
+    private static final int REMOTE_SYSTEMS_PAGE_SIZE = 100;
+
+    private RemoteCredentialsHelper()
+    {
+    }
+
+    /**
+     * List all remote systems for which the current user has personal credentials
+     *
+     * @param remoteCredentialsService  The remote credentials service
+     * @return The remote system names
+     */
+    public static List<String> listPersonalRemoteSystems(RemoteCredentialsService remoteCredentialsService)
+    {
+        List<String> systems = new ArrayList<String>();
+        int skipCount = 0;
+        PagingResults<String> page;
+        do
+        {
+            page = remoteCredentialsService.listPersonalRemoteSystems(new PagingRequest(skipCount, REMOTE_SYSTEMS_PAGE_SIZE));
+            systems.addAll(page.getPage());
+            skipCount += page.getPage().size();
+        }
+        while (page.hasMoreItems() && !page.getPage().isEmpty());
+        return systems;
+    }
+
+}
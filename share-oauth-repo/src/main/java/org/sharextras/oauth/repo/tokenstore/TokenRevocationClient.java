@@ -0,0 +1,115 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Revokes tokens at an OAuth 2.0 provider, using the token revocation endpoint defined in RFC 7009.
+ */
+public class TokenRevocationClient
+{
+    public static final String TOKEN_TYPE_ACCESS_TOKEN = "access_token";
+    public static final String TOKEN_TYPE_REFRESH_TOKEN = "refresh_token";
+
+    private static final int TIMEOUT = 10000;
+
+    private static Log logger = LogFactory.getLog(TokenRevocationClient.class);
+
+    private final String revocationUrl;
+    private final String clientId;
+    private final String clientSecret;
+
+    /**
+     * @param revocationUrl The provider's token revocation URL
+     * @param clientId      OAuth client ID
+     * @param clientSecret  OAuth client secret, may be null for public clients
+     */
+    public TokenRevocationClient(String revocationUrl, String clientId, String clientSecret)
+    {
+        this.revocationUrl = revocationUrl;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+    }
+
+    /**
+     * Revoke a token
+     *
+     * @param token     The token to revoke
+     * @param tokenType Either {@link #TOKEN_TYPE_ACCESS_TOKEN} or {@link #TOKEN_TYPE_REFRESH_TOKEN}
+     * @return true if the provider accepted the request
+     */
+    public boolean revoke(String token, String tokenType)
+    {
+        HttpURLConnection connection = null;
+        try
+        {
+            StringBuilder body = new StringBuilder("token=").append(encode(token))
+                    .append("&token_type_hint=").append(tokenType);
+            if (clientId != null)
+            {
+                body.append("&client_id=").append(encode(clientId));
+            }
+            if (clientSecret != null)
+            {
+                body.append("&client_secret=").append(encode(clientSecret));
+            }
+            byte[] bytes = body.toString().getBytes("UTF-8");
+
+            connection = (HttpURLConnection) new URL(revocationUrl).openConnection();
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setFixedLengthStreamingMode(bytes.length);
+            OutputStream out = connection.getOutputStream();
+            try
+            {
+                out.write(bytes);
+            }
+            finally
+            {
+                out.close();
+            }
+
+            int statusCode = connection.getResponseCode();
+            InputStream in = statusCode < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null)
+            {
+                in.close();
+            }
+            if (statusCode != HttpURLConnection.HTTP_OK)
+            {
+                logger.warn("Token revocation failed, received response code " + statusCode + " from " + revocationUrl);
+                return false;
+            }
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Error revoking token at " + revocationUrl, e);
+            return false;
+        }
+        finally
+        {
+            if (connection != null)
+            {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static String encode(String value) throws UnsupportedEncodingException
+    {
+        return URLEncoder.encode(value, "UTF-8");
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.sharextras.oauth.repo.tokenstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.alfresco.query.PagingRequest;
+import org.alfresco.query.PagingResults;
+import org.alfresco.repo.batch.BatchProcessWorkProvider;
+import org.alfresco.repo.security.authentication.AuthenticationUtil;
+import org.alfresco.repo.security.authentication.AuthenticationUtil.RunAsWork;
+import org.alfresco.repo.transaction.RetryingTransactionHelper;
+import org.alfresco.repo.transaction.RetryingTransactionHelper.RetryingTransactionCallback;
+import org.alfresco.service.cmr.security.PersonService;
+import org.alfresco.service.cmr.security.PersonService.PersonInfo;
+
+/**
+ * Supplies user names to a batch process, either from a fixed list or by paging through all people in the
+ * repository. Each page is read in its own read-only transaction, so that no long-running transaction is
+ * held open while the batch process runs.
+ */
+public class UserWorkProvider implements BatchProcessWorkProvider<String>
+{
+    private final PersonService personService;
+    private final RetryingTransactionHelper transactionHelper;
+    private final int pageSize;
+
+    private final List<String> userNames;
+    private int skipCount = 0;
+    private boolean hasMore = true;
+
+    /**
+     * @param personService     Person service used to list users, if no list is given
+     * @param transactionHelper Used to read each page of users in its own transaction
+     * @param userNames         User names to process, or null to process all users
+     * @param pageSize          Number of users to supply in each call
+     */
+    public UserWorkProvider(PersonService personService, RetryingTransactionHelper transactionHelper,
+            List<String> userNames, int pageSize)
+    {
+        this.personService = personService;
+        this.transactionHelper = transactionHelper;
+        this.userNames = userNames;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public int getTotalEstimatedWorkSize()
+    {
+        if (userNames != null)
+        {
+            return userNames.size();
+        }
+        return AuthenticationUtil.runAsSystem(new RunAsWork<Integer>()
+        {
+            public Integer doWork() throws Exception
+            {
+                return transactionHelper.doInTransaction(new RetryingTransactionCallback<Integer>()
+                {
+                    public Integer execute() throws Throwable
+                    {
+                        return personService.countPeople();
+                    }
+                }, true, true);
+            }
+        });
+    }
+
+    @Override
+    public Collection<String> getNextWork()
+    {
+        if (!hasMore)
+        {
+            return Collections.emptyList();
+        }
+        if (userNames != null)
+        {
+            int end = Math.min(skipCount + pageSize, userNames.size());
+            List<String> page = new ArrayList<String>(userNames.subList(skipCount, end));
+            skipCount = end;
+            hasMore = end < userNames.size();
+            return page;
+        }
+        return AuthenticationUtil.runAsSystem(new RunAsWork<Collection<String>>()
+        {
+            public Collection<String> doWork() throws Exception
+            {
+                return transactionHelper.doInTransaction(new RetryingTransactionCallback<Collection<String>>()
+                {
+                    public Collection<String> execute() throws Throwable
+                    {
+                        PagingResults<PersonInfo> people = personService.getPeople(
+                                null, null, null, new PagingRequest(skipCount, pageSize));
+                        List<String> page = new ArrayList<String>(pageSize);
+                        for (PersonInfo person : people.getPage())
+                        {
+                            page.add(person.getUserName());
+                        }
+                        skipCount += page.size();
+                        hasMore = people.hasMoreItems() && !page.isEmpty();
+                        return page;
+                    }
+                }, true, true);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.io.IOException;
+
+import org.alfresco.repo.batch.BatchProcessor;
+import org.alfresco.util.ISO8601DateFormat;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONStringer;
+import org.json.JSONWriter;
+import org.sharextras.oauth.repo.tokenstore.OAuth2TokenBulkRevoker;
+import org.sharextras.oauth.repo.tokenstore.OAuth2TokenBulkRevoker.RevocationJob;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Base class for the bulk token revocation web scripts, which report the status of a revocation job.
+ */
+public abstract class AbstractBulkRevokeWebScript extends AbstractWebScript
+{
+
+    // Services
+    protected OAuth2TokenBulkRevoker    oauth2TokenBulkRevoker;
+    
+    public void setOauth2TokenBulkRevoker(OAuth2TokenBulkRevoker oauth2TokenBulkRevoker)
+    {
+        this.oauth2TokenBulkRevoker = oauth2TokenBulkRevoker;
+    }
+
+    /**
+     * Write the progress of a job to the response as JSON
+     */
+    protected void writeJobStatus(RevocationJob job, WebScriptResponse resp) throws IOException
+    {
+        BatchProcessor<String> batchProcessor = job.getBatchProcessor();
+        try
+        {
+            resp.setContentType(Format.JSON.mimetype());
+            resp.setContentEncoding("UTF-8");
+            // Start object
+            JSONWriter jsonObj = new JSONStringer().object();
+            // Criteria
+            jsonObj.key("remoteSystem").value(job.getRemoteSystem());
+            jsonObj.key("userCount").value(job.getUserNames() != null ? job.getUserNames().size() : -1);
+            jsonObj.key("issuedBefore").value(job.getIssuedBefore() != null ? ISO8601DateFormat.format(job.getIssuedBefore()) : null);
+            jsonObj.key("revoke").value(job.isRevoke());
+            // Progress
+            jsonObj.key("finished").value(job.isFinished());
+            jsonObj.key("startTime").value(batchProcessor.getStartTime() != null ? ISO8601DateFormat.format(batchProcessor.getStartTime()) : null);
+            jsonObj.key("endTime").value(batchProcessor.getEndTime() != null ? ISO8601DateFormat.format(batchProcessor.getEndTime()) : null);
+            jsonObj.key("totalUsers").value(batchProcessor.getTotalResults());
+            jsonObj.key("processedUsers").value(batchProcessor.getSuccessfullyProcessedEntries());
+            jsonObj.key("percentComplete").value(batchProcessor.getPercentComplete());
+            jsonObj.key("errors").value(batchProcessor.getTotalErrors());
+            jsonObj.key("lastError").value(batchProcessor.getLastError());
+            jsonObj.key("credentialsRemoved").value(job.getCredentialsRemoved());
+            jsonObj.key("providerRevocations").value(job.getProviderRevocations());
+            jsonObj.key("providerRevocationFailures").value(job.getProviderRevocationFailures());
+            jsonObj.key("failedRevocations").value(new JSONArray(job.getFailedRevocations()));
+            // End object
+            jsonObj.endObject();
+            
+            // Write JSON to the response body
+            resp.getWriter().write(jsonObj.toString());
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException("Error building JSON data", e);
+        }
+    }
+
+}
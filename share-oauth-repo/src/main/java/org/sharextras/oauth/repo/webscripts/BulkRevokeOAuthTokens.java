@@ -0,0 +1,96 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.sharextras.oauth.repo.tokenstore.OAuth2TokenBulkRevoker.RevocationJob;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Start a background job to remove OAuth 2.0 credentials in bulk, selected by remote system, user list and/or age.
+ * Tokens are revoked at the provider first if <code>revoke</code> is true, using the revocation endpoint configured
+ * for each remote system. Endpoints and client credentials are never taken from the request.
+ */
+public class BulkRevokeOAuthTokens extends AbstractBulkRevokeWebScript
+{
+    private static final long MS_PER_DAY = 24L * 60L * 60L * 1000L;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp)
+            throws IOException
+    {
+        String remoteSystem = null;
+        List<String> userNames = null;
+        Date issuedBefore = null;
+        boolean revoke = false;
+        
+        try
+        {
+            JSONObject reqJson = new JSONObject(new JSONTokener(req.getContent().getContent()));
+            
+            if (reqJson.has("remoteSystem"))
+            {
+                remoteSystem = reqJson.getString("remoteSystem");
+            }
+            if (reqJson.has("users"))
+            {
+                JSONArray users = reqJson.getJSONArray("users");
+                userNames = new ArrayList<String>(users.length());
+                for (int i = 0; i < users.length(); i++)
+                {
+                    userNames.add(users.getString(i));
+                }
+            }
+            if (reqJson.has("olderThanDays"))
+            {
+                issuedBefore = new Date(System.currentTimeMillis() - reqJson.getLong("olderThanDays") * MS_PER_DAY);
+            }
+            if (reqJson.has("revocationUrl") || reqJson.has("clientId") || reqJson.has("clientSecret"))
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, 
+                        "Revocation endpoints are configured for each remote system on the server, set revoke instead");
+            }
+            if (reqJson.has("revoke"))
+            {
+                revoke = reqJson.getBoolean("revoke");
+            }
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "A problem occurred parsing the request JSON", e);
+        }
+        
+        if (remoteSystem == null && userNames == null && issuedBefore == null)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, 
+                    "At least one of remoteSystem, users or olderThanDays must be specified");
+        }
+        
+        RevocationJob job;
+        try
+        {
+            job = oauth2TokenBulkRevoker.start(remoteSystem, userNames, issuedBefore, revoke);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage());
+        }
+        catch (IllegalStateException e)
+        {
+            throw new WebScriptException(Status.STATUS_CONFLICT, e.getMessage());
+        }
+        
+        resp.setStatus(Status.STATUS_ACCEPTED);
+        writeJobStatus(job, resp);
+    }
+
+}
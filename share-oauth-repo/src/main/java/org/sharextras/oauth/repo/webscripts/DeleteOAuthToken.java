@@ -29,18 +29,26 @@ public class DeleteOAuthToken extends AbstractWebScript
     public void execute(WebScriptRequest req, WebScriptResponse resp)
             throws IOException
     {
-        String keyName = req.getServiceMatch().getTemplateVars().get("name");
-        
-        if (keyName == null || "".equals(keyName))
+        TokenStoreSpan span = TokenStoreSpan.start(req, "tokenstore.delete", req.getServiceMatch().getTemplateVars().get("name"));
+        try
         {
-            throw new WebScriptException("A key name must be specified");
-        }
+            String keyName = req.getServiceMatch().getTemplateVars().get("name");
         
-        boolean result = oauth2CredentialsStoreService.deletePersonalOAuth2Credentials(keyName);
+            if (keyName == null || "".equals(keyName))
+            {
+                throw new WebScriptException("A key name must be specified");
+            }
         
-        if (!result)
+            boolean result = oauth2CredentialsStoreService.deletePersonalOAuth2Credentials(keyName);
+        
+            if (!result)
+            {
+                throw new WebScriptException(Status.STATUS_NOT_FOUND, "Could not find credentials with name " + keyName);
+            }
+        }
+        finally
         {
-            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Could not find credentials with name " + keyName);
+            TokenStoreSpan.end(span);
         }
     }
 
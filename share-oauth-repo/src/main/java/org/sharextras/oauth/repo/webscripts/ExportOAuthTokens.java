@@ -0,0 +1,47 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.io.IOException;
+
+import org.sharextras.oauth.repo.tokenstore.OAuth2CredentialsTransfer;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Stream the OAuth 2.0 credentials of all users as newline-delimited JSON, with token values encrypted.
+ */
+public class ExportOAuthTokens extends AbstractWebScript
+{
+    public static final String HEADER_PASSPHRASE = "X-Credentials-Passphrase";
+    public static final String MIMETYPE_NDJSON = "application/x-ndjson";
+
+    // Services
+    private OAuth2CredentialsTransfer    oauth2CredentialsTransfer;
+    
+    public void setOauth2CredentialsTransfer(OAuth2CredentialsTransfer oauth2CredentialsTransfer)
+    {
+        this.oauth2CredentialsTransfer = oauth2CredentialsTransfer;
+    }
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp)
+            throws IOException
+    {
+        String passphrase = req.getHeader(HEADER_PASSPHRASE),
+                remoteSystem = req.getParameter("remoteSystem");
+        
+        if (passphrase == null || "".equals(passphrase))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "A passphrase must be specified in the " + 
+                    HEADER_PASSPHRASE + " header");
+        }
+        
+        resp.setContentType(MIMETYPE_NDJSON);
+        resp.setContentEncoding("UTF-8");
+        resp.setHeader("Content-Disposition", "attachment; filename=\"oauth2-credentials.ndjson\"");
+        oauth2CredentialsTransfer.exportCredentials(resp.getWriter(), remoteSystem, passphrase);
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.io.IOException;
+
+import org.sharextras.oauth.repo.tokenstore.OAuth2TokenBulkRevoker.RevocationJob;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Report the progress of the current or most recent bulk token revocation job.
+ */
+public class GetBulkRevokeStatus extends AbstractBulkRevokeWebScript
+{
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp)
+            throws IOException
+    {
+        RevocationJob job = oauth2TokenBulkRevoker.getCurrentJob();
+        
+        if (job == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "No bulk revocation job has been started");
+        }
+        
+        writeJobStatus(job, resp);
+    }
+
+}
@@ -0,0 +1,74 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.alfresco.util.ISO8601DateFormat;
+import org.json.JSONException;
+import org.json.JSONStringer;
+import org.json.JSONWriter;
+import org.sharextras.oauth.repo.tokenstore.OAuth2CredentialsCleaner;
+import org.sharextras.oauth.repo.tokenstore.OAuth2CredentialsCleaner.CleanupReport;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Report the credentials removed by the most recent run of the scheduled credentials cleanup on this node.
+ */
+public class GetCredentialsCleanupReport extends AbstractWebScript
+{
+
+    // Services
+    private OAuth2CredentialsCleaner    oauth2CredentialsCleaner;
+    
+    public void setOauth2CredentialsCleaner(OAuth2CredentialsCleaner oauth2CredentialsCleaner)
+    {
+        this.oauth2CredentialsCleaner = oauth2CredentialsCleaner;
+    }
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp)
+            throws IOException
+    {
+        CleanupReport report = oauth2CredentialsCleaner.getLastReport();
+        
+        if (report == null)
+        {
+            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Credentials cleanup has not run on this node");
+        }
+        
+        try
+        {
+            resp.setContentType(Format.JSON.mimetype());
+            resp.setContentEncoding("UTF-8");
+            // Start object
+            JSONWriter jsonObj = new JSONStringer().object();
+            jsonObj.key("startTime").value(ISO8601DateFormat.format(report.getStartTime()));
+            jsonObj.key("endTime").value(report.getEndTime() != null ? ISO8601DateFormat.format(report.getEndTime()) : null);
+            jsonObj.key("complete").value(report.isComplete());
+            jsonObj.key("usersScanned").value(report.getUsersScanned());
+            jsonObj.key("credentialsRemoved").value(report.getCredentialsRemoved());
+            // Counts for each remote system
+            jsonObj.key("removedBySystem").object();
+            for (Map.Entry<String, Integer> entry : report.getRemovedBySystem().entrySet())
+            {
+                jsonObj.key(entry.getKey()).value(entry.getValue());
+            }
+            jsonObj.endObject();
+            // End object
+            jsonObj.endObject();
+            
+            // Write JSON to the response body
+            resp.getWriter().write(jsonObj.toString());
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException("Error building JSON data", e);
+        }
+    }
+
+}
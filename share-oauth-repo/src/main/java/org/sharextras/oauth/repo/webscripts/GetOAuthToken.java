@@ -34,42 +34,53 @@ public class GetOAuthToken extends AbstractWebScript
     public void execute(WebScriptRequest req, WebScriptResponse resp)
             throws IOException
     {
-        String keyName = req.getServiceMatch().getTemplateVars().get("name");
-        
-        if (keyName == null || "".equals(keyName))
+        TokenStoreSpan span = TokenStoreSpan.start(req, "tokenstore.get", req.getServiceMatch().getTemplateVars().get("name"));
+        try
         {
-            throw new WebScriptException("A key name must be specified");
-        }
+            String keyName = req.getServiceMatch().getTemplateVars().get("name");
+        
+            if (keyName == null || "".equals(keyName))
+            {
+                throw new WebScriptException("A key name must be specified");
+            }
         
-        OAuth2CredentialsInfo credentialInfo = oauth2CredentialsStoreService.getPersonalOAuth2Credentials(keyName);
+            OAuth2CredentialsInfo credentialInfo = oauth2CredentialsStoreService.getPersonalOAuth2Credentials(keyName);
         
-        if (credentialInfo != null)
-        {
-            try
+            if (credentialInfo != null)
             {
-                resp.setContentType(Format.JSON.mimetype());
-                resp.setContentEncoding("UTF-8");
-                // Start object
-                JSONWriter jsonObj = new JSONStringer().object();
-                // Add string values
-                jsonObj.key("accessToken").value(credentialInfo.getOAuthAccessToken());
-                jsonObj.key("refreshToken").value(credentialInfo.getOAuthRefreshToken());
-                jsonObj.key("ticketExpiresAt").value(credentialInfo.getOAuthTicketExpiresAt());
-                jsonObj.key("ticketTokenIssuedAt").value(credentialInfo.getOAuthTicketIssuedAt());
-                // End object
-                jsonObj.endObject();
+                try
+                {
+                    resp.setContentType(Format.JSON.mimetype());
+                    resp.setContentEncoding("UTF-8");
+                    // Start object
+                    JSONWriter jsonObj = new JSONStringer().object();
+                    // Add string values
+                    jsonObj.key("accessToken").value(credentialInfo.getOAuthAccessToken());
+                    jsonObj.key("refreshToken").value(credentialInfo.getOAuthRefreshToken());
+                    jsonObj.key("ticketExpiresAt").value(credentialInfo.getOAuthTicketExpiresAt());
+                    jsonObj.key("ticketTokenIssuedAt").value(credentialInfo.getOAuthTicketIssuedAt());
+                    // Add expiry time in milliseconds, in the same form as it is saved
+                    jsonObj.key("expiresAt").value(credentialInfo.getOAuthTicketExpiresAt() != null ? 
+                            Long.valueOf(credentialInfo.getOAuthTicketExpiresAt().getTime()) : null);
+                    // End object
+                    jsonObj.endObject();
                 
-                // Write JSON to the response body
-                resp.getWriter().write(jsonObj.toString());
+                    // Write JSON to the response body
+                    resp.getWriter().write(jsonObj.toString());
+                }
+                catch (JSONException e)
+                {
+                    throw new WebScriptException("Error building JSON data", e);
+                }
             }
-            catch (JSONException e)
+            else
             {
-                throw new WebScriptException("Error building JSON data", e);
+                throw new WebScriptException(Status.STATUS_NOT_FOUND, "Could not find credentials with name " + keyName);
             }
         }
-        else
+        finally
         {
-            throw new WebScriptException(Status.STATUS_NOT_FOUND, "Could not find credentials with name " + keyName);
+            TokenStoreSpan.end(span);
         }
     }
 
@@ -0,0 +1,78 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.io.IOException;
+
+import org.alfresco.error.AlfrescoRuntimeException;
+import org.alfresco.repo.batch.BatchProcessor;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.json.JSONWriter;
+import org.sharextras.oauth.repo.tokenstore.OAuth2CredentialsTransfer;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Import OAuth 2.0 credentials from newline-delimited JSON, as produced by {@link ExportOAuthTokens}.
+ */
+public class ImportOAuthTokens extends AbstractWebScript
+{
+
+    // Services
+    private OAuth2CredentialsTransfer    oauth2CredentialsTransfer;
+    
+    public void setOauth2CredentialsTransfer(OAuth2CredentialsTransfer oauth2CredentialsTransfer)
+    {
+        this.oauth2CredentialsTransfer = oauth2CredentialsTransfer;
+    }
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp)
+            throws IOException
+    {
+        String passphrase = req.getHeader(ExportOAuthTokens.HEADER_PASSPHRASE);
+        
+        if (passphrase == null || "".equals(passphrase))
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "A passphrase must be specified in the " + 
+                    ExportOAuthTokens.HEADER_PASSPHRASE + " header");
+        }
+        
+        BatchProcessor<JSONObject> result;
+        try
+        {
+            result = oauth2CredentialsTransfer.importCredentials(req.getContent().getReader(), passphrase);
+        }
+        catch (AlfrescoRuntimeException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, e.getMessage(), e);
+        }
+        
+        try
+        {
+            resp.setContentType(Format.JSON.mimetype());
+            resp.setContentEncoding("UTF-8");
+            // Start object
+            JSONWriter jsonObj = new JSONStringer().object();
+            // Add values
+            jsonObj.key("imported").value(result.getSuccessfullyProcessedEntries());
+            jsonObj.key("errors").value(result.getTotalErrors());
+            jsonObj.key("lastError").value(result.getLastError());
+            jsonObj.key("lastErrorEntry").value(result.getLastErrorEntryId());
+            // End object
+            jsonObj.endObject();
+            
+            // Write JSON to the response body
+            resp.getWriter().write(jsonObj.toString());
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException("Error building JSON data", e);
+        }
+    }
+
+}
@@ -37,46 +37,49 @@ public class SaveOAuthToken extends AbstractWebScript
     public void execute(WebScriptRequest req, WebScriptResponse arg1)
             throws IOException
     {
-        String jsonStr = req.getContent().getContent();
-        if (logger.isDebugEnabled())
-        {
-            logger.debug("Got JSON data: " + jsonStr);
-        }
-        
+        TokenStoreSpan span = TokenStoreSpan.start(req, "tokenstore.save", req.getServiceMatch().getTemplateVars().get("name"));
         try
         {
-            JSONObject reqJson = new JSONObject(new JSONTokener(jsonStr));
+            String jsonStr = req.getContent().getContent();
+            try
+            {
+                JSONObject reqJson = new JSONObject(new JSONTokener(jsonStr));
 
-            String remoteSystem = reqJson.getString("name"), 
-                    accessToken = reqJson.has("accessToken") ? reqJson.getString("accessToken") : null, 
-                    refreshToken = reqJson.has("refreshToken") ? reqJson.getString("refreshToken") : null;
+                String remoteSystem = reqJson.getString("name"), 
+                        accessToken = reqJson.has("accessToken") ? reqJson.getString("accessToken") : null, 
+                        refreshToken = reqJson.has("refreshToken") ? reqJson.getString("refreshToken") : null;
             
-            // TODO Throw appropriate WebScriptExceptions if required parameters (name, accessToken) not found
+                // TODO Throw appropriate WebScriptExceptions if required parameters (name, accessToken) not found
             
-            if (logger.isDebugEnabled())
-            {
-                logger.debug("Name: " + remoteSystem);
-                logger.debug("Access token: " + accessToken);
-                logger.debug("Refresh token: " + refreshToken);
-            }
+                if (logger.isDebugEnabled())
+                {
+                    logger.debug("Saving tokens for " + remoteSystem + (refreshToken != null ? " with" : " without") + " refresh token");
+                }
             
-            Date expiresIn = null; // TODO need to pick an arbitrary date?
+                // Expiry time in milliseconds since the epoch, if the provider gave one
+                Date expiresAt = reqJson.has("expiresAt") && !reqJson.isNull("expiresAt") ? 
+                        new Date(reqJson.getLong("expiresAt")) : null;
+            
+                try
+                {
+                    oauth2CredentialsStoreService.storePersonalOAuth2Credentials(remoteSystem, accessToken, refreshToken, expiresAt, new Date());
+                }
+                catch (NoSuchSystemException nsse)
+                {
+                    throw nsse;
+                }
             
-            try
-            {
-                oauth2CredentialsStoreService.storePersonalOAuth2Credentials(remoteSystem, accessToken, refreshToken, expiresIn, new Date());
             }
-            catch (NoSuchSystemException nsse)
+            catch (JSONException e)
             {
-                throw nsse;
+                throw new WebScriptException("A problem occurred parsing the request JSON", e);
             }
-            
+        
         }
-        catch (JSONException e)
+        finally
         {
-            throw new WebScriptException("A problem occurred parsing the request JSON", e);
+            TokenStoreSpan.end(span);
         }
-        
     }
 
 }
@@ -0,0 +1,148 @@
+package org.sharextras.oauth.repo.webscripts;
+
+import java.util.Random;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+
+/**
+ * Span for a token store web script called by Share, continuing the trace given in the request's W3C
+ * <code>traceparent</code> header so that the time spent in the repository can be seen in the same trace as the
+ * proxied request.
+ *
+ * Spans are only recorded when the caller has sampled the trace, and are written to the log as a line of JSON at
+ * INFO level, in the same form as the spans written by Share.
+ */
+public class TokenStoreSpan
+{
+    private static final String HEADER_TRACEPARENT = "traceparent";
+    private static final int TRACEPARENT_LENGTH = 55;
+
+    private static Log logger = LogFactory.getLog(TokenStoreSpan.class);
+
+    private static final Random random = new Random();
+
+    private final String name;
+    private final String traceId;
+    private final String parentSpanId;
+    private final String keyName;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private TokenStoreSpan(String name, String traceId, String parentSpanId, String keyName)
+    {
+        this.name = name;
+        this.traceId = traceId;
+        this.parentSpanId = parentSpanId;
+        this.keyName = keyName;
+    }
+
+    /**
+     * Start a span for a web script
+     *
+     * @param req       The web script request
+     * @param name      Name of the stage
+     * @param keyName   Name of the credentials being used
+     * @return The span, or null if the request is not part of a sampled trace
+     */
+    public static TokenStoreSpan start(WebScriptRequest req, String name, String keyName)
+    {
+        String traceparent = req.getHeader(HEADER_TRACEPARENT);
+        if (!logger.isInfoEnabled() || !isValidTraceparent(traceparent) ||
+                (Character.digit(traceparent.charAt(54), 16) & 1) != 1)
+        {
+            return null;
+        }
+        return new TokenStoreSpan(name, traceparent.substring(3, 35), traceparent.substring(36, 52), keyName);
+    }
+
+    /**
+     * Whether a <code>traceparent</code> header value can be continued, checked in the same way as by Share. Later
+     * versions may add fields after the flags, which are ignored.
+     */
+    private static boolean isValidTraceparent(String traceparent)
+    {
+        if (traceparent == null || traceparent.length() < TRACEPARENT_LENGTH ||
+                (traceparent.length() > TRACEPARENT_LENGTH && traceparent.charAt(TRACEPARENT_LENGTH) != '-') ||
+                traceparent.startsWith("ff") || traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' ||
+                traceparent.charAt(52) != '-')
+        {
+            return false;
+        }
+        return isHex(traceparent, 0, 2) && isHex(traceparent, 3, 35) && isHex(traceparent, 36, 52) &&
+                isHex(traceparent, 53, 55) && !isZero(traceparent, 3, 35) && !isZero(traceparent, 36, 52);
+    }
+
+    private static boolean isHex(String value, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(String value, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (value.charAt(i) != '0')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * End a span, if one was started, and write it to the log
+     *
+     * @param span  The span, or null
+     */
+    public static void end(TokenStoreSpan span)
+    {
+        if (span == null)
+        {
+            return;
+        }
+        try
+        {
+            JSONObject json = new JSONObject();
+            json.put("traceId", span.traceId);
+            json.put("spanId", newSpanId());
+            json.put("parentSpanId", span.parentSpanId);
+            json.put("name", span.name);
+            json.put("start", span.startTime);
+            json.put("durationMicros", (System.nanoTime() - span.startNanos) / 1000L);
+            json.put("attributes", new JSONObject().put("remoteSystem", span.keyName));
+            logger.info(json.toString());
+        }
+        catch (JSONException e)
+        {
+            logger.warn("Unable to write span " + span.name, e);
+        }
+    }
+
+    private static String newSpanId()
+    {
+        long id;
+        synchronized (random)
+        {
+            do
+            {
+                id = random.nextLong();
+            }
+            while (id == 0L);
+        }
+        String hex = Long.toHexString(id);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+}
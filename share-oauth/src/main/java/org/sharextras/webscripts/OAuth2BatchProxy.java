@@ -0,0 +1,435 @@
+package org.sharextras.webscripts;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.sharextras.webscripts.connector.HttpOAuth2Connector;
+import org.sharextras.webscripts.connector.OAuth2AuthenticatingConnector;
+import org.springframework.extensions.config.RemoteConfigElement.ConnectorDescriptor;
+import org.springframework.extensions.config.RemoteConfigElement.EndpointDescriptor;
+import org.springframework.extensions.surf.RequestContext;
+import org.springframework.extensions.surf.ServletUtil;
+import org.springframework.extensions.surf.exception.ConnectorServiceException;
+import org.springframework.extensions.surf.exception.CredentialVaultProviderException;
+import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+import org.springframework.extensions.webscripts.connector.Connector;
+import org.springframework.extensions.webscripts.connector.ConnectorContext;
+import org.springframework.extensions.webscripts.connector.ConnectorService;
+import org.springframework.extensions.webscripts.connector.HttpMethod;
+import org.springframework.extensions.webscripts.connector.Response;
+import org.springframework.extensions.webscripts.connector.User;
+
+/**
+ * Web script which makes a batch of requests to OAuth 2.0 endpoints in parallel, so that a page which shows data
+ * from several providers needs only one round trip from the browser.
+ *
+ * <p>The request body is a JSON object with a <code>requests</code> array. Each item gives the
+ * <code>endpoint</code> ID and <code>uri</code> to call, and optionally an <code>id</code>, <code>method</code>,
+ * <code>headers</code> object and string <code>body</code>. The response is a JSON array with one object for
+ * each item, in the same order, giving its <code>id</code>, <code>status</code>, <code>contentType</code> and
+ * <code>body</code>, or an <code>error</code> message if the request could not be made.</p>
+ *
+ * <p>The user's tokens for each endpoint are loaded once, before any requests are made, and the requests are
+ * then made in the background through the endpoint's connector on a bounded pool of threads, in the same way as
+ * <code>oauth2Remote</code> calls. Requests to the same endpoint share the user's connector session, and an
+ * expired or rejected access token is refreshed only once for all of them. Only the method, URI, headers and
+ * body of each item are passed to the background threads, never the servlet request or response, so requests
+ * which are abandoned when the batch times out cannot touch them.</p>
+ */
+public class OAuth2BatchProxy extends AbstractWebScript
+{
+    /* JSON property names */
+    private static final String JSON_REQUESTS = "requests";
+    private static final String JSON_ID = "id";
+    private static final String JSON_ENDPOINT = "endpoint";
+    private static final String JSON_URI = "uri";
+    private static final String JSON_METHOD = "method";
+    private static final String JSON_HEADERS = "headers";
+    private static final String JSON_BODY = "body";
+    private static final String JSON_STATUS = "status";
+    private static final String JSON_CONTENT_TYPE = "contentType";
+    private static final String JSON_ERROR = "error";
+
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_HOST = "Host";
+
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    private static final List<String> ALLOWED_METHODS = java.util.Arrays.asList("GET", "POST", "PUT", "DELETE");
+
+    private static Log logger = LogFactory.getLog(OAuth2BatchProxy.class);
+
+    private ConnectorService connectorService;
+
+    private int maxRequests = 20;
+
+    private long timeout = 30000L;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp) throws IOException
+    {
+        RequestContext context = ThreadLocalRequestContext.getRequestContext();
+        User user = context != null ? context.getUser() : null;
+        HttpSession httpSession = ServletUtil.getSession();
+        if (user == null || httpSession == null)
+        {
+            throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "No user session is available");
+        }
+        String userId = user.getId();
+
+        List<BatchItem> items = parseItems(req.getContent().getContent());
+
+        // Load the tokens for each endpoint once, in this thread, so the requests themselves need no lookups
+        Map<String, HttpOAuth2Connector> connectors = new HashMap<String, HttpOAuth2Connector>();
+        Map<String, String> endpointErrors = new HashMap<String, String>();
+        Map<String, Integer> endpointStatus = new HashMap<String, Integer>();
+        for (BatchItem item : items)
+        {
+            if (item.error == null && !endpointStatus.containsKey(item.endpointId))
+            {
+                prepareEndpoint(item.endpointId, userId, httpSession, connectors, endpointStatus, endpointErrors);
+            }
+        }
+
+        for (BatchItem item : items)
+        {
+            if (item.error == null && endpointStatus.get(item.endpointId) != null)
+            {
+                item.fail(endpointStatus.get(item.endpointId), endpointErrors.get(item.endpointId));
+            }
+            if (item.error == null)
+            {
+                submit(item, connectors.get(item.endpointId), httpSession);
+            }
+        }
+
+        long deadline = System.currentTimeMillis() + timeout;
+        for (BatchItem item : items)
+        {
+            if (item.future != null)
+            {
+                await(item, deadline);
+            }
+        }
+
+        writeResponse(items, resp);
+    }
+
+    /**
+     * Read the items of the batch from the request body. Items which are not valid are marked as failed, but
+     * do not stop the rest of the batch.
+     */
+    private List<BatchItem> parseItems(String content)
+    {
+        JSONArray requests;
+        try
+        {
+            JSONObject json = new JSONObject(new JSONTokener(content));
+            requests = json.getJSONArray(JSON_REQUESTS);
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Request body must be a JSON object with a requests array");
+        }
+        if (requests.length() == 0)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "No requests were given");
+        }
+        if (requests.length() > maxRequests)
+        {
+            throw new WebScriptException(Status.STATUS_BAD_REQUEST, "At most " + maxRequests + " requests may be made in a batch");
+        }
+
+        List<BatchItem> items = new ArrayList<BatchItem>(requests.length());
+        for (int i = 0; i < requests.length(); i++)
+        {
+            JSONObject request = requests.optJSONObject(i);
+            BatchItem item = new BatchItem(request != null ? request.optString(JSON_ID, String.valueOf(i)) : String.valueOf(i));
+            items.add(item);
+            if (request == null)
+            {
+                item.fail(Status.STATUS_BAD_REQUEST, "Request must be a JSON object");
+                continue;
+            }
+            item.endpointId = request.optString(JSON_ENDPOINT, null);
+            item.uri = request.optString(JSON_URI, null);
+            item.method = request.optString(JSON_METHOD, "GET").toUpperCase();
+            item.body = request.optString(JSON_BODY, null);
+            JSONObject headers = request.optJSONObject(JSON_HEADERS);
+            if (headers != null)
+            {
+                for (Iterator<?> it = headers.keys(); it.hasNext(); )
+                {
+                    String name = (String) it.next();
+                    if (!HEADER_CONTENT_LENGTH.equalsIgnoreCase(name) && !HEADER_HOST.equalsIgnoreCase(name))
+                    {
+                        item.headers.put(name, headers.optString(name));
+                    }
+                }
+            }
+
+            if (item.endpointId == null || item.endpointId.length() == 0)
+            {
+                item.fail(Status.STATUS_BAD_REQUEST, "No endpoint ID was specified");
+            }
+            else if (item.uri == null || !item.uri.startsWith("/"))
+            {
+                item.fail(Status.STATUS_BAD_REQUEST, "URI must be given and start with /");
+            }
+            else if (!ALLOWED_METHODS.contains(item.method))
+            {
+                item.fail(Status.STATUS_METHOD_NOT_ALLOWED, "Method " + item.method + " is not supported");
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Check that the endpoint uses an OAuth 2.0 connector, and make sure that the user's connector session for it
+     * holds their tokens. Any problem is recorded against the endpoint, so that it is reported for each of its
+     * requests.
+     */
+    private void prepareEndpoint(String endpointId, String userId, HttpSession httpSession, Map<String, HttpOAuth2Connector> connectors,
+            Map<String, Integer> endpointStatus, Map<String, String> endpointErrors)
+    {
+        endpointStatus.put(endpointId, null);
+
+        EndpointDescriptor epd = connectorService.getRemoteConfig().getEndpointDescriptor(endpointId);
+        ConnectorDescriptor cd = epd != null && epd.getConnectorId() != null ?
+                connectorService.getRemoteConfig().getConnectorDescriptor(epd.getConnectorId()) : null;
+        if (cd == null || !isOAuth2Connector(cd))
+        {
+            endpointStatus.put(endpointId, Status.STATUS_NOT_FOUND);
+            endpointErrors.put(endpointId, "OAuth 2.0 endpoint " + endpointId + " could not be found");
+            return;
+        }
+
+        try
+        {
+            Connector connector = connectorService.getConnector(endpointId, userId, httpSession);
+            if (connector instanceof OAuth2AuthenticatingConnector)
+            {
+                connector = ((OAuth2AuthenticatingConnector) connector).getWrappedConnector();
+            }
+            if (!(connector instanceof HttpOAuth2Connector))
+            {
+                endpointStatus.put(endpointId, Status.STATUS_NOT_FOUND);
+                endpointErrors.put(endpointId, "OAuth 2.0 endpoint " + endpointId + " could not be found");
+                return;
+            }
+            // Loads the tokens from the repository, unless the vault already holds them
+            HttpOAuth2Connector oauthConnector = (HttpOAuth2Connector) connector;
+            if (!oauthConnector.prepareTokens(httpSession))
+            {
+                endpointStatus.put(endpointId, Status.STATUS_UNAUTHORIZED);
+                endpointErrors.put(endpointId, "No access token is present");
+                return;
+            }
+            connectors.put(endpointId, oauthConnector);
+        }
+        catch (ConnectorServiceException e)
+        {
+            logger.error("Unable to obtain connector for endpoint " + endpointId, e);
+            endpointStatus.put(endpointId, Status.STATUS_INTERNAL_SERVER_ERROR);
+            endpointErrors.put(endpointId, "Unable to obtain connector for endpoint " + endpointId);
+        }
+        catch (CredentialVaultProviderException e)
+        {
+            logger.error("Unable to obtain credential vault for endpoint " + endpointId, e);
+            endpointStatus.put(endpointId, Status.STATUS_INTERNAL_SERVER_ERROR);
+            endpointErrors.put(endpointId, "Unable to obtain credential vault for OAuth credentials");
+        }
+    }
+
+    private boolean isOAuth2Connector(ConnectorDescriptor cd)
+    {
+        try
+        {
+            return cd.getImplementationClass() != null && HttpOAuth2Connector.class.isAssignableFrom(
+                    Class.forName(cd.getImplementationClass(), false, getClass().getClassLoader()));
+        }
+        catch (ClassNotFoundException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Start an item in the background. The call is given copies of the item's method, URI, headers and body, and
+     * each call is made by its own connector sharing the user's connector session for the endpoint, so that the
+     * tokens are refreshed at most once for all of the items.
+     */
+    private void submit(BatchItem item, HttpOAuth2Connector connector, HttpSession httpSession)
+    {
+        Map<String, String> headers = new HashMap<String, String>(item.headers);
+        headers.remove(HEADER_CONTENT_TYPE);
+        ConnectorContext context = new ConnectorContext(HttpMethod.valueOf(item.method), null, headers);
+        if (item.headers.get(HEADER_CONTENT_TYPE) != null)
+        {
+            context.setContentType(item.headers.get(HEADER_CONTENT_TYPE));
+        }
+        try
+        {
+            item.future = connector.callAsync(item.uri, context, item.body, httpSession);
+        }
+        catch (RejectedExecutionException e)
+        {
+            item.fail(Status.STATUS_SERVICE_UNAVAILABLE, "Too many requests are in progress");
+        }
+    }
+
+    private void await(BatchItem item, long deadline)
+    {
+        try
+        {
+            Response itemResp = item.future.get(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS);
+            item.status = itemResp.getStatus().getCode();
+            item.contentType = getHeader(itemResp.getStatus().getHeaders(), HEADER_CONTENT_TYPE);
+            item.responseBody = itemResp.getResponse();
+        }
+        catch (TimeoutException e)
+        {
+            item.future.cancel(true);
+            item.fail(Status.STATUS_GATEWAY_TIMEOUT, "Request did not complete within " + timeout + "ms");
+        }
+        catch (ExecutionException e)
+        {
+            logger.warn("Batch request to " + item.endpointId + " failed", e.getCause());
+            item.fail(Status.STATUS_INTERNAL_SERVER_ERROR, "Request failed: " + e.getCause().getMessage());
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            item.future.cancel(true);
+            item.fail(Status.STATUS_SERVICE_UNAVAILABLE, "Request was interrupted");
+        }
+    }
+
+    private static String getHeader(Map<String, String> headers, String name)
+    {
+        if (headers != null)
+        {
+            for (Map.Entry<String, String> header : headers.entrySet())
+            {
+                if (name.equalsIgnoreCase(header.getKey()))
+                {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void writeResponse(List<BatchItem> items, WebScriptResponse resp) throws IOException
+    {
+        JSONArray responses = new JSONArray();
+        try
+        {
+            for (BatchItem item : items)
+            {
+                JSONObject response = new JSONObject();
+                response.put(JSON_ID, item.id);
+                response.put(JSON_STATUS, item.status);
+                if (item.error != null)
+                {
+                    response.put(JSON_ERROR, item.error);
+                }
+                else
+                {
+                    response.put(JSON_CONTENT_TYPE, item.contentType);
+                    response.put(JSON_BODY, item.responseBody);
+                }
+                responses.put(response);
+            }
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException("Error building batch response", e);
+        }
+        resp.setContentType(Format.JSON.mimetype());
+        resp.setContentEncoding(CHARSET_UTF8);
+        resp.getWriter().write(responses.toString());
+    }
+
+    /**
+     * A single request in the batch, and its result
+     */
+    private static final class BatchItem
+    {
+        private final String id;
+        private String endpointId;
+        private String uri;
+        private String method;
+        private String body;
+        private final Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+
+        private Future<Response> future;
+        private int status;
+        private String contentType;
+        private String responseBody;
+        private String error;
+
+        private BatchItem(String id)
+        {
+            this.id = id;
+        }
+
+        private void fail(int status, String error)
+        {
+            this.status = status;
+            this.error = error;
+        }
+    }
+
+    public ConnectorService getConnectorService()
+    {
+        return connectorService;
+    }
+
+    public void setConnectorService(ConnectorService connectorService)
+    {
+        this.connectorService = connectorService;
+    }
+
+    /**
+     * @param maxRequests   Maximum number of requests in a single batch
+     */
+    public void setMaxRequests(int maxRequests)
+    {
+        this.maxRequests = maxRequests;
+    }
+
+    /**
+     * @param timeout   Time in milliseconds to wait for all of the requests in a batch to complete
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+}
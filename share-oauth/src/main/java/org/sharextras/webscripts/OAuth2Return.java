@@ -13,7 +13,6 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 import org.sharextras.webscripts.connector.OAuth2CredentialVault;
-import org.sharextras.webscripts.connector.OAuth2Credentials;
 import org.springframework.extensions.config.RemoteConfigElement.ConnectorDescriptor;
 import org.springframework.extensions.config.RemoteConfigElement.EndpointDescriptor;
 import org.springframework.extensions.surf.RequestContext;
@@ -127,6 +126,7 @@ public class OAuth2Return extends AbstractWebScript
         }
 
         String accessToken = null, refreshToken = "";
+        Long expiresAt = null;
 
         // TODO return a map or object, not a JSON object here
         JSONObject authParams = requestAccessToken(tokenUrl, clientId, clientSecret, code, req);
@@ -137,7 +137,7 @@ public class OAuth2Return extends AbstractWebScript
             // TODO use constants for parameter names
             if (authParams.has("access_token"))
             {
-                logger.debug("access_token: " + authParams.getString("access_token"));
+                logger.debug("access_token present");
                 accessToken = authParams.getString("access_token");
             }
             if (authParams.has("instance_url"))
@@ -146,9 +146,13 @@ public class OAuth2Return extends AbstractWebScript
             }
             if (authParams.has("refresh_token"))
             {
-                logger.debug("refresh_token: " + authParams.getString("refresh_token"));
+                logger.debug("refresh_token present");
                 refreshToken = authParams.getString("refresh_token");
             }
+            if (authParams.has("expires_in"))
+            {
+                expiresAt = Long.valueOf(System.currentTimeMillis() + authParams.getLong("expires_in") * 1000L);
+            }
         }
         catch (JSONException e)
         {
@@ -161,14 +165,10 @@ public class OAuth2Return extends AbstractWebScript
         }
 
         // Persist the access token
-        Credentials c = credentialVault.retrieve(endpointId);
-        if (c == null)
-        {
-            c = credentialVault.newCredentials(endpointId);
-        }
-        c.setProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN, accessToken);
-        c.setProperty(OAuth2Credentials.CREDENTIAL_REFRESH_TOKEN, refreshToken);
+        credentialVault.storeTokens(endpointId, accessToken, refreshToken, expiresAt);
         credentialVault.save();
+        // Responses cached using earlier tokens may be for a different account
+        credentialVault.removeCachedResponses(endpointId);
         
         executeRedirect(req, resp);
     }
@@ -258,7 +258,7 @@ public class OAuth2Return extends AbstractWebScript
         // do something with the input stream, which contains the new parameters in the body
         if (logger.isDebugEnabled())
         {
-            logger.debug("Received token response " + tokenResp);
+            logger.debug("Received token response with status " + statusCode);
         }
         
         try
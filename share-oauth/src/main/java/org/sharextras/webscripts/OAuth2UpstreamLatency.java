@@ -0,0 +1,129 @@
+package org.sharextras.webscripts;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.sharextras.webscripts.connector.OAuth2LatencyHistogram;
+import org.sharextras.webscripts.connector.OAuth2UpstreamMetrics;
+import org.springframework.extensions.webscripts.AbstractWebScript;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.WebScriptRequest;
+import org.springframework.extensions.webscripts.WebScriptResponse;
+
+/**
+ * Admin web script which shows the latency of calls made to providers by the OAuth connectors, or resets it.
+ *
+ * <p>A <code>GET</code> request returns the number of calls, mean, 50th, 95th, 99th and 99.9th percentiles and
+ * maximum latency in milliseconds for each endpoint and class of status code, as recorded by
+ * {@link OAuth2UpstreamMetrics} since it was last reset. The response is JSON, or a text table if
+ * <code>format=text</code> is given. A <code>DELETE</code> request discards the recorded latencies.</p>
+ */
+public class OAuth2UpstreamLatency extends AbstractWebScript
+{
+    private static final String JSON_SINCE = "since";
+    private static final String JSON_ENDPOINTS = "endpoints";
+    private static final String JSON_COUNT = "count";
+    private static final String JSON_MEAN = "mean";
+    private static final String JSON_MAX = "max";
+
+    private static final String FORMAT_TEXT = "text";
+    private static final String METHOD_DELETE = "DELETE";
+    private static final String CHARSET_UTF8 = "UTF-8";
+
+    private static final String[] PERCENTILE_NAMES = { "p50", "p95", "p99", "p999" };
+    private static final double[] PERCENTILES = { 50.0, 95.0, 99.0, 99.9 };
+
+    private OAuth2UpstreamMetrics upstreamMetrics;
+
+    @Override
+    public void execute(WebScriptRequest req, WebScriptResponse resp) throws IOException
+    {
+        if (METHOD_DELETE.equals(getDescription().getMethod()))
+        {
+            upstreamMetrics.reset();
+        }
+
+        long since = upstreamMetrics.getSince();
+        Map<String, Map<String, OAuth2LatencyHistogram>> histograms = upstreamMetrics.getHistograms();
+        resp.setContentEncoding(CHARSET_UTF8);
+        if (FORMAT_TEXT.equals(req.getFormat()))
+        {
+            resp.setContentType(Format.TEXT.mimetype());
+            writeText(since, histograms, resp.getWriter());
+        }
+        else
+        {
+            resp.setContentType(Format.JSON.mimetype());
+            resp.getWriter().write(toJSON(since, histograms).toString());
+        }
+    }
+
+    private static JSONObject toJSON(long since, Map<String, Map<String, OAuth2LatencyHistogram>> histograms)
+    {
+        try
+        {
+            JSONObject endpoints = new JSONObject();
+            for (Map.Entry<String, Map<String, OAuth2LatencyHistogram>> endpoint : histograms.entrySet())
+            {
+                JSONObject byStatus = new JSONObject();
+                for (Map.Entry<String, OAuth2LatencyHistogram> statusClass : endpoint.getValue().entrySet())
+                {
+                    OAuth2LatencyHistogram histogram = statusClass.getValue();
+                    JSONObject latency = new JSONObject();
+                    latency.put(JSON_COUNT, histogram.getCount());
+                    latency.put(JSON_MEAN, toMillis(histogram.getMean()));
+                    for (int i = 0; i < PERCENTILES.length; i++)
+                    {
+                        latency.put(PERCENTILE_NAMES[i], toMillis(histogram.getValueAtPercentile(PERCENTILES[i])));
+                    }
+                    latency.put(JSON_MAX, toMillis(histogram.getMax()));
+                    byStatus.put(statusClass.getKey(), latency);
+                }
+                endpoints.put(endpoint.getKey(), byStatus);
+            }
+            return new JSONObject().put(JSON_SINCE, since).put(JSON_ENDPOINTS, endpoints);
+        }
+        catch (JSONException e)
+        {
+            throw new WebScriptException("Error building latency response", e);
+        }
+    }
+
+    private static void writeText(long since, Map<String, Map<String, OAuth2LatencyHistogram>> histograms, Writer out)
+            throws IOException
+    {
+        out.write(String.format("Upstream latency in ms since %tFT%<tT%n%n", since));
+        out.write(String.format("%-30s %-6s %10s %10s %10s %10s %10s %10s %10s%n", "Endpoint", "Status", "Count",
+                "Mean", "p50", "p95", "p99", "p999", "Max"));
+        for (Map.Entry<String, Map<String, OAuth2LatencyHistogram>> endpoint : histograms.entrySet())
+        {
+            for (Map.Entry<String, OAuth2LatencyHistogram> statusClass : endpoint.getValue().entrySet())
+            {
+                OAuth2LatencyHistogram histogram = statusClass.getValue();
+                out.write(String.format("%-30s %-6s %10d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                        endpoint.getKey(), statusClass.getKey(), histogram.getCount(),
+                        toMillis(histogram.getMean()),
+                        toMillis(histogram.getValueAtPercentile(PERCENTILES[0])),
+                        toMillis(histogram.getValueAtPercentile(PERCENTILES[1])),
+                        toMillis(histogram.getValueAtPercentile(PERCENTILES[2])),
+                        toMillis(histogram.getValueAtPercentile(PERCENTILES[3])),
+                        toMillis(histogram.getMax())));
+            }
+        }
+    }
+
+    private static double toMillis(double micros)
+    {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+
+    public void setUpstreamMetrics(OAuth2UpstreamMetrics upstreamMetrics)
+    {
+        this.upstreamMetrics = upstreamMetrics;
+    }
+
+}
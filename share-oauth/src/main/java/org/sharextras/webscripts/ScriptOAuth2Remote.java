@@ -0,0 +1,228 @@
+package org.sharextras.webscripts;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.servlet.http.HttpSession;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.sharextras.webscripts.connector.HttpOAuth2Connector;
+import org.sharextras.webscripts.connector.OAuth2AuthenticatingConnector;
+import org.springframework.extensions.surf.RequestContext;
+import org.springframework.extensions.surf.ServletUtil;
+import org.springframework.extensions.surf.exception.ConnectorServiceException;
+import org.springframework.extensions.surf.exception.CredentialVaultProviderException;
+import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
+import org.springframework.extensions.webscripts.ScriptValueConverter;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.WebScriptException;
+import org.springframework.extensions.webscripts.connector.Connector;
+import org.springframework.extensions.webscripts.connector.ConnectorService;
+import org.springframework.extensions.webscripts.connector.Response;
+import org.springframework.extensions.webscripts.connector.ResponseStatus;
+import org.springframework.extensions.webscripts.connector.User;
+import org.springframework.extensions.webscripts.processor.BaseProcessorExtension;
+
+/**
+ * Root script object for making calls to OAuth 2.0 endpoints in parallel from server-side web scripts.
+ *
+ * <p>Calls are started with the methods of the object returned by {@link #connect(String)}, and run in the
+ * background on the shared pool of request threads, so a script which needs data from several providers waits
+ * only as long as the slowest of them.</p>
+ *
+ * <pre>
+ * var conn = oauth2Remote.connect("my-provider"),
+ *     results = oauth2Remote.all([conn.getAsync("/me"), conn.getAsync("/files")]);
+ * </pre>
+ */
+public class ScriptOAuth2Remote extends BaseProcessorExtension
+{
+    private static Log logger = LogFactory.getLog(ScriptOAuth2Remote.class);
+
+    private ConnectorService connectorService;
+
+    private long timeout = 30000L;
+
+    /**
+     * Get a connector for making background calls to an OAuth 2.0 endpoint as the current user. The user's
+     * tokens for the endpoint are loaded now, so that the calls themselves do not need to look them up.
+     *
+     * @param endpointId    The endpoint ID
+     * @return The connector
+     */
+    public ScriptOAuth2RemoteConnector connect(String endpointId)
+    {
+        RequestContext context = ThreadLocalRequestContext.getRequestContext();
+        User user = context != null ? context.getUser() : null;
+        HttpSession httpSession = ServletUtil.getSession();
+        if (user == null || httpSession == null)
+        {
+            throw new WebScriptException(Status.STATUS_UNAUTHORIZED, "No user session is available");
+        }
+
+        try
+        {
+            Connector connector = connectorService.getConnector(endpointId, user.getId(), httpSession);
+            if (connector instanceof OAuth2AuthenticatingConnector)
+            {
+                connector = ((OAuth2AuthenticatingConnector) connector).getWrappedConnector();
+            }
+            if (!(connector instanceof HttpOAuth2Connector))
+            {
+                throw new WebScriptException(Status.STATUS_BAD_REQUEST, "Endpoint " + endpointId + " does not use an OAuth 2.0 connector");
+            }
+            HttpOAuth2Connector oauthConnector = (HttpOAuth2Connector) connector;
+            if (!oauthConnector.prepareTokens(httpSession) && logger.isDebugEnabled())
+            {
+                logger.debug("No tokens available for endpoint " + endpointId);
+            }
+            return new ScriptOAuth2RemoteConnector(oauthConnector, httpSession, timeout);
+        }
+        catch (ConnectorServiceException e)
+        {
+            throw new WebScriptException("Unable to obtain connector for endpoint " + endpointId, e);
+        }
+        catch (CredentialVaultProviderException e)
+        {
+            throw new WebScriptException("Unable to obtain credential vault for OAuth credentials", e);
+        }
+    }
+
+    /**
+     * Wait for a number of background calls to complete
+     *
+     * @param pending   Array of pending responses, as returned by the connector methods
+     * @return The responses, in the same order
+     */
+    public Response[] all(Object pending)
+    {
+        Object value = ScriptValueConverter.unwrapValue(pending);
+        Collection<?> items;
+        if (value instanceof Object[])
+        {
+            items = java.util.Arrays.asList((Object[]) value);
+        }
+        else if (value instanceof Collection)
+        {
+            items = (Collection<?>) value;
+        }
+        else
+        {
+            throw new IllegalArgumentException("An array of pending responses must be given");
+        }
+
+        List<Response> responses = new ArrayList<Response>(items.size());
+        for (Object item : items)
+        {
+            Object unwrapped = ScriptValueConverter.unwrapValue(item);
+            if (!(unwrapped instanceof PendingResponse))
+            {
+                throw new IllegalArgumentException("An array of pending responses must be given");
+            }
+            responses.add(((PendingResponse) unwrapped).get());
+        }
+        return responses.toArray(new Response[responses.size()]);
+    }
+
+    public void setConnectorService(ConnectorService connectorService)
+    {
+        this.connectorService = connectorService;
+    }
+
+    /**
+     * @param timeout   Time in milliseconds to wait for a background call to complete
+     */
+    public void setTimeout(long timeout)
+    {
+        this.timeout = timeout;
+    }
+
+    static Response errorResponse(int code, String message)
+    {
+        ResponseStatus status = new ResponseStatus();
+        status.setCode(code);
+        return new Response(message, status);
+    }
+
+    /**
+     * Response to a background call, which may still be in progress
+     */
+    public static class PendingResponse
+    {
+        private final Future<Response> future;
+        private final long deadline;
+        private Response response;
+
+        PendingResponse(Future<Response> future, long timeout)
+        {
+            this.future = future;
+            this.deadline = System.currentTimeMillis() + timeout;
+        }
+
+        PendingResponse(Response response)
+        {
+            this.future = null;
+            this.deadline = 0L;
+            this.response = response;
+        }
+
+        /**
+         * Wait for the call to complete, up to the timeout
+         *
+         * @return The response, or an error response if the call failed or did not complete in time
+         */
+        public synchronized Response get()
+        {
+            if (response == null)
+            {
+                try
+                {
+                    response = future.get(Math.max(deadline - System.currentTimeMillis(), 0L), TimeUnit.MILLISECONDS);
+                }
+                catch (TimeoutException e)
+                {
+                    future.cancel(true);
+                    response = errorResponse(Status.STATUS_GATEWAY_TIMEOUT, "Call did not complete in time");
+                }
+                catch (ExecutionException e)
+                {
+                    logger.warn("Background call failed", e.getCause());
+                    response = errorResponse(Status.STATUS_INTERNAL_SERVER_ERROR, "Call failed: " + e.getCause().getMessage());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    future.cancel(true);
+                    response = errorResponse(Status.STATUS_SERVICE_UNAVAILABLE, "Call was interrupted");
+                }
+            }
+            return response;
+        }
+
+        /**
+         * @return true if the call has completed, so that {@link #get()} will not wait
+         */
+        public boolean isDone()
+        {
+            return future == null || future.isDone();
+        }
+
+        /**
+         * Stop the call, if it has not already completed
+         */
+        public void cancel()
+        {
+            if (future != null)
+            {
+                future.cancel(true);
+            }
+        }
+    }
+
+}
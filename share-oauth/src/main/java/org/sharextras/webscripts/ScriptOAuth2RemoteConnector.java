@@ -0,0 +1,121 @@
+package org.sharextras.webscripts;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.servlet.http.HttpSession;
+
+import org.sharextras.webscripts.ScriptOAuth2Remote.PendingResponse;
+import org.sharextras.webscripts.connector.HttpOAuth2Connector;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.Status;
+import org.springframework.extensions.webscripts.connector.ConnectorContext;
+import org.springframework.extensions.webscripts.connector.HttpMethod;
+
+/**
+ * Script object returned by {@link ScriptOAuth2Remote#connect(String)}, for starting background calls to an
+ * OAuth 2.0 endpoint. Each method returns straight away with a {@link PendingResponse}.
+ */
+public class ScriptOAuth2RemoteConnector
+{
+    private final HttpOAuth2Connector connector;
+    private final HttpSession httpSession;
+    private final long timeout;
+
+    ScriptOAuth2RemoteConnector(HttpOAuth2Connector connector, HttpSession httpSession, long timeout)
+    {
+        this.connector = connector;
+        this.httpSession = httpSession;
+        this.timeout = timeout;
+    }
+
+    /**
+     * Start a GET call
+     *
+     * @param uri   URI relative to the endpoint
+     * @return The pending response
+     */
+    public PendingResponse getAsync(String uri)
+    {
+        return callAsync(uri, HttpMethod.GET, null, null);
+    }
+
+    /**
+     * Start a POST call with a JSON body
+     *
+     * @param uri   URI relative to the endpoint
+     * @param body  Request body
+     * @return The pending response
+     */
+    public PendingResponse postAsync(String uri, String body)
+    {
+        return callAsync(uri, HttpMethod.POST, body, Format.JSON.mimetype());
+    }
+
+    /**
+     * Start a POST call
+     *
+     * @param uri   URI relative to the endpoint
+     * @param body  Request body
+     * @param contentType   Content type of the request body
+     * @return The pending response
+     */
+    public PendingResponse postAsync(String uri, String body, String contentType)
+    {
+        return callAsync(uri, HttpMethod.POST, body, contentType);
+    }
+
+    /**
+     * Start a PUT call with a JSON body
+     *
+     * @param uri   URI relative to the endpoint
+     * @param body  Request body
+     * @return The pending response
+     */
+    public PendingResponse putAsync(String uri, String body)
+    {
+        return callAsync(uri, HttpMethod.PUT, body, Format.JSON.mimetype());
+    }
+
+    /**
+     * Start a PUT call
+     *
+     * @param uri   URI relative to the endpoint
+     * @param body  Request body
+     * @param contentType   Content type of the request body
+     * @return The pending response
+     */
+    public PendingResponse putAsync(String uri, String body, String contentType)
+    {
+        return callAsync(uri, HttpMethod.PUT, body, contentType);
+    }
+
+    /**
+     * Start a DELETE call
+     *
+     * @param uri   URI relative to the endpoint
+     * @return The pending response
+     */
+    public PendingResponse deleteAsync(String uri)
+    {
+        return callAsync(uri, HttpMethod.DELETE, null, null);
+    }
+
+    private PendingResponse callAsync(String uri, HttpMethod method, String body, String contentType)
+    {
+        ConnectorContext context = new ConnectorContext(method);
+        if (contentType != null)
+        {
+            context.setContentType(contentType);
+        }
+        try
+        {
+            return new PendingResponse(connector.callAsync(uri, context, body, httpSession), timeout);
+        }
+        catch (RejectedExecutionException e)
+        {
+            return new PendingResponse(ScriptOAuth2Remote.errorResponse(Status.STATUS_SERVICE_UNAVAILABLE,
+                    "Too many calls are in progress"));
+        }
+    }
+
+}
@@ -26,6 +26,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationContext;
 import org.springframework.extensions.config.RemoteConfigElement.ConnectorDescriptor;
 import org.springframework.extensions.webscripts.connector.ConnectorContext;
 import org.springframework.extensions.webscripts.connector.EndpointManager;
@@ -39,14 +40,50 @@ public class AuthorizationPassthruConnector extends HttpConnector
 	public static final String HEADER_AUTHORIZATION = "Authorization";
 	public static final String HEADER_OAUTH_TOKEN = "X-OAuth-Token";
 	
+	private static final String UPSTREAM_METRICS_ID = "oAuth2UpstreamMetrics";
+	
     private static Log logger = LogFactory.getLog(AuthorizationPassthruConnector.class);
     
+    private ApplicationContext applicationContext;
+    
 	public AuthorizationPassthruConnector(ConnectorDescriptor descriptor,
 			String endpoint) {
 		super(descriptor, endpoint);
 	}
 	
+	public void setApplicationContext(ApplicationContext applicationContext)
+	{
+		super.setApplicationContext(applicationContext);
+		this.applicationContext = applicationContext;
+	}
+	
 	public Response call(String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res)
+	{
+		String endpointId = OAuth2UpstreamMetrics.getProxiedEndpointId(uri, req);
+		if (endpointId == null)
+			endpointId = this.endpoint;
+		String httpMethod = (context != null ? context.getMethod().toString() : "GET");
+		
+		OAuth2UpstreamMetrics.Call timing = getUpstreamMetrics().start(endpointId, httpMethod, uri);
+		Response response = null;
+		try
+		{
+			response = callEndpoint(endpointId, uri, context, req, res);
+			return response;
+		}
+		finally
+		{
+			timing.end(response != null ? response.getStatus().getCode() : 0,
+					response != null ? OAuth2UpstreamMetrics.getContentLength(response) : -1L);
+		}
+	}
+	
+	private OAuth2UpstreamMetrics getUpstreamMetrics()
+	{
+		return (OAuth2UpstreamMetrics) applicationContext.getBean(UPSTREAM_METRICS_ID);
+	}
+	
+	private Response callEndpoint(String endpointId, String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res)
     {
     	String httpMethod = (context != null ? context.getMethod().toString() : "GET");
     	
@@ -62,9 +99,6 @@ public class AuthorizationPassthruConnector extends HttpConnector
             
             if (authHdr != null)
             {
-                if (logger.isDebugEnabled())
-                    logger.debug("Adding Authorization header with data: " + authHdr);
-                
                 Map<String, String> headers = new HashMap<String, String>(1);
                 headers.put(HEADER_AUTHORIZATION, authHdr);
                 
@@ -74,8 +108,17 @@ public class AuthorizationPassthruConnector extends HttpConnector
                 remoteClient.setRequestProperties(headers);
             }
             
-            // call client and process response
-            response = remoteClient.call(uri, req, res);
+            // call client and process response, streaming any request body since there is no retry
+            long start = System.nanoTime();
+            try
+            {
+                response = remoteClient.call(uri, ReplayableUploadRequest.wrap(req, 0), res);
+            }
+            finally
+            {
+                getUpstreamMetrics().recordUpstream(endpointId, response != null ? response.getStatus().getCode() : 0,
+                        System.nanoTime() - start);
+            }
             if (logger.isDebugEnabled())
                 logger.debug("Got response code " + response.getStatus().getCode() + ", body:\n" + response.getResponse());
             processResponse(remoteClient, response);
@@ -24,22 +24,39 @@ import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.connector.*;
 import org.springframework.extensions.webscripts.json.JSONWriter;
 
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 // import org.apache.commons.httpclient.HttpClient;
 
 /**
  * Connector for connecting to OAuth 2.0-protected resources
  * <p/>
- * TODO Return a 401 straight away if there is no user context? The AuthenticatingConnector will always try the first request
- * unauthenticated otherwise, and this may not always return a 401 if the service supports anonymous access.
+ * When used with the <code>oauth2-token</code> authenticator, the tokens held in the user's credential vault are placed
+ * into the connector session before the first request is made, so no unauthenticated request is sent and
+ * no further token lookup is needed here.
  *
  * @author wabson
  */
@@ -49,16 +66,110 @@ public class HttpOAuth2Connector extends HttpConnector {
     public static final String AUTH_METHOD_OAUTH = "OAuth";
     public static final String AUTH_METHOD_BEARER = "Bearer";
 
+    private static final String HEADER_ACCEPT = "Accept";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final String HEADER_AGE = "Age";
+    private static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    private static final String HEADER_CONTENT_ENCODING = "Content-Encoding";
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String HEADER_CONTENT_TYPE = "Content-Type";
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_RANGE = "If-Range";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_RANGE = "Range";
+    private static final String HEADER_SET_COOKIE = "Set-Cookie";
+    private static final String HEADER_VARY = "Vary";
+    private static final String HEADER_WARNING = "Warning";
+    // Request header which marks a call as low priority, so that it is the first to be shed under a rate limit
+    public static final String HEADER_PRIORITY = "X-OAuth-Priority";
+    private static final String PRIORITY_LOW = "low";
+
+    private static final String WARNING_STALE = "110 - \"Response is Stale\"";
+    private static final String WARNING_REVALIDATION_FAILED = "111 - \"Revalidation Failed\"";
+
+    // Content codings which are passed through from the provider, if the client accepts them
+    private static final List<String> SUPPORTED_ENCODINGS = java.util.Arrays.asList("gzip", "deflate");
+    private static final String ENCODING_IDENTITY = "identity";
+
+    // Headers which apply only to the original response, and are not stored in the response cache
+    private static final List<String> UNCACHED_HEADERS = java.util.Arrays.asList(
+            "age", "connection", "content-length", "keep-alive", "transfer-encoding");
+
     private static final String VAULT_PROVIDER_ID = "oAuth2CredentialVaultProvider";
+    private static final String APPLICATION_TOKEN_POOL_ID = "oAuth2ApplicationTokenPool";
+    private static final String TOKEN_INSPECTOR_ID = "oAuth2TokenInspector";
+    private static final String RESPONSE_CACHE_ID = "oAuth2ResponseCache";
+    private static final String REQUEST_COALESCER_ID = "oAuth2RequestCoalescer";
+    private static final String REQUEST_EXECUTOR_ID = "oAuth2RequestExecutor";
+    private static final String RESPONSE_BUDGET_ID = "oAuth2ResponseBudget";
+    private static final String TRACER_ID = "oAuth2Tracer";
+    private static final String THROTTLE_ID = "oAuth2Throttle";
+    private static final String RATE_LIMITER_ID = "oAuth2RateLimiter";
+    private static final String UPSTREAM_METRICS_ID = "oAuth2UpstreamMetrics";
+    private static final String CHARSET_UTF8 = "UTF-8";
+    private static final long EXPIRY_UNKNOWN = -1L;
+    private static final int DEFAULT_UPLOAD_REPLAY_LIMIT = 1024 * 1024;
+    private static final long DEFAULT_RETRY_DELAY = 1000L;
+    private static final long DEFAULT_RETRY_BUDGET = 10000L;
+    // Methods which may be sent again when the provider throttles them
+    private static final List<String> IDEMPOTENT_METHODS = Arrays.asList("GET", "HEAD", "OPTIONS", "PUT", "DELETE");
     private static final String USER_ID = "_alf_USER_ID";
+    // Authorization header value for the user's access token, kept in the connector session alongside the token
+    private static final String CS_PARAM_AUTHORIZATION = "authorization";
 
     public static final String PARAM_AUTH_METHOD = "auth-method";
     public static final String PARAM_TOKEN_ENDPOINT = "token-source";
+    public static final String PARAM_GRANT_TYPE = "grant-type";
+    public static final String PARAM_SCOPE = "scope";
+    public static final String PARAM_TOKEN_FORMAT = "token-format";
+    public static final String PARAM_JWKS_URL = "jwks-url";
+    public static final String PARAM_RESPONSE_CACHE = "response-cache";
+    public static final String PARAM_STALE_WHILE_REVALIDATE = "stale-while-revalidate";
+    public static final String PARAM_STALE_IF_ERROR = "stale-if-error";
+    public static final String PARAM_UPLOAD_REPLAY_LIMIT = "upload-replay-limit";
+    public static final String PARAM_RETRY_ATTEMPTS = "retry-attempts";
+    public static final String PARAM_RETRY_DELAY = "retry-delay";
+    public static final String PARAM_RETRY_BUDGET = "retry-budget";
+    public static final String PARAM_RATE_LIMIT_SCOPE = "rate-limit-scope";
+
+    public static final String RATE_LIMIT_SCOPE_TOKEN = "token";
+    public static final String RATE_LIMIT_SCOPE_APP = "app";
+    public static final String RATE_LIMIT_SCOPE_NONE = "none";
+
+    public static final String TOKEN_FORMAT_JWT = "jwt";
+
+    public static final String GRANT_TYPE_CLIENT_CREDENTIALS = "client_credentials";
 
     private static Log logger = LogFactory.getLog(HttpOAuth2Connector.class);
 
+    // Call being made by each thread, for the authentication which the HTTP connector applies part way through it
+    private static final ThreadLocal<CallContext> currentCall = new ThreadLocal<CallContext>();
+
+    // Request headers for each thread, which the remote client only reads while the call is sent
+    private static final ThreadLocal<Map<String, String>> requestHeaders = new ThreadLocal<Map<String, String>>() {
+        @Override
+        protected Map<String, String> initialValue() {
+            return new HashMap<String, String>(8);
+        }
+    };
+
     private ApplicationContext applicationContext;
 
+    // Beans used while making calls, which are looked up from the application context the first time they are used
+    private volatile ConnectorService connectorService;
+    private volatile JwtTokenInspector tokenInspector;
+    private volatile OAuth2ApplicationTokenPool applicationTokenPool;
+    private volatile OAuth2RequestCoalescer requestCoalescer;
+    private volatile OAuth2RequestExecutor requestExecutor;
+    private volatile OAuth2ResponseCache responseCache;
+    private volatile OAuth2ResponseBudget responseBudget;
+    private volatile OAuth2Tracer tracer;
+    private volatile OAuth2Throttle throttle;
+    private volatile OAuth2RateLimiter rateLimiter;
+    private volatile OAuth2UpstreamMetrics upstreamMetrics;
+
     public HttpOAuth2Connector(ConnectorDescriptor descriptor, String endpoint) {
         super(descriptor, endpoint);
     }
@@ -71,6 +182,17 @@ public class HttpOAuth2Connector extends HttpConnector {
     public void setApplicationContext(ApplicationContext applicationContext) {
         super.setApplicationContext(applicationContext);
         this.applicationContext = applicationContext;
+        connectorService = null;
+        tokenInspector = null;
+        applicationTokenPool = null;
+        requestCoalescer = null;
+        requestExecutor = null;
+        responseCache = null;
+        responseBudget = null;
+        tracer = null;
+        throttle = null;
+        rateLimiter = null;
+        upstreamMetrics = null;
     }
 
     private String getAuthenticationMethod() {
@@ -90,6 +212,22 @@ public class HttpOAuth2Connector extends HttpConnector {
         return getConnectorSession() != null ? getConnectorSession().getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN) : null;
     }
 
+    /**
+     * Get the token to send with a call, which is either the application token obtained for it or the user's
+     * access token
+     */
+    protected String getAccessToken(CallContext call) {
+        return call != null && call.applicationToken != null ? call.applicationToken : getAccessToken();
+    }
+
+    /**
+     * Whether the endpoint is configured to use an application token obtained via the client credentials grant,
+     * rather than per-user tokens
+     */
+    protected boolean isClientCredentialsGrant(String endpointId) {
+        return GRANT_TYPE_CLIENT_CREDENTIALS.equals(getDescriptorProperty(PARAM_GRANT_TYPE, endpointId));
+    }
+
     protected String getRefreshToken() {
         return getConnectorSession() != null ? getConnectorSession().getParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN) : null;
     }
@@ -98,8 +236,417 @@ public class HttpOAuth2Connector extends HttpConnector {
     public Response call(String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res) {
         String endpointId = getEndpointId(uri, req);
 
-        // Wrap the response object, since it gets committed straight away, and we may need to retry
-        FakeHttpServletResponse wrappedRes = new FakeHttpServletResponse(res);
+        OAuth2Span span = getTracer().startSpan("oauth2.proxy", req.getHeader(OAuth2Tracer.HEADER_TRACEPARENT));
+        if (span.isRecorded()) {
+            span.setAttribute("endpoint", endpointId).setAttribute("method", req.getMethod())
+                    .setAttribute("path", uri.indexOf('?') > -1 ? uri.substring(0, uri.indexOf('?')) : uri);
+        }
+        OAuth2UpstreamMetrics.Call timing = getUpstreamMetrics().start(endpointId, req.getMethod(), uri);
+        CallContext call = new CallContext(PRIORITY_LOW.equalsIgnoreCase(req.getHeader(HEADER_PRIORITY)));
+        Response resp = null;
+        try {
+            HttpSession session = req.getSession(false);
+            String userId = session != null ? getUserId(session) : null;
+            if (userId != null && "GET".equals(req.getMethod()) && !isRangeRequest(req) &&
+                    Boolean.parseBoolean(getDescriptorProperty(PARAM_RESPONSE_CACHE, endpointId))) {
+                resp = callCached(endpointId, userId, uri, context, call, req, res);
+            } else {
+                resp = callUpstream(endpointId, uri, context, call, req, res);
+            }
+            if (resp != null && span.isRecorded()) {
+                span.setAttribute("status", resp.getStatus().getCode()).setAttribute("bytes", getResponseBytes(resp, res));
+            }
+            return resp;
+        } finally {
+            timing.end(resp != null ? resp.getStatus().getCode() : 0, resp != null ? getResponseBytes(resp, res) : -1L);
+            span.end();
+        }
+    }
+
+    /**
+     * Make a GET request via the user's response cache. Fresh cached responses are returned without contacting
+     * the provider, and stale responses are revalidated using a conditional request.
+     * <p/>
+     * If the endpoint has <code>stale-while-revalidate</code> set then stale responses up to that many seconds
+     * old are returned straight away and refreshed in the background, and if it has <code>stale-if-error</code>
+     * set then stale responses up to that many seconds old are returned if the provider cannot be reached or
+     * returns a server error. Stale responses are marked with a <code>Warning</code> header.
+     */
+    protected Response callCached(final String endpointId, final String userId, final String uri, ConnectorContext context,
+                                  CallContext call, HttpServletRequest req, HttpServletResponse res) {
+        final OAuth2ResponseCache cache = getResponseCache();
+        final String accept = req.getHeader(HEADER_ACCEPT), encodings = getAcceptedEncodings(req);
+        // Responses are cached in the encoding they were received in, so clients accepting different encodings
+        // need separate entries
+        final String variant = encodings != null ? accept + "\n" + encodings : accept;
+        final OAuth2ResponseCache.CachedResponse cached = cache.get(userId, endpointId, uri, variant);
+        long staleWhileRevalidate = getStaleLimit(PARAM_STALE_WHILE_REVALIDATE, endpointId),
+                staleIfError = getStaleLimit(PARAM_STALE_IF_ERROR, endpointId);
+        boolean noCache = hasCacheDirective(req.getHeader(HEADER_CACHE_CONTROL), "no-cache");
+        FakeHttpServletResponse wrappedRes = null;
+
+        try {
+            if (cached != null && cached.isFresh() && !noCache) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Returning cached response for " + withoutQuery(uri));
+                return writeCachedResponse(cached, res, null);
+            }
+
+            if (cached != null && !noCache && isStaleAllowed(cached, staleWhileRevalidate)) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Returning stale response for " + withoutQuery(uri) + " and refreshing in the background");
+                final HttpOAuth2Connector connector = newBackgroundConnector();
+                final Map<String, String> headers = new HashMap<String, String>(getConditionalHeaders(cached));
+                if (accept != null) {
+                    headers.put(HEADER_ACCEPT, accept);
+                }
+                headers.put(HEADER_ACCEPT_ENCODING, encodings != null ? encodings : ENCODING_IDENTITY);
+                final boolean allowUnvalidated = staleIfError > 0 || staleWhileRevalidate > 0;
+                cache.refreshAsync(userId, endpointId, uri, variant, new Runnable() {
+                    public void run() {
+                        connector.refreshCachedResponse(cache, cached, endpointId, userId, uri, variant, headers, allowUnvalidated);
+                    }
+                });
+                return writeCachedResponse(cached, res, WARNING_STALE);
+            }
+
+            wrappedRes = newBufferedResponse(res, false);
+            if (wrappedRes == null) {
+                // There is no memory to spare for buffering the response, so it cannot be cached
+                return callUpstream(endpointId, uri, context, call, req, res);
+            }
+            Response resp = callUpstream(endpointId, uri, context, call,
+                    cached != null ? new ConditionalRequest(req, getConditionalHeaders(cached)) : req, wrappedRes);
+
+            if (resp != null && resp.getStatus().getCode() == Status.STATUS_NOT_MODIFIED && cached != null) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Cached response for " + withoutQuery(uri) + " has not been modified");
+                cached.revalidated(getMaxAge(resp.getStatus().getHeaders()));
+                return writeCachedResponse(cached, res, null);
+            }
+
+            if ((resp == null || resp.getStatus().getCode() >= Status.STATUS_INTERNAL_SERVER_ERROR) &&
+                    cached != null && isStaleAllowed(cached, staleIfError) && !isOverflowed(wrappedRes)) {
+                logger.warn("Provider request for " + withoutQuery(uri) + " failed, returning stale response");
+                return writeCachedResponse(cached, res, WARNING_REVALIDATION_FAILED);
+            }
+
+            // Only part of a response which outgrew the buffer is held, so it cannot be cached
+            if ((isOverflowed(wrappedRes) || !storeResponse(cache, endpointId, userId, uri, variant, resp,
+                    wrappedRes.getCharacterEncoding(), wrappedRes.getContentAsByteArray(),
+                    staleIfError > 0 || staleWhileRevalidate > 0)) && cached != null) {
+                cache.remove(userId, endpointId, uri, variant);
+            }
+
+            finishResponse(resp, wrappedRes, res);
+            return resp;
+        } catch (IOException e) {
+            writeError(res, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
+                    "ERR_COPY_RESPONSE",
+                    "Error encountered copying outputstream",
+                    e);
+            return null;
+        } finally {
+            releaseBufferedResponse(wrappedRes, res);
+        }
+    }
+
+    /**
+     * Fetch a stale cached response again and update the cache. This is run in the background, after the
+     * stale response has been returned to the user, so it must not use the servlet request or response. The
+     * refresh is made at low priority, so that it is the first call to be shed under a rate limit.
+     */
+    protected void refreshCachedResponse(OAuth2ResponseCache cache, OAuth2ResponseCache.CachedResponse cached,
+                                         String endpointId, String userId, String uri, String variant,
+                                         Map<String, String> headers, boolean allowUnvalidated) {
+        CallContext call = new CallContext(true);
+        try {
+            if (isClientCredentialsGrant(endpointId)) {
+                final String tokenEndpointId = endpointId;
+                call.applicationToken = getApplicationTokenPool().getAccessToken(endpointId, new OAuth2ApplicationTokenPool.TokenSource() {
+                    public JSONObject requestToken() throws TokenRefreshException {
+                        return doClientCredentialsRequest(tokenEndpointId);
+                    }
+                });
+            } else if (!hasAccessToken() || isAccessTokenExpired(endpointId)) {
+                // Tokens can only be refreshed and saved while handling a request, so leave this to the next one
+                logger.debug("No valid access token for background refresh of " + withoutQuery(uri));
+                return;
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Response resp = callInternal(uri, new ConnectorContext(HttpMethod.GET, null, headers), call, null, out);
+            if (resp != null && resp.getStatus().getCode() == Status.STATUS_NOT_MODIFIED) {
+                cached.revalidated(getMaxAge(resp.getStatus().getHeaders()));
+            } else if (resp != null && resp.getStatus().getCode() < Status.STATUS_INTERNAL_SERVER_ERROR &&
+                    resp.getStatus().getCode() != OAuth2Throttle.STATUS_TOO_MANY_REQUESTS) {
+                if (!storeResponse(cache, endpointId, userId, uri, variant, resp, null, out.toByteArray(), allowUnvalidated)) {
+                    cache.remove(userId, endpointId, uri, variant);
+                }
+            } else if (logger.isDebugEnabled()) {
+                logger.debug("Background refresh of " + withoutQuery(uri) + " failed, keeping stale response");
+            }
+        } catch (TokenRefreshException e) {
+            logger.warn("Unable to obtain application token for background refresh of " + withoutQuery(uri), e);
+        }
+    }
+
+    /**
+     * Store a successful response in the cache, if the provider allows it
+     *
+     * @param allowUnvalidated  Whether responses with no <code>max-age</code> or validator may be stored, so that
+     *                          they can be returned when stale
+     * @return true if the response was stored
+     */
+    private boolean storeResponse(OAuth2ResponseCache cache, String endpointId, String userId, String uri, String variant,
+                                  Response resp, String characterEncoding, byte[] body, boolean allowUnvalidated) {
+        if (resp == null || resp.getStatus().getCode() != Status.STATUS_OK ||
+                !isCacheable(resp.getStatus().getHeaders(), allowUnvalidated)) {
+            return false;
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, String> header : resp.getStatus().getHeaders().entrySet()) {
+            if (!UNCACHED_HEADERS.contains(header.getKey().toLowerCase())) {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        return cache.put(userId, endpointId, uri, variant, new OAuth2ResponseCache.CachedResponse(
+                resp.getStatus().getCode(), headers, characterEncoding, body, getMaxAge(headers)));
+    }
+
+    /**
+     * Whether a stale cached response may be returned, given the configured limit on how stale it may be
+     */
+    private boolean isStaleAllowed(OAuth2ResponseCache.CachedResponse cached, long staleLimit) {
+        return staleLimit > 0 && cached.getStaleness() <= staleLimit &&
+                !hasCacheDirective(getHeader(cached.getHeaders(), HEADER_CACHE_CONTROL), "must-revalidate");
+    }
+
+    /**
+     * Get a limit on the age of stale responses from the endpoint configuration
+     *
+     * @return The limit in milliseconds, or 0 if stale responses should not be returned
+     */
+    private long getStaleLimit(String propertyName, String endpointId) {
+        String value = getDescriptorProperty(propertyName, endpointId);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim()) * 1000L;
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value " + value + " for " + propertyName + " on endpoint " + endpointId);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Create a new connector to refresh cached responses in the background, so that this connector can carry on
+     * being used by the current request. The connector shares this connector's session, and so its tokens.
+     */
+    private HttpOAuth2Connector newBackgroundConnector() {
+        HttpOAuth2Connector connector = newConnector(descriptor, endpoint);
+        connector.setApplicationContext(applicationContext);
+        connector.setConnectorSession(getConnectorSession());
+        connector.setCredentials(getCredentials());
+        return connector;
+    }
+
+    protected HttpOAuth2Connector newConnector(ConnectorDescriptor descriptor, String endpoint) {
+        return new HttpOAuth2Connector(descriptor, endpoint);
+    }
+
+    /**
+     * Make sure that the connector session holds the user's tokens, loading them from the credential vault or from
+     * the repository if needed. This must be called while handling the user's request, before making calls with
+     * {@link #callAsync}.
+     *
+     * @param session The user's HTTP session
+     * @return true if an access token is available, or the endpoint uses an application token
+     */
+    public boolean prepareTokens(HttpSession session) throws CredentialVaultProviderException, ConnectorServiceException {
+        String endpointId = getSessionEndpointId();
+        if (isClientCredentialsGrant(endpointId)) {
+            return true;
+        }
+        if (!hasAccessToken()) {
+            loadCachedTokens(endpointId, session);
+        }
+        if (!hasAccessToken()) {
+            loadTokens(endpointId, session);
+        }
+        return hasAccessToken();
+    }
+
+    /**
+     * Make a call in the background, using the shared pool of request threads. Each call is made by a new connector
+     * which shares this connector's session, so any number of calls may be made at the same time.
+     * <p/>
+     * If the access token has expired or is rejected by the provider then it is refreshed only once, by whichever
+     * call finds this first, and the other calls then use the new token. Refreshed tokens are saved to the
+     * repository. Tokens are never loaded here, so {@link #prepareTokens} must be called first.
+     *
+     * @param uri     URI relative to the endpoint, including any query string
+     * @param context Connector context giving the method, content type and any request headers
+     * @param body    Request body, or null
+     * @param session The user's HTTP session, used to save refreshed tokens
+     * @return The pending response, with the response body available from {@link Response#getResponse()}
+     * @throws java.util.concurrent.RejectedExecutionException if too many calls are waiting for a thread
+     */
+    public Future<Response> callAsync(final String uri, final ConnectorContext context, final String body, final HttpSession session) {
+        final String endpointId = getSessionEndpointId();
+        final HttpOAuth2Connector connector = newBackgroundConnector();
+        return getRequestExecutor().submit(new Callable<Response>() {
+            public Response call() {
+                return connector.callInBackground(endpointId, uri, context, body, session);
+            }
+        });
+    }
+
+    /**
+     * Make a call from a background thread, refreshing the user's tokens or the application token if needed
+     */
+    protected Response callInBackground(final String endpointId, String uri, ConnectorContext context, String body, HttpSession session) {
+        if (isClientCredentialsGrant(endpointId)) {
+            OAuth2ApplicationTokenPool tokenPool = getApplicationTokenPool();
+            OAuth2ApplicationTokenPool.TokenSource tokenSource = new OAuth2ApplicationTokenPool.TokenSource() {
+                public JSONObject requestToken() throws TokenRefreshException {
+                    return doClientCredentialsRequest(endpointId);
+                }
+            };
+            CallContext call = new CallContext(false);
+            try {
+                call.applicationToken = tokenPool.getAccessToken(endpointId, tokenSource);
+                Response resp = callBuffered(uri, context, call, body);
+                if (resp.getStatus().getCode() == ResponseStatus.STATUS_UNAUTHORIZED) {
+                    tokenPool.invalidate(endpointId, call.applicationToken);
+                    call.applicationToken = tokenPool.getAccessToken(endpointId, tokenSource);
+                    resp = callBuffered(uri, context, call, body);
+                }
+                return resp;
+            } catch (TokenRefreshException e) {
+                logger.warn("Unable to obtain application token for " + withoutQuery(uri), e);
+                return errorResponse(ResponseStatus.STATUS_INTERNAL_SERVER_ERROR, "Unable to obtain application access token");
+            }
+        }
+
+        if (!hasAccessToken()) {
+            return errorResponse(ResponseStatus.STATUS_UNAUTHORIZED, "No access token is present");
+        }
+        String accessToken = getAccessToken();
+        if (isAccessTokenExpired(endpointId) && hasRefreshToken()) {
+            refreshSharedTokens(endpointId, accessToken, session);
+            accessToken = getAccessToken();
+        }
+        CallContext call = new CallContext(false);
+        Response resp = callBuffered(uri, context, call, body);
+        if (resp.getStatus().getCode() == ResponseStatus.STATUS_UNAUTHORIZED && hasRefreshToken()) {
+            refreshSharedTokens(endpointId, accessToken, session);
+            if (!accessToken.equals(getAccessToken())) {
+                if (logger.isDebugEnabled())
+                    logger.debug("Got new access token - retrying request for " + withoutQuery(uri));
+                resp = callBuffered(uri, context, call, body);
+            }
+        }
+        return resp;
+    }
+
+    /**
+     * Refresh the tokens held in the connector session, unless another connector sharing the session has already
+     * replaced the given access token. Connectors for the same user and endpoint share a single connector session,
+     * so this ensures that calls made at the same time refresh the tokens only once.
+     */
+    private void refreshSharedTokens(String endpointId, String accessToken, HttpSession session) {
+        synchronized (connectorSession) {
+            if (!accessToken.equals(getAccessToken())) {
+                logger.debug("Access token has already been refreshed");
+                return;
+            }
+            if (refreshTokens(endpointId, null)) {
+                try {
+                    saveTokens(endpointId, session);
+                } catch (CredentialVaultProviderException e) {
+                    logger.warn("Unable to save refreshed tokens", e);
+                } catch (ConnectorServiceException e) {
+                    logger.warn("Unable to save refreshed tokens", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make a call, buffering the response body into the returned response
+     */
+    private Response callBuffered(String uri, ConnectorContext context, CallContext call, String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            Response resp = callInternal(uri, context, call, body != null ? new ByteArrayInputStream(body.getBytes(CHARSET_UTF8)) : null, out);
+            if (resp == null) {
+                return errorResponse(ResponseStatus.STATUS_INTERNAL_SERVER_ERROR, "Encountered error when calling " + uri);
+            }
+            byte[] bytes = out.toByteArray();
+            Map<String, String> headers = resp.getStatus().getHeaders();
+            String contentEncoding = getHeader(headers, HEADER_CONTENT_ENCODING);
+            if (contentEncoding != null && !ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim())) {
+                // Scripts always need the decoded body
+                bytes = decodeContent(bytes, contentEncoding);
+                removeHeader(headers, HEADER_CONTENT_ENCODING);
+                removeHeader(headers, HEADER_CONTENT_LENGTH);
+            }
+            return new Response(new String(bytes, getCharset(headers)), resp.getStatus());
+        } catch (UnsupportedEncodingException e) {
+            return errorResponse(ResponseStatus.STATUS_INTERNAL_SERVER_ERROR, "Unsupported response encoding from " + uri);
+        } catch (IOException e) {
+            return errorResponse(ResponseStatus.STATUS_INTERNAL_SERVER_ERROR, "Unable to decode response from " + uri);
+        }
+    }
+
+    private static Response errorResponse(int code, String message) {
+        ResponseStatus status = new ResponseStatus();
+        status.setCode(code);
+        return new Response(message, status);
+    }
+
+    /**
+     * Get the character set of a response from its Content-Type header, defaulting to UTF-8
+     */
+    private static String getCharset(Map<String, String> headers) {
+        String contentType = getHeader(headers, HEADER_CONTENT_TYPE);
+        int charsetStart = contentType != null ? contentType.toLowerCase().indexOf("charset=") : -1;
+        if (charsetStart > -1) {
+            String charset = contentType.substring(charsetStart + "charset=".length());
+            int charsetEnd = charset.indexOf(';');
+            return (charsetEnd > -1 ? charset.substring(0, charsetEnd) : charset).trim().replace("\"", "");
+        }
+        return CHARSET_UTF8;
+    }
+
+    /**
+     * Get the ID of the endpoint this connector was created for, when it is not used to proxy a servlet request
+     */
+    private String getSessionEndpointId() {
+        String endpointId = getEndpointId();
+        return endpointId != null ? endpointId : getConnectorSession().getEndpointId();
+    }
+
+    /**
+     * Make a request to the provider, using either the user's tokens or the application token for the endpoint
+     */
+    protected Response callUpstream(String endpointId, String uri, ConnectorContext context, CallContext call,
+                                    HttpServletRequest req, HttpServletResponse res) {
+        if (isClientCredentialsGrant(endpointId)) {
+            return callWithApplicationToken(endpointId, uri, context, call, req, res);
+        }
+
+        // Partial content is streamed straight to the client rather than buffered. Responses rejecting the token
+        // are not committed, so the request can still be retried for the same range once the token is refreshed.
+        boolean streamed = isRangeRequest(req);
+
+        // Otherwise wrap the response object, since it gets committed straight away, and we may need to retry
+        FakeHttpServletResponse wrappedRes = newBufferedResponse(res, streamed);
+        HttpServletResponse targetRes = wrappedRes != null ? wrappedRes : res;
+
+        // Request bodies are streamed, and can only be sent again if they are small enough to keep
+        req = ReplayableUploadRequest.wrap(req, getUploadReplayLimit(endpointId));
 
         Response resp = null;
         boolean newlyLoaded = false, tokensChanged = false;
@@ -107,19 +654,32 @@ public class HttpOAuth2Connector extends HttpConnector {
         context.setCommitResponseOnAuthenticationError(false);
 
         try {
+            if (!hasAccessToken()) {
+                logger.debug("No tokens found in connector session. Checking credential vault.");
+                loadCachedTokens(endpointId, req);
+            }
+
             if (!hasAccessToken()) {
                 logger.debug("No tokens found. Loading from tokenstore.");
                 loadTokens(endpointId, req);
                 newlyLoaded = true;
             }
 
+            if (hasAccessToken() && isAccessTokenExpired(endpointId) && hasRefreshToken()) {
+                // The token is known to have expired, so refresh it now rather than waiting for the provider to reject it
+                logger.debug("Access token has expired, refreshing before request");
+                tokensChanged = refreshTokens(endpointId, null);
+                // Tokens are now newer than those in the tokenstore, so there is no point checking there on a 401
+                newlyLoaded = newlyLoaded || tokensChanged;
+            }
+
             if (hasAccessToken()) {
                 // First call
                 if (logger.isDebugEnabled())
-                    logger.debug("Loading resource " + uri + " - first attempt");
+                    logger.debug("Loading resource " + withoutQuery(uri) + " - first attempt");
 
-                wrappedRes.reset();
-                resp = callInternal(uri, context, req, wrappedRes);
+                resetResponse(wrappedRes);
+                resp = callInternal(uri, context, call, req, targetRes);
 
                 if (logger.isDebugEnabled())
                     logger.debug("Response status " + resp.getStatus().getCode() + " " + resp.getStatus().getCodeName());
@@ -136,25 +696,25 @@ public class HttpOAuth2Connector extends HttpConnector {
 
                     // Retry the operation - second call, only if a different access token was found
                     if (hasAccessToken()) {
-                        if (!getAccessToken().equals(accessToken)) {
+                        if (!getAccessToken().equals(accessToken) && canRetry(req, targetRes, uri)) {
                             if (logger.isDebugEnabled())
-                                logger.debug("Token has been updated, retrying request for " + uri);
-                            wrappedRes.reset();
-                            resp = callInternal(uri, context, req, wrappedRes);
+                                logger.debug("Token has been updated, retrying request for " + withoutQuery(uri));
+                            resetResponse(wrappedRes);
+                            resp = callInternal(uri, context, call, req, targetRes);
                             if (logger.isDebugEnabled())
                                 logger.debug("Response status " + resp.getStatus().getCode() + " " + resp.getStatus().getCodeName());
                         } else {
                             logger.debug("No updated token found");
                         }
                     } else {
-                        writeError(wrappedRes, ResponseStatus.STATUS_UNAUTHORIZED,
+                        writeError(targetRes, ResponseStatus.STATUS_UNAUTHORIZED,
                                 "NO_TOKEN",
                                 "No access token is present",
                                 null);
                     }
                 }
             } else {
-                writeError(wrappedRes, ResponseStatus.STATUS_UNAUTHORIZED,
+                writeError(targetRes, ResponseStatus.STATUS_UNAUTHORIZED,
                         "NO_TOKEN",
                         "No access token is present",
                         null);
@@ -168,52 +728,25 @@ public class HttpOAuth2Connector extends HttpConnector {
                     hasRefreshToken()
                     ) {
                 if (logger.isDebugEnabled())
-                    logger.debug("Trying to refresh access token - using refresh token " + getRefreshToken());
-                try {
-                    String oldToken = getAccessToken(), oldRefreshToken = getRefreshToken();
-                    JSONObject json = doRefresh(endpointId);
-                    String newToken = json.getString("access_token");
+                    logger.debug("Trying to refresh access token for " + withoutQuery(uri));
+                String oldToken = getAccessToken();
+                if (refreshTokens(endpointId, targetRes)) {
+                    tokensChanged = true;
+                }
+                if (getAccessToken() != null && !getAccessToken().equals(oldToken) && canRetry(req, targetRes, uri)) {
                     if (logger.isDebugEnabled())
-                        logger.debug("Parsed access token: " + newToken);
-                    if (newToken != null && !newToken.equals(oldToken)) {
-                        if (logger.isDebugEnabled())
-                            logger.debug("Got new access token " + newToken + " - retrying request for " + uri);
-                        connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN, newToken);
-                        tokensChanged = true;
-                        // Retry the call
-                        wrappedRes.reset();
-                        resp = callInternal(uri, context, req, wrappedRes);
-                    } else {
-                        logger.debug("No token returned or token not updated");
-                    }
-                    // In some providers the refresh token may also change when a refresh occurs
-                    if (json.has("refresh_token")) {
-                        String refreshToken = json.getString("refresh_token");
-                        if (refreshToken != null && !refreshToken.equals(oldRefreshToken)) {
-                            if (logger.isDebugEnabled())
-                                logger.debug("Got new refresh token " + refreshToken);
-                            connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN, refreshToken);
-                            tokensChanged = true;
-                        }
-                    }
-                } catch (TokenRefreshException e) {
-                    writeError(wrappedRes, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
-                            "ERR_REFRESH_TOKEN",
-                            "Unable to refresh token",
-                            e);
-                } catch (JSONException e) {
-                    writeError(wrappedRes, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
-                            "ERR_MISSING_ACCESS_TOKEN",
-                            "Unable to retrieve access token from provider response",
-                            e);
+                        logger.debug("Got new access token - retrying request for " + withoutQuery(uri));
+                    // Retry the call
+                    resetResponse(wrappedRes);
+                    resp = callInternal(uri, context, call, req, targetRes);
                 }
+            }
 
-                if (tokensChanged) {
-                    saveTokens(endpointId, req);
-                }
+            if (tokensChanged) {
+                saveTokens(endpointId, req);
             }
 
-            copyResponseContent(resp, wrappedRes, res, true);
+            finishResponse(resp, wrappedRes, res);
         } catch (CredentialVaultProviderException e) {
             writeError(res, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
                     "ERR_CREDENTIALSTORE",
@@ -229,20 +762,623 @@ public class HttpOAuth2Connector extends HttpConnector {
                     "ERR_COPY_RESPONSE",
                     "Error encountered copying outputstream",
                     e);
+        } finally {
+            releaseBufferedResponse(wrappedRes, res);
+        }
+
+        return resp;
+    }
+
+    /**
+     * Whether the request is for part of a resource, in which case only the requested bytes are fetched and the
+     * response is not buffered
+     */
+    private static boolean isRangeRequest(HttpServletRequest req) {
+        return req.getHeader(HEADER_RANGE) != null;
+    }
+
+    /**
+     * Whether the request can be sent again after the token is replaced, which is only possible if the part of
+     * its body already sent has been kept, and none of the response has been sent to the client
+     */
+    private static boolean canRetry(HttpServletRequest req, HttpServletResponse res, String uri) {
+        if (isOverflowed(res)) {
+            if (logger.isDebugEnabled())
+                logger.debug("Response for " + withoutQuery(uri) + " has already been streamed to the client, not retrying");
+            return false;
+        }
+        if (ReplayableUploadRequest.rewind(req)) {
+            return true;
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Request body for " + withoutQuery(uri) + " is too large to send again, not retrying");
+        return false;
+    }
+
+    /**
+     * Get the maximum number of bytes of a request body to keep so that the request can be sent again, from the
+     * endpoint configuration
+     */
+    private int getUploadReplayLimit(String endpointId) {
+        String value = getDescriptorProperty(PARAM_UPLOAD_REPLAY_LIMIT, endpointId);
+        if (value != null) {
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value " + value + " for " + PARAM_UPLOAD_REPLAY_LIMIT + " on endpoint " + endpointId);
+            }
+        }
+        return DEFAULT_UPLOAD_REPLAY_LIMIT;
+    }
+
+    /**
+     * Get a buffer for the response, so that the request can be retried. A response which the caller is already
+     * buffering is used as it is. Otherwise memory for the buffer is reserved from the node's budget, and if none is
+     * available the response is streamed instead.
+     *
+     * @return The buffer, or null if the response should be streamed straight to the client
+     */
+    private FakeHttpServletResponse newBufferedResponse(HttpServletResponse res, boolean streamed) {
+        if (res instanceof FakeHttpServletResponse) {
+            return (FakeHttpServletResponse) res;
+        }
+        if (streamed) {
+            return null;
+        }
+        OAuth2ResponseBudget budget = getResponseBudget();
+        long reserved = budget.reserve();
+        if (reserved <= 0) {
+            getTracer().recordRejection(null, "responseBudget");
+            return null;
+        }
+        return new BudgetedResponse(res, budget, reserved);
+    }
+
+    /**
+     * Get the size of a response body, for recording. The size is known if the response was buffered, or if the
+     * provider gave a content length.
+     *
+     * @return The size in bytes, or -1 if it is not known
+     */
+    private static long getResponseBytes(Response resp, HttpServletResponse res) {
+        if (res instanceof BudgetedResponse) {
+            return ((BudgetedResponse) res).size;
+        }
+        String contentLength = getHeader(resp.getStatus().getHeaders(), HEADER_CONTENT_LENGTH);
+        if (contentLength != null) {
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1L;
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Release the memory reserved for a response buffer, unless the buffer belongs to the caller
+     */
+    private static void releaseBufferedResponse(FakeHttpServletResponse wrappedRes, HttpServletResponse res) {
+        if (wrappedRes != res && wrappedRes instanceof BudgetedResponse) {
+            ((BudgetedResponse) wrappedRes).release();
+        }
+    }
+
+    /**
+     * Whether a buffered response grew too large for the response budget, so that it has been sent on to the client
+     * and the rest of it streamed. Such a response cannot be reset, retried, cached or shared.
+     */
+    static boolean isOverflowed(HttpServletResponse res) {
+        return res instanceof BudgetedResponse && ((BudgetedResponse) res).isStreaming();
+    }
+
+    private static void resetResponse(FakeHttpServletResponse res) {
+        if (res != null) {
+            res.reset();
+        }
+    }
+
+    /**
+     * Send the final response to the client, copying it from the buffer if it was buffered
+     */
+    private void finishResponse(Response resp, FakeHttpServletResponse wrappedRes, HttpServletResponse res) throws IOException {
+        if (wrappedRes == res) {
+            // The caller is buffering the response and will send it on
+            if (resp != null) {
+                copyResponseStatus(resp, res);
+            }
+        } else if (isOverflowed(wrappedRes)) {
+            // The start of the response has already been sent, and the rest streamed after it
+            res.flushBuffer();
+        } else if (wrappedRes != null) {
+            copyResponseContent(resp, wrappedRes, res, true);
+        } else if (resp != null && !res.isCommitted()) {
+            // The token was rejected and could not be replaced, so the streamed response was never sent
+            res.setStatus(resp.getStatus().getCode());
+            res.flushBuffer();
+        }
+    }
+
+    /**
+     * Make a call using the shared application token for the endpoint. The user's tokens and credential vault
+     * are not used.
+     */
+    protected Response callWithApplicationToken(final String endpointId, String uri, ConnectorContext context,
+                                                CallContext call, HttpServletRequest req, HttpServletResponse res) {
+        FakeHttpServletResponse wrappedRes = newBufferedResponse(res, isRangeRequest(req));
+        HttpServletResponse targetRes = wrappedRes != null ? wrappedRes : res;
+        req = ReplayableUploadRequest.wrap(req, getUploadReplayLimit(endpointId));
+        OAuth2ApplicationTokenPool tokenPool = getApplicationTokenPool();
+        OAuth2ApplicationTokenPool.TokenSource tokenSource = new OAuth2ApplicationTokenPool.TokenSource() {
+            public JSONObject requestToken() throws TokenRefreshException {
+                return doClientCredentialsRequest(endpointId);
+            }
+        };
+
+        Response resp = null;
+
+        context.setCommitResponseOnAuthenticationError(false);
+
+        try {
+            call.applicationToken = tokenPool.getAccessToken(endpointId, tokenSource);
+            resp = callInternal(uri, context, call, req, targetRes);
+
+            // The token may have been revoked by the provider before it expired
+            if (resp != null && resp.getStatus().getCode() == ResponseStatus.STATUS_UNAUTHORIZED) {
+                logger.debug("Application token rejected, requesting a new token");
+                tokenPool.invalidate(endpointId, call.applicationToken);
+                call.applicationToken = tokenPool.getAccessToken(endpointId, tokenSource);
+                if (canRetry(req, targetRes, uri)) {
+                    resetResponse(wrappedRes);
+                    resp = callInternal(uri, context, call, req, targetRes);
+                }
+            }
+
+            finishResponse(resp, wrappedRes, res);
+        } catch (TokenRefreshException e) {
+            writeError(res, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
+                    "ERR_APPLICATION_TOKEN",
+                    "Unable to obtain application access token",
+                    e);
+        } catch (IOException e) {
+            writeError(res, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
+                    "ERR_COPY_RESPONSE",
+                    "Error encountered copying outputstream",
+                    e);
+        } finally {
+            releaseBufferedResponse(wrappedRes, res);
         }
 
         return resp;
     }
 
-    protected Response callInternal(String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res) {
+    /**
+     * Use the refresh token to obtain a new access token from the provider, and place the new tokens into the
+     * connector session
+     *
+     * @param endpointId The endpoint ID
+     * @param errorRes   Response to write error information to if the refresh fails, or null to only log failures
+     * @return true if the access token or the refresh token was changed
+     */
+    private boolean refreshTokens(String endpointId, HttpServletResponse errorRes) {
+        boolean tokensChanged = false;
+        try {
+            String oldToken = getAccessToken(), oldRefreshToken = getRefreshToken();
+            JSONObject json = doRefresh(endpointId);
+            String newToken = json.getString("access_token");
+            if (newToken != null && !newToken.equals(oldToken)) {
+                connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN, newToken);
+                connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES, json.has("expires_in") ?
+                        String.valueOf(System.currentTimeMillis() + json.getLong("expires_in") * 1000L) : null);
+                inspectAccessToken(endpointId);
+                tokensChanged = true;
+                logger.debug("Got new access token");
+            } else {
+                logger.debug("No token returned or token not updated");
+            }
+            // In some providers the refresh token may also change when a refresh occurs
+            if (json.has("refresh_token")) {
+                String refreshToken = json.getString("refresh_token");
+                if (refreshToken != null && !refreshToken.equals(oldRefreshToken)) {
+                    logger.debug("Got new refresh token");
+                    connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN, refreshToken);
+                    tokensChanged = true;
+                }
+            }
+        } catch (TokenRefreshException e) {
+            if (errorRes != null) {
+                writeError(errorRes, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
+                        "ERR_REFRESH_TOKEN",
+                        "Unable to refresh token",
+                        e);
+            } else {
+                logger.warn("Unable to refresh token", e);
+            }
+        } catch (JSONException e) {
+            if (errorRes != null) {
+                writeError(errorRes, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
+                        "ERR_MISSING_ACCESS_TOKEN",
+                        "Unable to retrieve access token from provider response",
+                        e);
+            } else {
+                logger.warn("Unable to retrieve access token from provider response", e);
+            }
+        }
+        return tokensChanged;
+    }
+
+    /**
+     * Whether the access token is known to have expired. Tokens are only checked when the endpoint has
+     * <code>token-format</code> set to <code>jwt</code>, so other endpoints keep sending the token until the provider
+     * rejects it. The expiry time is read from the token, or otherwise taken from the <code>expires_in</code> value
+     * returned by the provider when the token was issued. Each token is decoded only once, with the result cached in
+     * the connector session.
+     */
+    protected boolean isAccessTokenExpired(String endpointId) {
+        if (!TOKEN_FORMAT_JWT.equals(getDescriptorProperty(PARAM_TOKEN_FORMAT, endpointId))) {
+            return false;
+        }
+        String expires = getConnectorSession().getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES);
+        if (expires == null) {
+            inspectAccessToken(endpointId);
+            expires = getConnectorSession().getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES);
+        }
+        long expiry = Long.parseLong(expires);
+        return expiry != EXPIRY_UNKNOWN && getTokenInspector().isExpired(expiry);
+    }
+
+    /**
+     * Decode the current access token and record its expiry time in the connector session. The expiry read
+     * from a JWT takes precedence over any expiry already recorded from the provider response.
+     */
+    private void inspectAccessToken(String endpointId) {
+        Long expiry = null;
+        if (TOKEN_FORMAT_JWT.equals(getDescriptorProperty(PARAM_TOKEN_FORMAT, endpointId)) && hasAccessToken()) {
+            expiry = getTokenInspector().getExpiry(getAccessToken(), getDescriptorProperty(PARAM_JWKS_URL, endpointId));
+        }
+        if (expiry != null) {
+            connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES, String.valueOf(expiry.longValue()));
+        } else if (connectorSession.getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES) == null) {
+            connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES, String.valueOf(EXPIRY_UNKNOWN));
+        }
+    }
+
+    protected Response callInternal(final String uri, final ConnectorContext context, final CallContext call,
+                                    final HttpServletRequest req, HttpServletResponse res) {
+        String method = req.getMethod();
+        String acceptEncoding = getAcceptedEncodings(req);
+        call.setForwardedHeaders(req, acceptEncoding);
+        String endpointId = getEndpointId(uri, req);
+        int retryAttempts = getRetryAttempts(endpointId);
+        long deadline = System.currentTimeMillis() + (retryAttempts > 0 ? getRetryBudget(endpointId) : 0L);
+        Response resp = retryAttempts > 0 ? awaitThrottleWindow(endpointId, deadline) : null;
+        if (resp == null) {
+            resp = awaitRateLimit(endpointId, call);
+        }
+        if (resp != null) {
+            writeThrottledError(resp, res);
+            return resp;
+        }
+        for (int attempt = 0; ; attempt++) {
+            resp = callShared(uri, context, call, req, res, acceptEncoding);
+            updateRateLimit(endpointId, call, resp);
+            long delay = retryAttempts > 0 ? getThrottledRetryDelay(endpointId, method, resp, attempt, deadline) : -1L;
+            // Only buffered responses can be thrown away and fetched again, which is checked before waiting so that
+            // requests which cannot be retried are answered straight away
+            if (delay < 0 || !(res instanceof FakeHttpServletResponse) || !canRetry(req, res, uri) || !sleep(delay)) {
+                break;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Provider throttled request for " + withoutQuery(uri) + ", retrying after " + delay + "ms");
+            ((FakeHttpServletResponse) res).reset();
+        }
+        if (res instanceof FakeHttpServletResponse) {
+            decodeIfNotAccepted(resp, (FakeHttpServletResponse) res, acceptEncoding);
+        }
+        return resp;
+    }
+
+    /**
+     * Make a single call to the provider, sharing the response with identical requests made at the same time
+     */
+    private Response callShared(final String uri, final ConnectorContext context, final CallContext call,
+                                final HttpServletRequest req, HttpServletResponse res, String acceptEncoding) {
+        String method = req.getMethod();
+        String accessToken = getAccessToken(call);
+        if (res instanceof FakeHttpServletResponse && accessToken != null && !isRangeRequest(req) &&
+                ("GET".equals(method) || "HEAD".equals(method))) {
+            // Identical safe requests made at the same time with the same token can share a single response
+            String key = getCoalescingKey(method, endpoint + uri, req, acceptEncoding, accessToken);
+            return getRequestCoalescer().execute(key, (FakeHttpServletResponse) res, new OAuth2RequestCoalescer.Request() {
+                public Response call(FakeHttpServletResponse res) {
+                    return callProvider(uri, context, call, req, res);
+                }
+            });
+        }
+        return callProvider(uri, context, call, req, res);
+    }
+
+    /**
+     * Get the key which identifies requests that can share a response. The client's conditional headers are part of
+     * the key, since they are sent on to the provider, and a conditional request may receive an empty
+     * <code>304 Not Modified</code> response which is no use to a client without the cached response.
+     */
+    static String getCoalescingKey(String method, String url, HttpServletRequest req, String acceptEncoding,
+                                   String accessToken) {
+        return method + " " + url + "\n" + req.getHeader(HEADER_ACCEPT) + "\n" + acceptEncoding + "\n" +
+                req.getHeader(HEADER_IF_NONE_MATCH) + "\n" + req.getHeader(HEADER_IF_MODIFIED_SINCE) + "\n" +
+                accessToken;
+    }
+
+    /**
+     * Wait for the endpoint's throttle window to pass, if the provider has asked for requests to be slowed down
+     *
+     * @return A throttled response, if the window will not pass before the deadline, or otherwise null
+     */
+    private Response awaitThrottleWindow(String endpointId, long deadline) {
+        OAuth2Throttle throttle = getThrottle();
+        long window = throttle.getWindow(endpointId);
+        if (window <= 0) {
+            return null;
+        }
+        long delay = throttle.getRetryDelay(0, getRetryDelay(endpointId), window);
+        if (System.currentTimeMillis() + delay > deadline || !sleep(delay)) {
+            if (logger.isDebugEnabled())
+                logger.debug("Endpoint " + endpointId + " is throttled for " + window + "ms, not sending request");
+            getTracer().recordRejection(endpointId, "throttled");
+            return newThrottledResponse(window);
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Waited " + delay + "ms for throttling of endpoint " + endpointId + " to end");
+        return null;
+    }
+
+    /**
+     * Work out whether to retry a request which the provider has throttled, and if so how long to wait first. The
+     * throttle window given by the provider is kept, so that other requests to the endpoint wait for it to pass.
+     *
+     * @return Time to wait in milliseconds, or -1 not to retry
+     */
+    private long getThrottledRetryDelay(String endpointId, String method, Response resp, int attempt, long deadline) {
+        if (resp == null || !OAuth2Throttle.isThrottled(resp.getStatus().getCode())) {
+            return -1L;
+        }
+        OAuth2Throttle throttle = getThrottle();
+        long retryAfter = throttle.throttled(endpointId, getHeader(resp.getStatus().getHeaders(), OAuth2Throttle.HEADER_RETRY_AFTER));
+        if (attempt >= getRetryAttempts(endpointId) || !IDEMPOTENT_METHODS.contains(method)) {
+            return -1L;
+        }
+        long delay = throttle.getRetryDelay(attempt, getRetryDelay(endpointId), retryAfter);
+        return System.currentTimeMillis() + delay <= deadline ? delay : -1L;
+    }
+
+    /**
+     * Take a request from the provider's rate limit, waiting for it to allow one if need be
+     *
+     * @return A throttled response, if the request is shed to stay within the limit, or otherwise null
+     */
+    private Response awaitRateLimit(String endpointId, CallContext call) {
+        if (!isRateLimited(endpointId)) {
+            return null;
+        }
+        String key = getRateLimitKey(endpointId, call);
+        boolean lowPriority = call.lowPriority;
+        OAuth2RateLimiter rateLimiter = getRateLimiter();
+        long wait = rateLimiter.acquire(key, endpointId, lowPriority);
+        if (wait == 0) {
+            return null;
+        }
+        if (wait < 0 || !sleep(wait)) {
+            if (logger.isDebugEnabled())
+                logger.debug("Rate limit for endpoint " + endpointId + " is running out, not sending " +
+                        (lowPriority ? "low priority " : "") + "request");
+            getTracer().recordRejection(endpointId, "rateLimited");
+            return newThrottledResponse(rateLimiter.getWait(key, endpointId));
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Waited " + wait + "ms for rate limit of endpoint " + endpointId);
+        return null;
+    }
+
+    /**
+     * Keep the rate limits reported in a provider's response, for the token it was made with and for the whole
+     * application. The key is worked out again, since the token may have been refreshed during the call.
+     */
+    private void updateRateLimit(String endpointId, CallContext call, Response resp) {
+        if (resp != null && isRateLimited(endpointId)) {
+            getRateLimiter().update(getRateLimitKey(endpointId, call), endpointId, resp.getStatus().getHeaders());
+        }
+    }
+
+    /**
+     * Whether rate limit headers are followed for the endpoint
+     */
+    private boolean isRateLimited(String endpointId) {
+        return !RATE_LIMIT_SCOPE_NONE.equalsIgnoreCase(getDescriptorProperty(PARAM_RATE_LIMIT_SCOPE, endpointId));
+    }
+
+    /**
+     * Get the key under which the provider's limit for the access token is kept. The limit for the whole
+     * application is kept under the endpoint ID.
+     *
+     * @return The key, or null if the endpoint's rate limit headers apply to the whole application or the call has
+     *          no access token
+     */
+    private String getRateLimitKey(String endpointId, CallContext call) {
+        if (RATE_LIMIT_SCOPE_APP.equalsIgnoreCase(getDescriptorProperty(PARAM_RATE_LIMIT_SCOPE, endpointId))) {
+            return null;
+        }
+        String token = getAccessToken(call);
+        return token != null ? OAuth2RateLimiter.getKey(endpointId, token) : null;
+    }
+
+    private static Response newThrottledResponse(long window) {
+        ResponseStatus status = new ResponseStatus();
+        status.setCode(OAuth2Throttle.STATUS_TOO_MANY_REQUESTS);
+        Map<String, String> headers = new HashMap<String, String>(4);
+        headers.put(OAuth2Throttle.HEADER_RETRY_AFTER, String.valueOf(Math.max(1L, (window + 999L) / 1000L)));
+        headers.put(HEADER_CONTENT_TYPE, Format.JSON.mimetype());
+        status.setHeaders(headers);
+        return new Response((String) null, status);
+    }
+
+    private void writeThrottledError(Response resp, HttpServletResponse res) {
+        res.setHeader(OAuth2Throttle.HEADER_RETRY_AFTER, getHeader(resp.getStatus().getHeaders(), OAuth2Throttle.HEADER_RETRY_AFTER));
+        writeError(res, OAuth2Throttle.STATUS_TOO_MANY_REQUESTS,
+                "ERR_THROTTLED",
+                "The provider has asked for requests to be slowed down",
+                null);
+    }
+
+    /**
+     * @return Whether the full time was waited, rather than the thread being interrupted
+     */
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private int getRetryAttempts(String endpointId) {
+        return (int) getLongProperty(PARAM_RETRY_ATTEMPTS, endpointId, 0L);
+    }
+
+    private long getRetryDelay(String endpointId) {
+        return getLongProperty(PARAM_RETRY_DELAY, endpointId, DEFAULT_RETRY_DELAY);
+    }
+
+    private long getRetryBudget(String endpointId) {
+        return getLongProperty(PARAM_RETRY_BUDGET, endpointId, DEFAULT_RETRY_BUDGET);
+    }
+
+    private long getLongProperty(String propertyName, String endpointId, long defaultValue) {
+        String value = getDescriptorProperty(propertyName, endpointId);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                logger.warn("Invalid value " + value + " for " + propertyName + " on endpoint " + endpointId);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Decode a buffered response body if the provider has compressed it using an encoding which the client did not
+     * accept. Compressed bodies which the client does accept are passed through unchanged.
+     */
+    private void decodeIfNotAccepted(Response resp, FakeHttpServletResponse res, String acceptedEncodings) {
+        // Part of a compressed body cannot be decoded on its own
+        if (resp == null || resp.getStatus().getCode() == Status.STATUS_PARTIAL_CONTENT || isOverflowed(res)) {
+            return;
+        }
+        Map<String, String> headers = resp.getStatus().getHeaders();
+        String contentEncoding = getHeader(headers, HEADER_CONTENT_ENCODING);
+        if (contentEncoding == null || ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding.trim()) ||
+                (acceptedEncodings != null && acceptedEncodings.contains(contentEncoding.trim().toLowerCase()))) {
+            return;
+        }
+        try {
+            byte[] decoded = decodeContent(res.getContentAsByteArray(), contentEncoding);
+            String characterEncoding = res.getCharacterEncoding();
+            res.reset();
+            if (characterEncoding != null) {
+                res.setCharacterEncoding(characterEncoding);
+            }
+            res.getOutputStream().write(decoded);
+            removeHeader(headers, HEADER_CONTENT_ENCODING);
+            removeHeader(headers, HEADER_CONTENT_LENGTH);
+            if (logger.isDebugEnabled())
+                logger.debug("Decoded " + contentEncoding + " response for client which does not accept it");
+        } catch (IOException e) {
+            logger.warn("Unable to decode " + contentEncoding + " response", e);
+        }
+    }
+
+    private Response callProvider(String uri, ConnectorContext context, CallContext call, HttpServletRequest req,
+                                  HttpServletResponse res) {
+        OAuth2Span span = getTracer().startSpan("oauth2.providerCall");
+        long start = System.nanoTime();
+        int status = 0;
+        currentCall.set(call);
+        try {
+            Response resp = super.call(uri, context, req, res);
+            status = resp.getStatus().getCode();
+            if (span.isRecorded()) {
+                span.setAttribute("status", status).setAttribute("bytes", getResponseBytes(resp, res));
+            }
+            return resp;
+        } catch (Throwable t) {
+            span.setAttribute("error", t.toString());
+            writeError(res, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
+                    "ERR_CALLOUT",
+                    "Encountered error when attempting to reload",
+                    t);
+            return null;
+        } finally {
+            currentCall.remove();
+            getUpstreamMetrics().recordUpstream(getEndpointId(uri, req), status, System.nanoTime() - start);
+            span.end();
+        }
+    }
+
+    /**
+     * Make a call which is not proxying a servlet request, writing the response body to the given stream
+     */
+    protected Response callInternal(String uri, ConnectorContext context, CallContext call, InputStream in, OutputStream out) {
+        String endpointId = getSessionEndpointId();
+        int retryAttempts = getRetryAttempts(endpointId);
+        long deadline = System.currentTimeMillis() + (retryAttempts > 0 ? getRetryBudget(endpointId) : 0L);
+        Response resp = retryAttempts > 0 ? awaitThrottleWindow(endpointId, deadline) : null;
+        if (resp == null) {
+            resp = awaitRateLimit(endpointId, call);
+        }
+        if (resp != null) {
+            return resp;
+        }
+        // Only bodies held in memory can be sent and received again
+        boolean replayable = out instanceof ByteArrayOutputStream && (in == null || in instanceof ByteArrayInputStream);
+        String method = context != null ? context.getMethod().toString() : "GET";
+        for (int attempt = 0; ; attempt++) {
+            resp = callProvider(endpointId, uri, context, call, in, out);
+            updateRateLimit(endpointId, call, resp);
+            long delay = retryAttempts > 0 ? getThrottledRetryDelay(endpointId, method, resp, attempt, deadline) : -1L;
+            // Only wait if the request can be sent again
+            if (delay < 0 || !replayable || !sleep(delay)) {
+                return resp;
+            }
+            if (logger.isDebugEnabled())
+                logger.debug("Provider throttled request for " + withoutQuery(uri) + ", retrying after " + delay + "ms");
+            ((ByteArrayOutputStream) out).reset();
+            if (in != null) {
+                ((ByteArrayInputStream) in).reset();
+            }
+        }
+    }
+
+    private Response callProvider(String endpointId, String uri, ConnectorContext context, CallContext call,
+                                  InputStream in, OutputStream out) {
+        OAuth2Span span = getTracer().startSpan("oauth2.providerCall");
+        long start = System.nanoTime();
+        int status = 0;
+        currentCall.set(call);
         try {
-            return super.call(uri, context, req, res);
+            Response resp = super.call(uri, context, in, out);
+            status = resp.getStatus().getCode();
+            span.setAttribute("status", status);
+            return resp;
         } catch (Throwable t) {
-            writeError(res, ResponseStatus.STATUS_INTERNAL_SERVER_ERROR,
-                    "ERR_CALLOUT",
-                    "Encountered error when attempting to reload",
-                    t);
+            span.setAttribute("error", t.toString());
+            logger.warn("Encountered error when calling " + withoutQuery(uri), t);
             return null;
+        } finally {
+            currentCall.remove();
+            getUpstreamMetrics().recordUpstream(endpointId, status, System.nanoTime() - start);
+            span.end();
         }
     }
 
@@ -252,13 +1388,18 @@ public class HttpOAuth2Connector extends HttpConnector {
 
     private OAuth2CredentialVault getCredentialVault(String endpointId, HttpServletRequest request, boolean load)
             throws CredentialVaultProviderException, ConnectorServiceException {
-        HttpSession session = request.getSession(false);
+        return getCredentialVault(endpointId, request.getSession(false), load);
+    }
+
+    private OAuth2CredentialVault getCredentialVault(String endpointId, HttpSession session, boolean load)
+            throws CredentialVaultProviderException, ConnectorServiceException {
         if (session != null) {
             String userId = getUserId(session);
             ConnectorService connectorService = getConnectorService();
 
             // TODO Check that userId is not null, which it will be if the user's session has expired
             OAuth2CredentialVault vault = (OAuth2CredentialVault) connectorService.getCredentialVault(session, userId, VAULT_PROVIDER_ID);
+            vault.setUserId(userId);
             if (load) {
                 vault.load(endpointId, connectorService.getConnector("alfresco", userId, session));
             }
@@ -269,45 +1410,224 @@ public class HttpOAuth2Connector extends HttpConnector {
         }
     }
 
+    /**
+     * Apply tokens already held in the user's credential vault to the connector session, without making a
+     * call to the repository
+     */
+    protected void loadCachedTokens(String endpointId, HttpServletRequest request) throws CredentialVaultProviderException, ConnectorServiceException {
+        loadCachedTokens(endpointId, request.getSession(false));
+    }
+
+    protected void loadCachedTokens(String endpointId, HttpSession session) throws CredentialVaultProviderException, ConnectorServiceException {
+        OAuth2CredentialVault vault = getCredentialVault(endpointId, session, false);
+        if (vault != null) {
+            applyTokens(vault.getCachedCredentials(endpointId));
+        }
+    }
+
     protected void loadTokens(String endpointId, HttpServletRequest request) throws CredentialVaultProviderException, ConnectorServiceException {
+        loadTokens(endpointId, request.getSession(false));
+    }
+
+    protected void loadTokens(String endpointId, HttpSession session) throws CredentialVaultProviderException, ConnectorServiceException {
         logger.debug("Loading OAuth tokens for endpoint " + endpointId);
 
-        OAuth2CredentialVault vault = getCredentialVault(endpointId, request, true);
-        Credentials oauthCredentials = vault.retrieve(endpointId);
+        OAuth2Span span = getTracer().startSpan("oauth2.loadTokens").setAttribute("endpoint", endpointId);
+        long start = System.nanoTime();
+        try {
+            OAuth2CredentialVault vault = getCredentialVault(endpointId, session, true);
+            if (vault != null) {
+                applyTokens(vault.retrieve(endpointId));
+            }
+            span.setAttribute("found", hasAccessToken());
+        } finally {
+            OAuth2UpstreamMetrics.addTokenTime(System.nanoTime() - start);
+            span.end();
+        }
+    }
+
+    private void applyTokens(Credentials oauthCredentials) {
         if (oauthCredentials != null) {
-            if (oauthCredentials.getProperty(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN) != null) {
-                connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN,
-                        oauthCredentials.getProperty(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN).toString());
+            OAuth2CredentialVault.TokenSnapshot tokens = OAuth2CredentialVault.getTokens(oauthCredentials);
+            if (tokens.getAccessToken() != null) {
+                connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN, tokens.getAccessToken());
+                // Use the stored expiry if there is one, otherwise it will be determined again when next needed
+                connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES,
+                        tokens.getExpiresAt() != null ? tokens.getExpiresAt().toString() : null);
                 // Store refresh token if available
-                if (oauthCredentials.getProperty(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN) != null) {
-                    connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN,
-                            oauthCredentials.getProperty(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN).toString());
+                if (tokens.getRefreshToken() != null) {
+                    connectorSession.setParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN, tokens.getRefreshToken());
                 }
             }
         }
     }
 
     protected void saveTokens(String endpointId, HttpServletRequest request) throws CredentialVaultProviderException, ConnectorServiceException {
+        saveTokens(endpointId, request.getSession(false));
+    }
+
+    protected void saveTokens(String endpointId, HttpSession session) throws CredentialVaultProviderException, ConnectorServiceException {
         logger.debug("Saving OAuth tokens for endpoint " + endpointId);
-        HttpSession session = request.getSession(false);
-        if (session != null) {
+        if (session == null) {
+            return;
+        }
+        OAuth2Span span = getTracer().startSpan("oauth2.saveTokens").setAttribute("endpoint", endpointId);
+        long start = System.nanoTime();
+        try {
             String userId = getUserId(session);
             ConnectorService connectorService = getConnectorService();
 
-            OAuth2CredentialVault vault = getCredentialVault(endpointId, request, true);
+            OAuth2CredentialVault vault = getCredentialVault(endpointId, session, true);
             Credentials oauthCredentials = vault.retrieve(endpointId);
             if (oauthCredentials != null) {
-                oauthCredentials.setProperty(
-                        OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN,
-                        connectorSession.getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN)
+                String expires = connectorSession.getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN_EXPIRES);
+                vault.storeTokens(
+                        endpointId,
+                        connectorSession.getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN),
+                        connectorSession.getParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN),
+                        expires != null && Long.parseLong(expires) != EXPIRY_UNKNOWN ? Long.valueOf(expires) : null
                 );
-                oauthCredentials.setProperty(
-                        OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN,
-                        connectorSession.getParameter(OAuth2Authenticator.CS_PARAM_REFRESH_TOKEN)
-                );
-                vault.save(connectorService.getConnector("alfresco", userId, session));
+                span.setAttribute("saved", vault.save(connectorService.getConnector("alfresco", userId, session)));
+            }
+        } finally {
+            OAuth2UpstreamMetrics.addTokenTime(System.nanoTime() - start);
+            span.end();
+        }
+    }
+
+    private Response writeCachedResponse(OAuth2ResponseCache.CachedResponse cached, HttpServletResponse res, String warning) throws IOException {
+        res.setStatus(cached.getStatus());
+        for (Map.Entry<String, String> header : cached.getHeaders().entrySet()) {
+            res.setHeader(header.getKey(), header.getValue());
+        }
+        res.setHeader(HEADER_AGE, String.valueOf(cached.getAge()));
+        if (warning != null) {
+            res.setHeader(HEADER_WARNING, warning);
+        }
+        if (cached.getCharacterEncoding() != null) {
+            res.setCharacterEncoding(cached.getCharacterEncoding());
+        }
+        res.getOutputStream().write(cached.getBody());
+        res.flushBuffer();
+
+        ResponseStatus status = new ResponseStatus();
+        status.setCode(cached.getStatus());
+        status.setHeaders(cached.getHeaders());
+        return new Response((String) null, status);
+    }
+
+    /**
+     * Whether a response may be stored in the response cache. Responses must not be marked <code>no-store</code>,
+     * and unless <code>allowUnvalidated</code> is set must either have a <code>max-age</code> or a validator which
+     * can be used to revalidate them.
+     */
+    private boolean isCacheable(Map<String, String> headers, boolean allowUnvalidated) {
+        String cacheControl = getHeader(headers, HEADER_CACHE_CONTROL), vary = getHeader(headers, HEADER_VARY);
+        if (hasCacheDirective(cacheControl, "no-store") || getHeader(headers, HEADER_SET_COOKIE) != null ||
+                (vary != null && vary.trim().equals("*"))) {
+            return false;
+        }
+        return allowUnvalidated || getMaxAge(headers) > 0 || getHeader(headers, HEADER_ETAG) != null ||
+                getHeader(headers, HEADER_LAST_MODIFIED) != null;
+    }
+
+    /**
+     * Get the time in milliseconds for which a response is fresh, from its <code>Cache-Control</code> header
+     */
+    private long getMaxAge(Map<String, String> headers) {
+        String cacheControl = getHeader(headers, HEADER_CACHE_CONTROL);
+        if (cacheControl == null || hasCacheDirective(cacheControl, "no-cache")) {
+            return 0L;
+        }
+        for (String directive : cacheControl.split(",")) {
+            directive = directive.trim();
+            if (directive.toLowerCase().startsWith("max-age=")) {
+                try {
+                    return Long.parseLong(directive.substring(8).trim()) * 1000L;
+                } catch (NumberFormatException e) {
+                    return 0L;
+                }
+            }
+        }
+        return 0L;
+    }
+
+    private static boolean hasCacheDirective(String cacheControl, String directive) {
+        if (cacheControl != null) {
+            for (String value : cacheControl.split(",")) {
+                if (value.trim().equalsIgnoreCase(directive)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getHeader(Map<String, String> headers, String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static void removeHeader(Map<String, String> headers, String name) {
+        for (java.util.Iterator<String> it = headers.keySet().iterator(); it.hasNext(); ) {
+            String key = it.next();
+            if (key != null && key.equalsIgnoreCase(name)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the supported content codings accepted by the client, in a form which can be sent on to the provider
+     *
+     * @return A comma-separated list of codings, or null if the client accepts none of them
+     */
+    private static String getAcceptedEncodings(HttpServletRequest req) {
+        String header = req.getHeader(HEADER_ACCEPT_ENCODING);
+        if (header == null) {
+            return null;
+        }
+        StringBuilder accepted = new StringBuilder();
+        for (String part : header.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase();
+            if (SUPPORTED_ENCODINGS.contains(coding) && !isZeroQuality(params) && accepted.indexOf(coding) == -1) {
+                if (accepted.length() > 0) {
+                    accepted.append(", ");
+                }
+                accepted.append(coding);
+            }
+        }
+        return accepted.length() > 0 ? accepted.toString() : null;
+    }
+
+    private static boolean isZeroQuality(String[] params) {
+        for (int i = 1; i < params.length; i++) {
+            String param = params[i].trim();
+            if (param.startsWith("q=")) {
+                try {
+                    return Float.parseFloat(param.substring(2)) <= 0f;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
             }
         }
+        return false;
+    }
+
+    private static byte[] decodeContent(byte[] body, String contentEncoding) throws IOException {
+        String coding = contentEncoding.trim().toLowerCase();
+        InputStream in = "gzip".equals(coding) || "x-gzip".equals(coding) ?
+                new GZIPInputStream(new ByteArrayInputStream(body)) : new InflaterInputStream(new ByteArrayInputStream(body));
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
     }
 
     private void copyResponseContent(Response resp, FakeHttpServletResponse source, HttpServletResponse dest, boolean flush) throws IOException {
@@ -318,14 +1638,7 @@ public class HttpOAuth2Connector extends HttpConnector {
                 logger.trace("Setting status " + resp.getStatus().getCode());
                 logger.trace("Setting encoding " + source.getCharacterEncoding());
             }
-            dest.setStatus(resp.getStatus().getCode());
-            // Copy headers over
-            for (Map.Entry<String, String> header : resp.getStatus().getHeaders().entrySet()) {
-                dest.setHeader(header.getKey(), header.getValue());
-                if (logger.isTraceEnabled()) {
-                    logger.trace("Add header " + header.getKey() + ": " + header.getValue());
-                }
-            }
+            copyResponseStatus(resp, dest);
         } else // Error info is on the fake response
         {
             dest.setStatus(source.getStatus());
@@ -346,6 +1659,17 @@ public class HttpOAuth2Connector extends HttpConnector {
         }
     }
 
+    private void copyResponseStatus(Response resp, HttpServletResponse dest) {
+        dest.setStatus(resp.getStatus().getCode());
+        // Copy headers over
+        for (Map.Entry<String, String> header : resp.getStatus().getHeaders().entrySet()) {
+            dest.setHeader(header.getKey(), header.getValue());
+            if (logger.isTraceEnabled()) {
+                logger.trace("Add header " + header.getKey() + ": " + header.getValue());
+            }
+        }
+    }
+
     private void writeError(HttpServletResponse resp, int status, String id, String message, Throwable e) {
         resp.setStatus(status);
         resp.setContentType(Format.JSON.mimetype());
@@ -378,22 +1702,87 @@ public class HttpOAuth2Connector extends HttpConnector {
      */
     @Override
     protected void applyRequestAuthentication(RemoteClient remoteClient, ConnectorContext context) {
-        String accessToken = null;
+        Map<String, String> headers = getRequestHeaders(context);
 
-        // if this connector is managing session info
-        if (getConnectorSession() != null) {
-            // apply alfresco ticket from connector session - i.e. previous login attempt
-            accessToken = (String) getConnectorSession().getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN);
-        }
+        // apply token from connector session - i.e. previous login attempt - or the application token
+        String authorization = getAuthorization(currentCall.get());
 
-        if (accessToken != null) {
-            String authorization = getAuthenticationMethod() + " " + accessToken;
-            if (logger.isDebugEnabled())
-                logger.debug("Adding Authorization header " + authorization);
-            Map<String, String> headers = new HashMap<String, String>(1);
+        if (authorization != null) {
             headers.put(HEADER_AUTHORIZATION, authorization);
-            remoteClient.setRequestProperties(headers);
         }
+        remoteClient.setRequestProperties(headers);
+    }
+
+    /**
+     * Get the Authorization header value for the token sent with a call. The value for the user's token is kept in
+     * the connector session, and is only built again once the token has changed.
+     *
+     * @param call  The call being made, or null if the user's token should be sent
+     * @return The header value, or null if there is no access token
+     */
+    private String getAuthorization(CallContext call) {
+        if (call != null && call.applicationToken != null) {
+            return getAuthenticationMethod() + " " + call.applicationToken;
+        }
+        String accessToken = getAccessToken();
+        if (accessToken == null) {
+            return null;
+        }
+        String authorization = connectorSession.getParameter(CS_PARAM_AUTHORIZATION);
+        if (!isAuthorizationFor(authorization, accessToken)) {
+            authorization = getAuthenticationMethod() + " " + accessToken;
+            connectorSession.setParameter(CS_PARAM_AUTHORIZATION, authorization);
+        }
+        return authorization;
+    }
+
+    /**
+     * Whether an Authorization header value was built for the given token, checked without creating any objects
+     */
+    private static boolean isAuthorizationFor(String authorization, String accessToken) {
+        int methodEnd = authorization != null ? authorization.length() - accessToken.length() - 1 : -1;
+        return methodEnd > 0 && authorization.charAt(methodEnd) == ' ' && authorization.endsWith(accessToken);
+    }
+
+    /**
+     * Get a URI to write to the log, without its query string, since query string connectors send the access token
+     * as a request parameter
+     */
+    static String withoutQuery(String uri) {
+        int queryStart = uri != null ? uri.indexOf('?') : -1;
+        return queryStart > -1 ? uri.substring(0, queryStart) : uri;
+    }
+
+    /**
+     * Get the headers to send to the provider, other than authentication headers. These are any headers given in
+     * the connector context, since these are replaced by the headers set here, plus the headers forwarded from the
+     * client's request. Only the content codings which the client accepts are requested, so that compressed
+     * responses can be passed to the client without being decoded and compressed again. The current trace is
+     * passed on in a <code>traceparent</code> header.
+     *
+     * <p>The map is reused for each call made by the thread, so it is only valid until the next call.</p>
+     */
+    protected Map<String, String> getRequestHeaders(ConnectorContext context) {
+        Map<String, String> headers = requestHeaders.get();
+        headers.clear();
+        CallContext call = currentCall.get();
+        if (call != null) {
+            call.addForwardedHeaders(headers);
+        }
+        if (context != null && context.getHeaders() != null) {
+            for (Map.Entry<String, String> header : context.getHeaders().entrySet()) {
+                removeHeader(headers, header.getKey());
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
+        if (getHeader(headers, HEADER_ACCEPT_ENCODING) == null) {
+            headers.put(HEADER_ACCEPT_ENCODING, ENCODING_IDENTITY);
+        }
+        OAuth2Span span = OAuth2Tracer.getCurrentSpan();
+        if (span != null) {
+            headers.put(OAuth2Tracer.HEADER_TRACEPARENT, span.getTraceparent());
+        }
+        return headers;
     }
 
     protected JSONObject doRefresh(String endpointId) throws TokenRefreshException {
@@ -405,47 +1794,67 @@ public class HttpOAuth2Connector extends HttpConnector {
         String clientId = getDescriptorProperty("client-id", epd);
         String clientSecret = getDescriptorProperty("client-secret", epd);
         String tokenUrl = getDescriptorProperty("access-token-url", epd);
-        /*
-        RemoteClient remoteClient = buildRemoteClient(tokenUrl);
-        
-        // POST to the request new access token URL
-        remoteClient.setRequestContentType(OAuth2Authenticator.MIMETYPE_URLENCODED);
-        String body = MessageFormat.format(OAuth2Authenticator.POST_LOGIN, URLEncoder.encodeUriComponent(refreshToken), 
-                URLEncoder.encodeUriComponent(clientId));
-        Map<String, String> headers = new HashMap<String, String>();
-        headers.put("Content-Length", "" + body.length());
-        headers.put("Accept", Format.JSON.mimetype());
-        remoteClient.setRequestProperties(headers);
 
-        if (logger.isDebugEnabled())
-            logger.debug("Calling refresh token URL " + tokenUrl + " with data " + body);
-
-        Response response = remoteClient.call(tokenUrl, body);
-        int statusCode = response.getStatus().getCode();
-        String tokenResp = response.getResponse();
-        */
-
-        HttpClient client = HttpClientBuilder.create().build();
         java.util.List<NameValuePair> formData = new java.util.ArrayList<NameValuePair>();
         formData.add(new BasicNameValuePair("grant_type", "refresh_token"));
         formData.add(new BasicNameValuePair("refresh_token", refreshToken));
         formData.add(new BasicNameValuePair("client_id", clientId));
         formData.add(new BasicNameValuePair("client_secret", clientSecret));
+
+        return doTokenRequest(tokenUrl, formData);
+    }
+
+    /**
+     * Request an application access token from the provider using the client credentials grant
+     */
+    protected JSONObject doClientCredentialsRequest(String endpointId) throws TokenRefreshException {
+        EndpointDescriptor epd = getEndpointDescriptor(endpointId);
+
+        String clientId = getDescriptorProperty("client-id", epd);
+        String clientSecret = getDescriptorProperty("client-secret", epd);
+        String tokenUrl = getDescriptorProperty("access-token-url", epd);
+        String scope = getDescriptorProperty(PARAM_SCOPE, epd);
+
+        java.util.List<NameValuePair> formData = new java.util.ArrayList<NameValuePair>();
+        formData.add(new BasicNameValuePair("grant_type", GRANT_TYPE_CLIENT_CREDENTIALS));
+        formData.add(new BasicNameValuePair("client_id", clientId));
+        formData.add(new BasicNameValuePair("client_secret", clientSecret));
+        if (scope != null) {
+            formData.add(new BasicNameValuePair("scope", scope));
+        }
+
+        return doTokenRequest(tokenUrl, formData);
+    }
+
+    /**
+     * POST the given form data to the provider's token endpoint and return the parsed JSON response
+     */
+    protected JSONObject doTokenRequest(String tokenUrl, java.util.List<NameValuePair> formData) throws TokenRefreshException {
+        HttpClient client = HttpClientBuilder.create().build();
         UrlEncodedFormEntity entity = new UrlEncodedFormEntity(formData, Consts.UTF_8);
 
         HttpPost method = new HttpPost(tokenUrl);
         method.setEntity(entity);
         method.addHeader("Accept", Format.JSON.mimetype());
 
+        OAuth2Span span = getTracer().startSpan("oauth2.tokenRequest");
+        if (span.isRecorded()) {
+            for (NameValuePair param : formData) {
+                if ("grant_type".equals(param.getName())) {
+                    span.setAttribute("grantType", param.getValue());
+                }
+            }
+        }
+        method.addHeader(OAuth2Tracer.HEADER_TRACEPARENT, span.getTraceparent());
+
+        long start = System.nanoTime();
         int statusCode;
         try {
             // statusCode
             HttpResponse response = client.execute(method);
-            // byte[] responseBody = response.getEntity().getContent(); // method.getResponseBody();
             statusCode = response.getStatusLine().getStatusCode();
+            span.setAttribute("status", statusCode);
             String tokenResp = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
-            // String tokenResp = new StringReader(response.getEntity().getContent());;// new String(responseBody, Charset.forName("UTF-8"));
-
 
             if (statusCode == Status.STATUS_OK) {
                 JSONObject json;
@@ -462,11 +1871,14 @@ public class HttpOAuth2Connector extends HttpConnector {
             } else {
                 if (logger.isDebugEnabled())
                     logger.debug("Token refresh failed, received response code: " + statusCode);
-                logger.debug("Received response " + tokenResp);
                 throw new TokenRefreshException("Token refresh failed, received response code: " + statusCode);
             }
         } catch (IOException e) {
+            span.setAttribute("error", e.toString());
             throw new TokenRefreshException("Error when refreshing tokens", e);
+        } finally {
+            OAuth2UpstreamMetrics.addTokenTime(System.nanoTime() - start);
+            span.end();
         }
     }
 
@@ -515,7 +1927,332 @@ public class HttpOAuth2Connector extends HttpConnector {
     }
 
     private ConnectorService getConnectorService() {
-        return (ConnectorService) applicationContext.getBean("connector.service");
+        ConnectorService connectorService = this.connectorService;
+        if (connectorService == null) {
+            connectorService = (ConnectorService) applicationContext.getBean("connector.service");
+            this.connectorService = connectorService;
+        }
+        return connectorService;
+    }
+
+    private JwtTokenInspector getTokenInspector() {
+        JwtTokenInspector tokenInspector = this.tokenInspector;
+        if (tokenInspector == null) {
+            tokenInspector = (JwtTokenInspector) applicationContext.getBean(TOKEN_INSPECTOR_ID);
+            this.tokenInspector = tokenInspector;
+        }
+        return tokenInspector;
+    }
+
+    private OAuth2ApplicationTokenPool getApplicationTokenPool() {
+        OAuth2ApplicationTokenPool applicationTokenPool = this.applicationTokenPool;
+        if (applicationTokenPool == null) {
+            applicationTokenPool = (OAuth2ApplicationTokenPool) applicationContext.getBean(APPLICATION_TOKEN_POOL_ID);
+            this.applicationTokenPool = applicationTokenPool;
+        }
+        return applicationTokenPool;
+    }
+
+    private OAuth2RequestCoalescer getRequestCoalescer() {
+        OAuth2RequestCoalescer requestCoalescer = this.requestCoalescer;
+        if (requestCoalescer == null) {
+            requestCoalescer = (OAuth2RequestCoalescer) applicationContext.getBean(REQUEST_COALESCER_ID);
+            this.requestCoalescer = requestCoalescer;
+        }
+        return requestCoalescer;
+    }
+
+    private OAuth2RequestExecutor getRequestExecutor() {
+        OAuth2RequestExecutor requestExecutor = this.requestExecutor;
+        if (requestExecutor == null) {
+            requestExecutor = (OAuth2RequestExecutor) applicationContext.getBean(REQUEST_EXECUTOR_ID);
+            this.requestExecutor = requestExecutor;
+        }
+        return requestExecutor;
+    }
+
+    private OAuth2ResponseCache getResponseCache() {
+        OAuth2ResponseCache responseCache = this.responseCache;
+        if (responseCache == null) {
+            responseCache = (OAuth2ResponseCache) applicationContext.getBean(RESPONSE_CACHE_ID);
+            this.responseCache = responseCache;
+        }
+        return responseCache;
+    }
+
+    private OAuth2ResponseBudget getResponseBudget() {
+        OAuth2ResponseBudget responseBudget = this.responseBudget;
+        if (responseBudget == null) {
+            responseBudget = (OAuth2ResponseBudget) applicationContext.getBean(RESPONSE_BUDGET_ID);
+            this.responseBudget = responseBudget;
+        }
+        return responseBudget;
+    }
+
+    private OAuth2Tracer getTracer() {
+        OAuth2Tracer tracer = this.tracer;
+        if (tracer == null) {
+            tracer = (OAuth2Tracer) applicationContext.getBean(TRACER_ID);
+            this.tracer = tracer;
+        }
+        return tracer;
+    }
+
+    private OAuth2Throttle getThrottle() {
+        OAuth2Throttle throttle = this.throttle;
+        if (throttle == null) {
+            throttle = (OAuth2Throttle) applicationContext.getBean(THROTTLE_ID);
+            this.throttle = throttle;
+        }
+        return throttle;
+    }
+
+    private OAuth2RateLimiter getRateLimiter() {
+        OAuth2RateLimiter rateLimiter = this.rateLimiter;
+        if (rateLimiter == null) {
+            rateLimiter = (OAuth2RateLimiter) applicationContext.getBean(RATE_LIMITER_ID);
+            this.rateLimiter = rateLimiter;
+        }
+        return rateLimiter;
+    }
+
+    private OAuth2UpstreamMetrics getUpstreamMetrics() {
+        OAuth2UpstreamMetrics upstreamMetrics = this.upstreamMetrics;
+        if (upstreamMetrics == null) {
+            upstreamMetrics = (OAuth2UpstreamMetrics) applicationContext.getBean(UPSTREAM_METRICS_ID);
+            this.upstreamMetrics = upstreamMetrics;
+        }
+        return upstreamMetrics;
+    }
+
+    /**
+     * Get the request headers used to revalidate a cached response
+     */
+    private static Map<String, String> getConditionalHeaders(OAuth2ResponseCache.CachedResponse cached) {
+        Map<String, String> conditionalHeaders = new HashMap<String, String>(2);
+        String etag = getHeader(cached.getHeaders(), HEADER_ETAG),
+                lastModified = getHeader(cached.getHeaders(), HEADER_LAST_MODIFIED);
+        if (etag != null) {
+            conditionalHeaders.put(HEADER_IF_NONE_MATCH, etag);
+        }
+        if (lastModified != null) {
+            conditionalHeaders.put(HEADER_IF_MODIFIED_SINCE, lastModified);
+        }
+        return conditionalHeaders;
+    }
+
+    /**
+     * State of a single call to the provider. This is passed down to the methods making the call, rather than being
+     * kept on the connector, and is available to the request authentication applied by the HTTP connector while the
+     * call is being made.
+     */
+    protected static final class CallContext {
+        private final boolean lowPriority;
+        // Application token sent with the call, when using the client credentials grant
+        private String applicationToken;
+        // Headers from the client's request which are sent on to the provider
+        private String acceptEncoding;
+        private String range;
+        private String ifRange;
+        private boolean priority;
+
+        /**
+         * @param lowPriority Whether the call is the first to be shed when the provider's rate limit is running out
+         */
+        protected CallContext(boolean lowPriority) {
+            this.lowPriority = lowPriority;
+        }
+
+        public boolean isLowPriority() {
+            return lowPriority;
+        }
+
+        public String getApplicationToken() {
+            return applicationToken;
+        }
+
+        /**
+         * Keep the headers from the client's request which are always sent on to the provider. The content codings
+         * are limited to those supported here, and range headers are sent explicitly so that retries after the token
+         * is refreshed fetch the same range.
+         */
+        private void setForwardedHeaders(HttpServletRequest req, String acceptEncoding) {
+            this.acceptEncoding = acceptEncoding;
+            this.priority = req.getHeader(HEADER_PRIORITY) != null;
+            this.range = req.getHeader(HEADER_RANGE);
+            this.ifRange = range != null ? req.getHeader(HEADER_IF_RANGE) : null;
+        }
+
+        private void addForwardedHeaders(Map<String, String> headers) {
+            if (acceptEncoding != null) {
+                headers.put(HEADER_ACCEPT_ENCODING, acceptEncoding);
+            }
+            if (priority) {
+                // Overwrite the priority header, which is only meant for this connector (we can't explicitly remove it)
+                headers.put(HEADER_PRIORITY, "");
+            }
+            if (range != null) {
+                headers.put(HEADER_RANGE, range);
+                if (ifRange != null) {
+                    headers.put(HEADER_IF_RANGE, ifRange);
+                }
+            }
+        }
+    }
+
+    /**
+     * Proxied request which revalidates a cached response. Any conditional headers sent by the client are
+     * replaced by those for the cached response, since the client will receive the full cached response if
+     * it has not been modified.
+     */
+    private static class ConditionalRequest extends HttpServletRequestWrapper {
+        private final Map<String, String> conditionalHeaders;
+
+        private ConditionalRequest(HttpServletRequest request, Map<String, String> conditionalHeaders) {
+            super(request);
+            this.conditionalHeaders = conditionalHeaders;
+        }
+
+        private boolean isConditionalHeader(String name) {
+            return HEADER_IF_NONE_MATCH.equalsIgnoreCase(name) || HEADER_IF_MODIFIED_SINCE.equalsIgnoreCase(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return isConditionalHeader(name) ? HttpOAuth2Connector.getHeader(conditionalHeaders, name) : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration getHeaders(String name) {
+            if (isConditionalHeader(name)) {
+                String value = getHeader(name);
+                return Collections.enumeration(value != null ? Collections.singletonList(value) : Collections.<String>emptyList());
+            }
+            return super.getHeaders(name);
+        }
+
+        @Override
+        public Enumeration getHeaderNames() {
+            List<String> names = new ArrayList<String>();
+            for (Enumeration e = super.getHeaderNames(); e.hasMoreElements(); ) {
+                String name = (String) e.nextElement();
+                if (!isConditionalHeader(name)) {
+                    names.add(name);
+                }
+            }
+            names.addAll(conditionalHeaders.keySet());
+            return Collections.enumeration(names);
+        }
+    }
+
+    /**
+     * Response buffer which charges the node's response budget for the memory it uses. Once the budget will not let
+     * the buffer grow any further, its status, headers and content so far are sent to the client, and the rest of
+     * the response is written straight through.
+     */
+    private static class BudgetedResponse extends FakeHttpServletResponse {
+        // Extra bytes reserved each time the buffer outgrows its reservation, to avoid reserving on every write
+        private static final long GROWTH_STEP = 64L * 1024L;
+
+        private final HttpServletResponse res;
+        private final OAuth2ResponseBudget budget;
+        private long reserved;
+        private long size;
+        private boolean streaming;
+
+        private BudgetedResponse(HttpServletResponse res, OAuth2ResponseBudget budget, long reserved) {
+            super(res);
+            this.res = res;
+            this.budget = budget;
+            this.reserved = reserved;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            final ServletOutputStream out = super.getOutputStream();
+            return new ServletOutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    if (written(1)) {
+                        out.write(b);
+                    } else {
+                        res.getOutputStream().write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    if (written(len)) {
+                        out.write(b, off, len);
+                    } else {
+                        res.getOutputStream().write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    if (isStreaming()) {
+                        res.getOutputStream().flush();
+                    } else {
+                        out.flush();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void reset() {
+            if (isStreaming()) {
+                throw new IllegalStateException("Response has already been sent to the client");
+            }
+            super.reset();
+            size = 0L;
+        }
+
+        /**
+         * Account for bytes about to be written, and switch to streaming if the budget will not hold them
+         *
+         * @return true if the bytes should be buffered, or false if they should be written straight to the client
+         */
+        private synchronized boolean written(int len) throws IOException {
+            size += len;
+            if (streaming) {
+                return false;
+            }
+            if (size > reserved && reserved > 0) {
+                long grown = budget.grow(reserved, Math.max(size, Math.min(size + GROWTH_STEP, budget.getMaxResponseBytes())));
+                if (grown < 0) {
+                    startStreaming();
+                    return false;
+                }
+                reserved = grown;
+            }
+            return true;
+        }
+
+        private void startStreaming() throws IOException {
+            streaming = true;
+            res.setStatus(getStatus());
+            for (Object hdr : getHeaderNames()) {
+                res.setHeader((String) hdr, (String) getHeader((String) hdr));
+            }
+            if (getContentType() != null) {
+                res.setContentType(getContentType());
+            }
+            if (getCharacterEncoding() != null) {
+                res.setCharacterEncoding(getCharacterEncoding());
+            }
+            res.getOutputStream().write(getContentAsByteArray());
+        }
+
+        private synchronized boolean isStreaming() {
+            return streaming;
+        }
+
+        private synchronized void release() {
+            budget.release(reserved);
+            reserved = 0L;
+        }
     }
 }
 
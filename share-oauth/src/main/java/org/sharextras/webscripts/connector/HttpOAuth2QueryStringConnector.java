@@ -1,5 +1,8 @@
 package org.sharextras.webscripts.connector;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
@@ -19,25 +22,34 @@ public class HttpOAuth2QueryStringConnector extends HttpOAuth2Connector
     }
 
     @Override
-    protected Response callInternal(String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res)
+    protected Response callInternal(String uri, ConnectorContext context, CallContext call, HttpServletRequest req,
+                                    HttpServletResponse res)
+    {
+        return super.callInternal(applyRequestParameter(uri, call), context, call, req, res);
+    }
+
+    @Override
+    protected Response callInternal(String uri, ConnectorContext context, CallContext call, InputStream in, OutputStream out)
+    {
+        return super.callInternal(applyRequestParameter(uri, call), context, call, in, out);
+    }
+
+    @Override
+    protected HttpOAuth2Connector newConnector(ConnectorDescriptor descriptor, String endpoint)
     {
-        return super.callInternal(applyRequestParameter(uri), context, req, res);
+        return new HttpOAuth2QueryStringConnector(descriptor, endpoint);
     }
 
-    protected String applyRequestParameter(String uri)
+    protected String applyRequestParameter(String uri, CallContext call)
     {
-        String accessToken = null;
-        if (getConnectorSession() != null)
+        // apply token from connector session - i.e. previous login attempt - or the application token
+        String accessToken = getAccessToken(call);
+        if (accessToken != null)
         {
-            // apply alfresco ticket from connector session - i.e. previous login attempt
-            accessToken = (String) getConnectorSession().getParameter(OAuth2Authenticator.CS_PARAM_ACCESS_TOKEN);
-            if (accessToken != null)
-            {
-                String uriWithToken = uri +
-                        (uri.lastIndexOf('?') == -1 ? ("?"+getParameterName()+"="+accessToken) : ("&"+getParameterName()+"="+accessToken));
-                
-                return uriWithToken;
-            }
+            String uriWithToken = uri +
+                    (uri.lastIndexOf('?') == -1 ? ("?"+getParameterName()+"="+accessToken) : ("&"+getParameterName()+"="+accessToken));
+            
+            return uriWithToken;
         }
         return uri;
     }
@@ -45,7 +57,8 @@ public class HttpOAuth2QueryStringConnector extends HttpOAuth2Connector
     @Override
     protected void applyRequestAuthentication(RemoteClient remoteClient, ConnectorContext context)
     {
-        // Do nothing
+        // The token is sent in the query string, so only the other request headers are needed
+        remoteClient.setRequestProperties(getRequestHeaders(context));
     }
 
     public String getParameterName()
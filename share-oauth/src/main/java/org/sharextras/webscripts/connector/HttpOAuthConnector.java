@@ -40,6 +40,7 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.springframework.context.ApplicationContext;
 import org.springframework.extensions.config.RemoteConfigElement.ConnectorDescriptor;
 import org.springframework.extensions.surf.util.Base64;
 import org.springframework.extensions.surf.util.URLEncoder;
@@ -78,8 +79,12 @@ public class HttpOAuthConnector extends HttpConnector
 	public static final String OAUTH_VERSION_1 = "1.0";
 	public static final String OAUTH_VERSION_DEFAULT = OAUTH_VERSION_1;
 	
+	private static final String UPSTREAM_METRICS_ID = "oAuth2UpstreamMetrics";
+	
     private static Log logger = LogFactory.getLog(HttpOAuthConnector.class);
     
+    private ApplicationContext applicationContext;
+    
 	public HttpOAuthConnector(ConnectorDescriptor descriptor,
 			String endpoint) {
 		super(descriptor, endpoint);
@@ -272,8 +277,40 @@ public class HttpOAuthConnector extends HttpConnector
 			.replaceAll("\\*", "%2A");
     }
 	
-    @SuppressWarnings("unchecked")
+	public void setApplicationContext(ApplicationContext applicationContext)
+	{
+		super.setApplicationContext(applicationContext);
+		this.applicationContext = applicationContext;
+	}
+	
 	public Response call(String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res)
+	{
+		String endpointId = OAuth2UpstreamMetrics.getProxiedEndpointId(uri, req);
+		if (endpointId == null)
+			endpointId = this.endpoint;
+		String httpMethod = (context != null ? context.getMethod().toString() : "GET");
+		
+		OAuth2UpstreamMetrics.Call timing = getUpstreamMetrics().start(endpointId, httpMethod, uri);
+		Response response = null;
+		try
+		{
+			response = callEndpoint(endpointId, uri, context, req, res);
+			return response;
+		}
+		finally
+		{
+			timing.end(response != null ? response.getStatus().getCode() : 0,
+					response != null ? OAuth2UpstreamMetrics.getContentLength(response) : -1L);
+		}
+	}
+	
+	private OAuth2UpstreamMetrics getUpstreamMetrics()
+	{
+		return (OAuth2UpstreamMetrics) applicationContext.getBean(UPSTREAM_METRICS_ID);
+	}
+	
+    @SuppressWarnings("unchecked")
+	private Response callEndpoint(String endpointId, String uri, ConnectorContext context, HttpServletRequest req, HttpServletResponse res)
     {
     	String httpMethod = (context != null ? context.getMethod().toString() : "GET");
     	
@@ -389,7 +426,16 @@ public class HttpOAuthConnector extends HttpConnector
         	}
             
             // call client and process response
-            response = remoteClient.call(uri, req, res);
+            long start = System.nanoTime();
+            try
+            {
+                response = remoteClient.call(uri, req, res);
+            }
+            finally
+            {
+                getUpstreamMetrics().recordUpstream(endpointId, response != null ? response.getStatus().getCode() : 0,
+                        System.nanoTime() - start);
+            }
             processResponse(remoteClient, response);
         }
         else
@@ -0,0 +1,301 @@
+package org.sharextras.webscripts.connector;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.springframework.extensions.webscripts.Format;
+import org.springframework.extensions.webscripts.Status;
+
+/**
+ * Reads the expiry time from OAuth 2.0 access tokens which are JSON Web Tokens, so that connectors can refresh
+ * expired tokens before using them instead of waiting for the provider to reject them.
+ *
+ * <p>If a JWKS URL is given then the token signature is verified against the provider's published keys before
+ * the expiry is trusted. Key sets are cached for a configurable period, and fetched again early if a token is
+ * signed with a key ID which is not in the cached set. Only RSA signatures (RS256, RS384 and RS512) are
+ * supported. Key sets are fetched while handling a request, using a single HTTP client with connect and read
+ * timeouts so that a slow provider cannot hold up requests for long.</p>
+ */
+public class JwtTokenInspector
+{
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final long DEFAULT_JWKS_CACHE_TTL = 3600000L;
+    private static final long DEFAULT_EXPIRY_MARGIN = 30000L;
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+    private static final int DEFAULT_READ_TIMEOUT = 10000;
+
+    private static final Map<String, String> SIGNATURE_ALGORITHMS = new HashMap<String, String>(4);
+    static
+    {
+        SIGNATURE_ALGORITHMS.put("RS256", "SHA256withRSA");
+        SIGNATURE_ALGORITHMS.put("RS384", "SHA384withRSA");
+        SIGNATURE_ALGORITHMS.put("RS512", "SHA512withRSA");
+    }
+
+    private static Log logger = LogFactory.getLog(JwtTokenInspector.class);
+
+    private final ConcurrentMap<String, KeySet> keySets = new ConcurrentHashMap<String, KeySet>();
+
+    private final CloseableHttpClient httpClient = HttpClientBuilder.create().build();
+
+    private long jwksCacheTtl = DEFAULT_JWKS_CACHE_TTL;
+
+    private long expiryMargin = DEFAULT_EXPIRY_MARGIN;
+
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    private int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    /**
+     * Get the expiry time of an access token
+     *
+     * @param accessToken   The access token
+     * @param jwksUrl       URL of the provider's JSON Web Key Set, used to verify the token signature, or null to
+     *                      skip verification
+     * @return The expiry time in milliseconds since the epoch, or null if the token is not a JWT, has no expiry
+     *          claim or could not be verified
+     */
+    public Long getExpiry(String accessToken, String jwksUrl)
+    {
+        String[] parts = accessToken.split("\\.");
+        if (parts.length != 3)
+        {
+            return null;
+        }
+        try
+        {
+            JSONObject header = new JSONObject(new String(Base64.decodeBase64(parts[0]), UTF_8));
+            JSONObject claims = new JSONObject(new String(Base64.decodeBase64(parts[1]), UTF_8));
+            if (jwksUrl != null && !verifySignature(header, parts, jwksUrl))
+            {
+                logger.warn("Could not verify access token signature against key set " + jwksUrl);
+                return null;
+            }
+            return claims.has("exp") ? Long.valueOf(claims.getLong("exp") * 1000L) : null;
+        }
+        catch (JSONException e)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Access token is not a valid JWT: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Whether a token with the given expiry time should be treated as expired, allowing for clock skew
+     * between ourselves and the provider
+     *
+     * @param expiry    Expiry time in milliseconds since the epoch
+     * @return true if the token has expired or is about to
+     */
+    public boolean isExpired(long expiry)
+    {
+        return System.currentTimeMillis() >= expiry - expiryMargin;
+    }
+
+    private boolean verifySignature(JSONObject header, String[] parts, String jwksUrl) throws JSONException
+    {
+        String algorithm = SIGNATURE_ALGORITHMS.get(header.optString("alg"));
+        if (algorithm == null)
+        {
+            logger.warn("Unsupported JWT signature algorithm " + header.optString("alg"));
+            return false;
+        }
+        PublicKey key = getKey(jwksUrl, header.optString("kid", null));
+        if (key == null)
+        {
+            return false;
+        }
+        try
+        {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initVerify(key);
+            signature.update((parts[0] + "." + parts[1]).getBytes(UTF_8));
+            return signature.verify(Base64.decodeBase64(parts[2]));
+        }
+        catch (GeneralSecurityException e)
+        {
+            logger.warn("Error verifying access token signature", e);
+            return false;
+        }
+    }
+
+    private PublicKey getKey(String jwksUrl, String keyId)
+    {
+        KeySet keySet = keySets.get(jwksUrl);
+        long now = System.currentTimeMillis();
+        if (keySet == null || now - keySet.fetchedAt > jwksCacheTtl ||
+                (keyId != null && !keySet.keys.containsKey(keyId)))
+        {
+            // Keys may have been rotated, but do not hit the provider more than once per minute for an unknown key ID
+            if (keySet == null || now - keySet.fetchedAt > Math.min(jwksCacheTtl, 60000L))
+            {
+                KeySet fetched = fetchKeySet(jwksUrl);
+                if (fetched != null)
+                {
+                    keySet = fetched;
+                    keySets.put(jwksUrl, keySet);
+                }
+            }
+        }
+        if (keySet == null)
+        {
+            return null;
+        }
+        if (keyId == null)
+        {
+            return keySet.keys.size() == 1 ? keySet.keys.values().iterator().next() : null;
+        }
+        return keySet.keys.get(keyId);
+    }
+
+    private KeySet fetchKeySet(String jwksUrl)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Fetching key set from " + jwksUrl);
+
+        HttpGet method = new HttpGet(jwksUrl);
+        method.addHeader("Accept", Format.JSON.mimetype());
+        method.setConfig(RequestConfig.custom().setConnectTimeout(connectTimeout).setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout).build());
+        CloseableHttpResponse response = null;
+        try
+        {
+            response = httpClient.execute(method);
+            String body = IOUtils.toString(response.getEntity().getContent(), "UTF-8");
+            if (response.getStatusLine().getStatusCode() != Status.STATUS_OK)
+            {
+                logger.error("Received response code " + response.getStatusLine().getStatusCode() + " from key set URL " + jwksUrl);
+                return null;
+            }
+
+            Map<String, PublicKey> keys = new HashMap<String, PublicKey>();
+            JSONArray jwks = new JSONObject(body).getJSONArray("keys");
+            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
+            for (int i = 0; i < jwks.length(); i++)
+            {
+                JSONObject jwk = jwks.getJSONObject(i);
+                if ("RSA".equals(jwk.optString("kty")))
+                {
+                    BigInteger modulus = new BigInteger(1, Base64.decodeBase64(jwk.getString("n")));
+                    BigInteger exponent = new BigInteger(1, Base64.decodeBase64(jwk.getString("e")));
+                    keys.put(jwk.optString("kid", ""), keyFactory.generatePublic(new RSAPublicKeySpec(modulus, exponent)));
+                }
+            }
+            return new KeySet(keys, System.currentTimeMillis());
+        }
+        catch (IOException e)
+        {
+            logger.error("Error fetching key set from " + jwksUrl, e);
+        }
+        catch (JSONException e)
+        {
+            logger.error("Could not parse key set from " + jwksUrl, e);
+        }
+        catch (GeneralSecurityException e)
+        {
+            logger.error("Could not read keys from key set " + jwksUrl, e);
+        }
+        finally
+        {
+            IOUtils.closeQuietly(response);
+        }
+        return null;
+    }
+
+    /**
+     * Close the HTTP client used to fetch key sets, called when the application context is closed
+     */
+    public void destroy()
+    {
+        IOUtils.closeQuietly(httpClient);
+    }
+
+    public long getJwksCacheTtl()
+    {
+        return jwksCacheTtl;
+    }
+
+    /**
+     * @param jwksCacheTtl  Time in milliseconds for which fetched key sets are cached
+     */
+    public void setJwksCacheTtl(long jwksCacheTtl)
+    {
+        this.jwksCacheTtl = jwksCacheTtl;
+    }
+
+    public long getExpiryMargin()
+    {
+        return expiryMargin;
+    }
+
+    /**
+     * @param expiryMargin  Time in milliseconds before the expiry time at which tokens are treated as expired
+     */
+    public void setExpiryMargin(long expiryMargin)
+    {
+        this.expiryMargin = expiryMargin;
+    }
+
+    public int getConnectTimeout()
+    {
+        return connectTimeout;
+    }
+
+    /**
+     * @param connectTimeout    Time in milliseconds to wait for a connection to the key set URL
+     */
+    public void setConnectTimeout(int connectTimeout)
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getReadTimeout()
+    {
+        return readTimeout;
+    }
+
+    /**
+     * @param readTimeout   Time in milliseconds to wait for data from the key set URL before giving up
+     */
+    public void setReadTimeout(int readTimeout)
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    private static final class KeySet
+    {
+        private final Map<String, PublicKey> keys;
+        private final long fetchedAt;
+
+        private KeySet(Map<String, PublicKey> keys, long fetchedAt)
+        {
+            this.keys = keys;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+}
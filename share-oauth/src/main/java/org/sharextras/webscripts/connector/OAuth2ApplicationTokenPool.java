@@ -0,0 +1,193 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Holds application-level OAuth 2.0 access tokens obtained using the <code>client_credentials</code> grant.
+ *
+ * One token is held per endpoint and is shared by all users, so endpoints which only need application-level
+ * access do not need any per-user tokens to be loaded from the repository. Tokens are refreshed ahead of
+ * their expiry by the first request to find them within the refresh margin, while other requests continue
+ * to use the current token until the new one is available.
+ */
+public class OAuth2ApplicationTokenPool
+{
+    private static final long DEFAULT_REFRESH_MARGIN = 60000L;
+
+    private static Log logger = LogFactory.getLog(OAuth2ApplicationTokenPool.class);
+
+    private final ConcurrentMap<String, ApplicationToken> tokens = new ConcurrentHashMap<String, ApplicationToken>();
+
+    private final ConcurrentMap<String, ReentrantLock> locks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private long refreshMargin = DEFAULT_REFRESH_MARGIN;
+
+    /**
+     * Source of new application tokens, normally the connector for the endpoint
+     */
+    public interface TokenSource
+    {
+        /**
+         * Request a new token from the provider
+         *
+         * @return The JSON token response, which must contain <code>access_token</code> and may contain
+         *          <code>expires_in</code>
+         * @throws TokenRefreshException
+         */
+        JSONObject requestToken() throws TokenRefreshException;
+    }
+
+    /**
+     * Get a valid application access token for the endpoint, fetching a new one from the token source if
+     * there is none held or the current token is about to expire
+     *
+     * @param endpointId    The endpoint ID
+     * @param source        Used to request a new token, if needed
+     * @return The access token
+     * @throws TokenRefreshException if no valid token is held and a new one could not be obtained
+     */
+    public String getAccessToken(String endpointId, TokenSource source) throws TokenRefreshException
+    {
+        long now = System.currentTimeMillis();
+        ApplicationToken token = tokens.get(endpointId);
+        if (token != null && !token.isExpired(now))
+        {
+            if (!token.isExpiring(now, refreshMargin))
+            {
+                return token.accessToken;
+            }
+            // Refresh ahead of expiry - if another thread is already doing this then keep using the current token
+            ReentrantLock lock = getLock(endpointId);
+            if (!lock.tryLock())
+            {
+                return token.accessToken;
+            }
+            try
+            {
+                return fetchToken(endpointId, source).accessToken;
+            }
+            catch (TokenRefreshException e)
+            {
+                logger.warn("Unable to refresh application token for endpoint " + endpointId +
+                        ", continuing to use current token", e);
+                return token.accessToken;
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        ReentrantLock lock = getLock(endpointId);
+        lock.lock();
+        try
+        {
+            // Another thread may have fetched a token while we were waiting
+            token = tokens.get(endpointId);
+            if (token != null && !token.isExpiring(System.currentTimeMillis(), refreshMargin))
+            {
+                return token.accessToken;
+            }
+            return fetchToken(endpointId, source).accessToken;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Discard the token held for an endpoint, e.g. because the provider rejected it. Nothing is discarded if
+     * the token held is not the one given, since it will already have been replaced.
+     *
+     * @param endpointId    The endpoint ID
+     * @param accessToken   The access token which was rejected
+     */
+    public void invalidate(String endpointId, String accessToken)
+    {
+        ApplicationToken token = tokens.get(endpointId);
+        if (token != null && token.accessToken.equals(accessToken))
+        {
+            tokens.remove(endpointId, token);
+        }
+    }
+
+    private ApplicationToken fetchToken(String endpointId, TokenSource source) throws TokenRefreshException
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("Requesting new application token for endpoint " + endpointId);
+
+        JSONObject json = source.requestToken();
+        ApplicationToken token;
+        try
+        {
+            long expiresAt = json.has("expires_in") ?
+                    System.currentTimeMillis() + json.getLong("expires_in") * 1000L : Long.MAX_VALUE;
+            token = new ApplicationToken(json.getString("access_token"), expiresAt);
+        }
+        catch (JSONException e)
+        {
+            throw new TokenRefreshException("Unable to retrieve access token from provider response", e);
+        }
+        tokens.put(endpointId, token);
+        return token;
+    }
+
+    private ReentrantLock getLock(String endpointId)
+    {
+        ReentrantLock lock = locks.get(endpointId);
+        if (lock == null)
+        {
+            ReentrantLock newLock = new ReentrantLock();
+            lock = locks.putIfAbsent(endpointId, newLock);
+            if (lock == null)
+            {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    public long getRefreshMargin()
+    {
+        return refreshMargin;
+    }
+
+    /**
+     * @param refreshMargin Time in milliseconds before expiry at which tokens will be refreshed
+     */
+    public void setRefreshMargin(long refreshMargin)
+    {
+        this.refreshMargin = refreshMargin;
+    }
+
+    private static final class ApplicationToken
+    {
+        private final String accessToken;
+        private final long expiresAt;
+
+        private ApplicationToken(String accessToken, long expiresAt)
+        {
+            this.accessToken = accessToken;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now)
+        {
+            return now >= expiresAt;
+        }
+
+        private boolean isExpiring(long now, long margin)
+        {
+            return expiresAt != Long.MAX_VALUE && now >= expiresAt - margin;
+        }
+    }
+
+}
@@ -13,14 +13,26 @@ public class OAuth2AuthenticatingConnector extends AuthenticatingConnector
     }
     
     /**
-     * Returns whether the current session is authenticated already.
+     * Returns whether the current session is authenticated already. Tokens already held in the user's 
+     * credential vault are applied to the connector session here, so that the first request is sent 
+     * authenticated rather than being tried anonymously first.
      * 
      * @return true, if checks if is authenticated
      */
     protected boolean isAuthenticated()
     {
         return ((OAuth2Authenticator) this.authenticator)
-                .isAuthenticated(getEndpoint(), getCredentials(), getConnectorSession());        
+                .isAuthenticated(getEndpoint(), getConnectorSession());        
+    }
+
+    /**
+     * Returns the connector which requests are passed to once authenticated
+     * 
+     * @return the wrapped connector
+     */
+    public Connector getWrappedConnector()
+    {
+        return this.connector;
     }
 
 }
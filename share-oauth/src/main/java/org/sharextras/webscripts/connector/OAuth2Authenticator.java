@@ -13,14 +13,12 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.ServletUtil;
 import org.springframework.extensions.surf.exception.AuthenticationException;
-import org.springframework.extensions.surf.exception.ConnectorServiceException;
 import org.springframework.extensions.surf.exception.CredentialVaultProviderException;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
 import org.springframework.extensions.surf.util.URLEncoder;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.WebScriptException;
 import org.springframework.extensions.webscripts.connector.AbstractAuthenticator;
-import org.springframework.extensions.webscripts.connector.Connector;
 import org.springframework.extensions.webscripts.connector.ConnectorService;
 import org.springframework.extensions.webscripts.connector.ConnectorSession;
 import org.springframework.extensions.webscripts.connector.Credentials;
@@ -40,6 +38,8 @@ public class OAuth2Authenticator extends AbstractAuthenticator implements Applic
 {
     private ApplicationContext applicationContext;
     
+    private ConnectorService connectorService;
+    
     private static Log logger = LogFactory.getLog(OAuth2Authenticator.class);
 
     private static final String ENDPOINT_ALFRESCO = "alfresco";
@@ -51,6 +51,7 @@ public class OAuth2Authenticator extends AbstractAuthenticator implements Applic
 
     public final static String CS_PARAM_ACCESS_TOKEN = "accessToken";
     public final static String CS_PARAM_REFRESH_TOKEN = "refreshToken";
+    public final static String CS_PARAM_ACCESS_TOKEN_EXPIRES = "accessTokenExpires";
     
     // For Chatter this should be https://login.instance_name/services/oauth2/token
     private String requestTokenUri;
@@ -82,30 +83,15 @@ public class OAuth2Authenticator extends AbstractAuthenticator implements Applic
          * Try to load OAuth tokens from the vault
          * 
          * We cannot use the crendentials that are supplied to the method. These do not contain OAuth credentials
-         * because these need to be loaded separately from the persistent store.
+         * because these need to be loaded separately from the persistent store. The vault held in the user's
+         * session is used, so that tokens are only fetched from the repository the first time they are needed.
          */
-        //Credentials oauthCredentials = loadOAuthCredentials(connectorSession.getEndpointId());
-        
-        Credentials oauthCredentials = null;
-        ConnectorService connectorService = (ConnectorService) applicationContext.getBean("connector.service");
-        Connector alfrescoConnector;
-        try
-        {
-            alfrescoConnector = connectorService.getConnector(ENDPOINT_ALFRESCO);
-            alfrescoConnector.setCredentials(credentials); // Just one set of credentials for the user, so we can steal these to use for the Alfresco connector
-            OAuth2CredentialVault vault = new OAuth2CredentialVault("standaloneVault", connectorService.getRemoteConfig());
-            vault.setAlfrescoConnector(alfrescoConnector); // Set the Alfresco connector to use directly - will then bypass the connector service
-            oauthCredentials = vault.retrieve(connectorSession.getEndpointId());
-        }
-        catch (ConnectorServiceException e)
-        {
-            e.printStackTrace();
-        }
+        Credentials oauthCredentials = loadOAuthCredentials(connectorSession.getEndpointId());
         
         if (oauthCredentials != null && oauthCredentials.getProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN) != null)
         {
             // TODO also check that the token has not expired, if we know the expiration date
-            credentials.setProperty(CS_PARAM_ACCESS_TOKEN, oauthCredentials.getProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN));
+            applyCredentials(oauthCredentials, connectorSession);
             // signal that this succeeded
             cs = connectorSession;
         }
@@ -142,19 +128,15 @@ public class OAuth2Authenticator extends AbstractAuthenticator implements Applic
                             "Unable to retrieve access token from provider response", jErr);
                 }
                 
-                if (logger.isDebugEnabled())
-                    logger.debug("Parsed access token: " + accessToken);
+                // place the access token into the connector session, where the connector will pick it up
+                connectorSession.setParameter(CS_PARAM_ACCESS_TOKEN, accessToken);
+                connectorSession.setParameter(CS_PARAM_ACCESS_TOKEN_EXPIRES, null);
+                connectorSession.setParameter(CS_PARAM_REFRESH_TOKEN, refreshToken);
                 
-                // place the access token back into the credentials and save these
-                if (credentials != null)
-                {
-                    credentials.setProperty(CS_PARAM_ACCESS_TOKEN, accessToken);
-                    
-                    // TODO we need to save the credentials at this point - how?
-                    
-                    // signal that this succeeded
-                    cs = connectorSession;
-                }
+                // TODO we need to save the credentials at this point - how?
+                
+                // signal that this succeeded
+                cs = connectorSession;
             }
             else
             {
@@ -170,15 +152,52 @@ public class OAuth2Authenticator extends AbstractAuthenticator implements Applic
         return cs;
     }
 
+    /**
+     * Returns whether the connector session holds an access token. If it does not, but the user's credential
+     * vault already has the tokens for the endpoint cached, then these are copied into the connector session
+     * so that the first request can be sent authenticated, without any further lookup.
+     */
     @Override
     public boolean isAuthenticated(String endpoint, ConnectorSession connectorSession)
     {
-        return (connectorSession.getParameter(CS_PARAM_ACCESS_TOKEN) != null);
+        if (connectorSession.getParameter(CS_PARAM_ACCESS_TOKEN) != null)
+        {
+            return true;
+        }
+        OAuth2CredentialVault vault = getCredentialVault();
+        if (vault != null)
+        {
+            Credentials oauthCredentials = vault.getCachedCredentials(connectorSession.getEndpointId());
+            if (oauthCredentials != null && oauthCredentials.getProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN) != null)
+            {
+                applyCredentials(oauthCredentials, connectorSession);
+                return true;
+            }
+        }
+        return false;
     }
 
     public boolean isAuthenticated(String endpoint, Credentials credentials, ConnectorSession connectorSession)
     {
-        return credentials.getProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN) != null;
+        return isAuthenticated(endpoint, connectorSession);
+    }
+    
+    /**
+     * Copy the OAuth tokens from a set of stored credentials into the connector session
+     * 
+     * @param oauthCredentials  Credentials holding the tokens
+     * @param connectorSession  Connector session to copy the tokens into
+     */
+    public static void applyCredentials(Credentials oauthCredentials, ConnectorSession connectorSession)
+    {
+        OAuth2CredentialVault.TokenSnapshot tokens = OAuth2CredentialVault.getTokens(oauthCredentials);
+        connectorSession.setParameter(CS_PARAM_ACCESS_TOKEN, tokens.getAccessToken());
+        connectorSession.setParameter(CS_PARAM_ACCESS_TOKEN_EXPIRES, 
+                tokens.getExpiresAt() != null ? tokens.getExpiresAt().toString() : null);
+        if (tokens.getRefreshToken() != null)
+        {
+            connectorSession.setParameter(CS_PARAM_REFRESH_TOKEN, tokens.getRefreshToken());
+        }
     }
     
     private String getClientId()
@@ -192,34 +211,51 @@ public class OAuth2Authenticator extends AbstractAuthenticator implements Applic
         return requestTokenUri;
     }
     
+    private ConnectorService getConnectorService()
+    {
+        if (connectorService == null)
+        {
+            connectorService = (ConnectorService) applicationContext.getBean("connector.service");
+        }
+        return connectorService;
+    }
+    
     /**
-     * Load OAuth credentials for the current user from the persistent credential vault
+     * Get the OAuth 2.0 credential vault belonging to the current user. This is the same vault instance that is 
+     * held in the user's session and used by the connectors, so tokens loaded into it are shared between calls.
      * 
-     * @return
-     * @throws AuthenticationException 
+     * @return The vault, or null if there is no user or session bound to the current request
      */
-    @SuppressWarnings("unused")
-    private Credentials loadOAuthCredentials(String endpointId) throws AuthenticationException
+    private OAuth2CredentialVault getCredentialVault()
     {
         HttpSession httpSession = ServletUtil.getSession();
         RequestContext context = ThreadLocalRequestContext.getRequestContext();
-        User user = context.getUser();
-
-        ConnectorService connectorService = (ConnectorService) applicationContext.getBean("connector.service");
-        
-        String userId = user.getId();
+        User user = context != null ? context.getUser() : null;
+        if (httpSession == null || user == null)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("No user session available - cannot access credential vault");
+            return null;
+        }
         try
         {
-            if (connectorService == null)
-            {
-                throw new AuthenticationException("Unable to load connector service");
-            }
-            return connectorService.getCredentialVault(httpSession, userId, VAULT_PROVIDER_ID).retrieve(endpointId);
+            return (OAuth2CredentialVault) getConnectorService().getCredentialVault(httpSession, user.getId(), VAULT_PROVIDER_ID);
         }
         catch (CredentialVaultProviderException e)
         {
             throw new WebScriptException("Unable to obtain credential vault for OAuth credentials", e);
         }
     }
+    
+    /**
+     * Load OAuth credentials for the current user from the persistent credential vault
+     * 
+     * @return The credentials for the endpoint, or null if none are stored
+     */
+    private Credentials loadOAuthCredentials(String endpointId)
+    {
+        OAuth2CredentialVault vault = getCredentialVault();
+        return vault != null ? vault.retrieve(endpointId) : null;
+    }
 
 }
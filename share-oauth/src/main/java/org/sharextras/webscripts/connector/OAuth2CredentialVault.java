@@ -1,10 +1,22 @@
 package org.sharextras.webscripts.connector;
 
 import java.io.ByteArrayInputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
 import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -16,10 +28,13 @@ import org.springframework.extensions.surf.RequestContext;
 import org.springframework.extensions.surf.ServletUtil;
 import org.springframework.extensions.surf.exception.ConnectorServiceException;
 import org.springframework.extensions.surf.support.ThreadLocalRequestContext;
+import org.springframework.extensions.webscripts.Format;
 import org.springframework.extensions.webscripts.Status;
 import org.springframework.extensions.webscripts.connector.Connector;
+import org.springframework.extensions.webscripts.connector.ConnectorContext;
 import org.springframework.extensions.webscripts.connector.ConnectorService;
 import org.springframework.extensions.webscripts.connector.Credentials;
+import org.springframework.extensions.webscripts.connector.HttpMethod;
 import org.springframework.extensions.webscripts.connector.Response;
 import org.springframework.extensions.webscripts.connector.SimpleCredentialVault;
 import org.springframework.extensions.webscripts.connector.User;
@@ -30,27 +45,59 @@ import org.springframework.extensions.webscripts.connector.User;
  * This implementation will only store the credentials specifically required for OAuth 2.0
  * and should not be used for other credentials.
  * 
+ * The same vault is used by all concurrent requests in a session, so credentials are held in a
+ * concurrent map and may be read without locking. Tokens for an endpoint should be changed using
+ * {@link #storeTokens(String, String, String, Long)} so that they are always updated together,
+ * and saves work from a snapshot of the tokens taken when the save starts.
+ * 
+ * The vault is held in the HTTP session, so when it is serialized for session replication or 
+ * persistence only the vault ID and the tokens themselves are written, using a compact versioned 
+ * format. The remote configuration and connector service are shared by all vaults on a node and 
+ * are looked up again from the vault provider when the vault is deserialized.
+ * 
+ * Responses cached for the user from an endpoint are removed when the tokens for it are removed or replaced by
+ * a new authorization, and all of the user's cached responses are removed when the vault is unbound from the
+ * session, e.g. because the user has logged out or the session has expired.
+ * 
  * @author wabson
  */
-public class OAuth2CredentialVault extends SimpleCredentialVault
+public class OAuth2CredentialVault extends SimpleCredentialVault implements HttpSessionBindingListener
 {
     private static final String API_STORE_TOKEN = "/extras/oauth2/token/%s";
     private static final String ENDPOINT_ALFRESCO = "alfresco";
     private static final String JSON_PROP_PROVIDER_ID = "name";
     private static final String JSON_PROP_ACCESS_TOKEN = "accessToken";
     private static final String JSON_PROP_REFRESH_TOKEN = "refreshToken";
+    private static final String JSON_PROP_EXPIRES_AT = "expiresAt";
 
     private static Log logger = LogFactory.getLog(OAuth2CredentialVault.class);
     
     private static final long serialVersionUID = 4009102141325723492L;
     
-    private Connector alfrescoConnector;
+    private final String vaultId;
+    
+    private transient Connector alfrescoConnector;
     
-    private ConnectorService connectorService;
+    private transient ConnectorService connectorService;
+    
+    private transient OAuth2ResponseCache responseCache;
+    
+    /* User whose session holds the vault, set on each request which uses it */
+    private transient volatile String userId;
 
     public OAuth2CredentialVault(String id, RemoteConfigElement remoteConfigElement)
     {
         super(id, remoteConfigElement);
+        vaultId = id;
+        credentialsMap = new ConcurrentHashMap<String, Credentials>();
+    }
+
+    /**
+     * Serialize the vault in its compact form
+     */
+    private Object writeReplace() throws ObjectStreamException
+    {
+        return new SerializedForm(this);
     }
 
     @Override
@@ -59,6 +106,53 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
         super.store(credentials);
     }
 
+    /**
+     * Remove the credentials for an endpoint, and any responses cached using them
+     */
+    @Override
+    public void remove(String endpointId)
+    {
+        super.remove(endpointId);
+        removeCachedResponses(endpointId);
+    }
+
+    /**
+     * Remove the responses cached for the user from an endpoint, e.g. because the user has authorized it again
+     * and the new tokens may be for a different account
+     * 
+     * @param endpointId    The endpoint ID
+     */
+    public void removeCachedResponses(String endpointId)
+    {
+        OAuth2ResponseCache cache = getResponseCache();
+        String user = userId;
+        if (cache != null && user != null)
+        {
+            cache.removeAll(user, endpointId);
+        }
+    }
+
+    @Override
+    public void valueBound(HttpSessionBindingEvent event)
+    {
+    }
+
+    /**
+     * Remove all of the responses cached for the user once the session no longer holds the vault
+     */
+    @Override
+    public void valueUnbound(HttpSessionBindingEvent event)
+    {
+        OAuth2ResponseCache cache = getResponseCache();
+        String user = userId;
+        if (cache != null && user != null)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Removing cached responses for user " + user);
+            cache.removeAll(user);
+        }
+    }
+
     @Override
     public Credentials retrieve(String endpointId)
     {
@@ -74,6 +168,69 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
         return credentials;
     }
 
+    /**
+     * Return the existing credentials for the endpoint, or create them if there are none. Unlike the 
+     * superclass, credentials created concurrently by another request are never replaced.
+     */
+    @Override
+    public synchronized Credentials newCredentials(String endpointId)
+    {
+        Credentials credentials = credentialsMap.get(endpointId);
+        return credentials != null ? credentials : super.newCredentials(endpointId);
+    }
+
+    /**
+     * Set all of the tokens for an endpoint at once, creating the credentials if needed
+     * 
+     * @param endpointId    The endpoint ID
+     * @param accessToken   The access token
+     * @param refreshToken  The refresh token, or null if there is none
+     * @param expiresAt     Access token expiry time in milliseconds since the epoch, or null if not known
+     * @return The updated credentials
+     */
+    public Credentials storeTokens(String endpointId, String accessToken, String refreshToken, Long expiresAt)
+    {
+        Credentials credentials = newCredentials(endpointId);
+        synchronized (credentials)
+        {
+            credentials.setProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN, accessToken);
+            credentials.setProperty(OAuth2Credentials.CREDENTIAL_REFRESH_TOKEN, refreshToken);
+            credentials.setProperty(OAuth2Credentials.CREDENTIAL_EXPIRES_AT, expiresAt);
+        }
+        return credentials;
+    }
+
+    /**
+     * Read all of the tokens from a set of credentials at once
+     * 
+     * @param credentials   The credentials
+     * @return The tokens held in the credentials at the time of the call
+     */
+    public static TokenSnapshot getTokens(Credentials credentials)
+    {
+        synchronized (credentials)
+        {
+            Object accessToken = credentials.getProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN),
+                    refreshToken = credentials.getProperty(OAuth2Credentials.CREDENTIAL_REFRESH_TOKEN),
+                    expiresAt = credentials.getProperty(OAuth2Credentials.CREDENTIAL_EXPIRES_AT);
+            return new TokenSnapshot(
+                    accessToken != null ? accessToken.toString() : null, 
+                    refreshToken != null ? refreshToken.toString() : null, 
+                    expiresAt instanceof Number ? Long.valueOf(((Number) expiresAt).longValue()) : null);
+        }
+    }
+
+    /**
+     * Return the credentials for the endpoint if these have already been loaded into the vault, without
+     * making any call to the repository
+     * 
+     * @param endpointId    The endpoint ID
+     * @return The cached credentials, or null if none have been loaded
+     */
+    public Credentials getCachedCredentials(String endpointId)
+    {
+        return super.retrieve(endpointId);
+    }
 
     /*
     @Override
@@ -100,16 +257,28 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
             logger.error("Could not locate session object in request context");
             return false;
         }
+        this.userId = userId;
         return load(endpoint, httpSession, userId);
     }
 
+    /**
+     * Get the context for a call to the repository token store, which passes the current trace on to the
+     * repository if there is one
+     */
+    private static ConnectorContext newTokenStoreContext(HttpMethod method)
+    {
+        Map<String, String> traceHeaders = OAuth2Tracer.getTraceHeaders();
+        return new ConnectorContext(method, null,
+                traceHeaders != null ? traceHeaders : Collections.<String, String>emptyMap());
+    }
+
     protected boolean load(String endpoint, Connector alfrescoConnector)
     {
         // build a new remote client
         String providerId = endpoint, 
                 tokenUrl = getTokenApi(providerId);
 
-        Response response = alfrescoConnector.call(tokenUrl);
+        Response response = alfrescoConnector.call(tokenUrl, newTokenStoreContext(HttpMethod.GET));
         
         if (response.getStatus().getCode() == Status.STATUS_OK)
         {
@@ -121,9 +290,12 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
                 {
                     refreshToken = jsonObject.getString(JSON_PROP_REFRESH_TOKEN);
                 }
-                Credentials credentials = newCredentials(endpoint);
-                credentials.setProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN, accessToken);
-                credentials.setProperty(OAuth2Credentials.CREDENTIAL_REFRESH_TOKEN, refreshToken);
+                Long expiresAt = null;
+                if (jsonObject.has(JSON_PROP_EXPIRES_AT) && !jsonObject.isNull(JSON_PROP_EXPIRES_AT))
+                {
+                    expiresAt = Long.valueOf(jsonObject.getLong(JSON_PROP_EXPIRES_AT));
+                }
+                storeTokens(endpoint, accessToken, refreshToken, expiresAt);
                 
                 return true;
             }
@@ -184,6 +356,7 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
 
     public boolean save(HttpSession session, String userId)
     {
+        this.userId = userId;
         try
         {
             return save(getAlfrescoConnector(ENDPOINT_ALFRESCO, userId, session));
@@ -201,8 +374,16 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
         
         try
         {
+            // take a copy of the tokens, so that changes made by other requests while we are saving
+            // cannot cause a mix of old and new tokens to be sent
+            Map<String, TokenSnapshot> snapshot = new HashMap<String, TokenSnapshot>(credentialsMap.size());
+            for (Map.Entry<String, Credentials> entry : credentialsMap.entrySet())
+            {
+                snapshot.put(entry.getKey(), getTokens(entry.getValue()));
+            }
+            
             // walk through all of the endpoints
-            Iterator<String> it = credentialsMap.keySet().iterator();
+            Iterator<String> it = snapshot.keySet().iterator();
             while(it.hasNext())
             {
                 //remoteClient.setRequestContentType(Format.JSON.mimetype());
@@ -210,10 +391,10 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
                 String endpointId = (String) it.next(), 
                         providerId = endpointId, token = "", refreshToken = "";
                 
-                Credentials credentials = retrieve(endpointId);
+                TokenSnapshot tokens = snapshot.get(endpointId);
 
-                token = (String) credentials.getProperty(OAuth2Credentials.CREDENTIAL_ACCESS_TOKEN);
-                refreshToken = (String) credentials.getProperty(OAuth2Credentials.CREDENTIAL_REFRESH_TOKEN);
+                token = tokens.getAccessToken();
+                refreshToken = tokens.getRefreshToken();
                 
                 // TODO check that access token and refresh token have values
 
@@ -223,6 +404,10 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
                     persistParams.put(JSON_PROP_PROVIDER_ID, providerId);
                     persistParams.put(JSON_PROP_ACCESS_TOKEN, token);
                     persistParams.put(JSON_PROP_REFRESH_TOKEN, refreshToken);
+                    if (tokens.getExpiresAt() != null)
+                    {
+                        persistParams.put(JSON_PROP_EXPIRES_AT, tokens.getExpiresAt());
+                    }
                 }
                 catch (JSONException e)
                 {
@@ -235,9 +420,11 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
                 String postBody = persistParams.toString();
                 
                 if (logger.isDebugEnabled())
-                    logger.debug("Sending token data:\n" + postBody);  
+                    logger.debug("Sending token data for endpoint " + endpointId);  
                 
-                Response response = alfrescoConnector.call(tokenUrl, null, new ByteArrayInputStream(postBody.getBytes("UTF-8")));
+                ConnectorContext context = newTokenStoreContext(HttpMethod.POST);
+                context.setContentType(Format.JSON.mimetype());
+                Response response = alfrescoConnector.call(tokenUrl, context, new ByteArrayInputStream(postBody.getBytes("UTF-8")));
                 
                 // read back the ticket
                 if (response.getStatus().getCode() != Status.STATUS_OK)
@@ -266,6 +453,11 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
     
     public ConnectorService getConnectorService()
     {
+        if (connectorService == null)
+        {
+            // Vault has been deserialized, so use the service shared by all vaults on this node
+            connectorService = OAuth2CredentialVaultProvider.getNodeConnectorService();
+        }
         return connectorService;
     }
 
@@ -274,6 +466,29 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
         this.connectorService = connectorService;
     }
     
+    public OAuth2ResponseCache getResponseCache()
+    {
+        if (responseCache == null)
+        {
+            // Vault has been deserialized, so use the cache shared by all vaults on this node
+            responseCache = OAuth2CredentialVaultProvider.getNodeResponseCache();
+        }
+        return responseCache;
+    }
+
+    public void setResponseCache(OAuth2ResponseCache responseCache)
+    {
+        this.responseCache = responseCache;
+    }
+    
+    /**
+     * @param userId    The user whose session holds the vault
+     */
+    void setUserId(String userId)
+    {
+        this.userId = userId;
+    }
+    
     public Connector getAlfrescoConnector()
     {
         return alfrescoConnector;
@@ -281,7 +496,7 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
     
     public Connector getAlfrescoConnector(String endpoint, String userId, HttpSession session) throws ConnectorServiceException
     {
-        return this.alfrescoConnector != null ? this.alfrescoConnector : connectorService.getConnector(ENDPOINT_ALFRESCO, userId, session);
+        return this.alfrescoConnector != null ? this.alfrescoConnector : getConnectorService().getConnector(ENDPOINT_ALFRESCO, userId, session);
     }
     
     public void setAlfrescoConnector(Connector connector)
@@ -294,4 +509,154 @@ public class OAuth2CredentialVault extends SimpleCredentialVault
         return String.format(API_STORE_TOKEN, endpointId);
     }
 
+    /**
+     * Serialized form of the vault, holding only the vault ID and the tokens for each endpoint.
+     * 
+     * The format starts with a version number, which must be incremented whenever the format is changed.
+     * Strings are written as a length followed by UTF-8 bytes, since tokens may be longer than
+     * {@link java.io.DataOutput#writeUTF(String)} allows.
+     */
+    static final class SerializedForm implements Externalizable
+    {
+        private static final long serialVersionUID = 1L;
+        
+        private static final int FORMAT_VERSION = 1;
+        
+        private static final long NO_EXPIRY = -1L;
+        
+        private String vaultId;
+        
+        private Map<String, TokenSnapshot> tokens;
+        
+        /**
+         * Constructor used by deserialization
+         */
+        public SerializedForm()
+        {
+        }
+        
+        private SerializedForm(OAuth2CredentialVault vault)
+        {
+            vaultId = vault.vaultId;
+            tokens = new HashMap<String, TokenSnapshot>(vault.credentialsMap.size());
+            for (Map.Entry<String, Credentials> entry : vault.credentialsMap.entrySet())
+            {
+                tokens.put(entry.getKey(), getTokens(entry.getValue()));
+            }
+        }
+        
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException
+        {
+            out.writeShort(FORMAT_VERSION);
+            writeString(out, vaultId);
+            out.writeInt(tokens.size());
+            for (Map.Entry<String, TokenSnapshot> entry : tokens.entrySet())
+            {
+                TokenSnapshot snapshot = entry.getValue();
+                writeString(out, entry.getKey());
+                writeString(out, snapshot.getAccessToken());
+                writeString(out, snapshot.getRefreshToken());
+                out.writeLong(snapshot.getExpiresAt() != null ? snapshot.getExpiresAt().longValue() : NO_EXPIRY);
+            }
+        }
+        
+        @Override
+        public void readExternal(ObjectInput in) throws IOException
+        {
+            int version = in.readShort();
+            if (version != FORMAT_VERSION)
+            {
+                throw new InvalidObjectException("Unsupported credential vault format version " + version);
+            }
+            vaultId = readString(in);
+            int size = in.readInt();
+            tokens = new HashMap<String, TokenSnapshot>(size);
+            for (int i = 0; i < size; i++)
+            {
+                String endpointId = readString(in), 
+                        accessToken = readString(in), 
+                        refreshToken = readString(in);
+                long expiresAt = in.readLong();
+                tokens.put(endpointId, new TokenSnapshot(accessToken, refreshToken, 
+                        expiresAt != NO_EXPIRY ? Long.valueOf(expiresAt) : null));
+            }
+        }
+        
+        /**
+         * Rebuild the vault from the serialized tokens
+         */
+        private Object readResolve() throws ObjectStreamException
+        {
+            ConnectorService connectorService = OAuth2CredentialVaultProvider.getNodeConnectorService();
+            OAuth2CredentialVault vault = new OAuth2CredentialVault(vaultId, 
+                    connectorService != null ? connectorService.getRemoteConfig() : null);
+            vault.connectorService = connectorService;
+            for (Map.Entry<String, TokenSnapshot> entry : tokens.entrySet())
+            {
+                TokenSnapshot snapshot = entry.getValue();
+                vault.storeTokens(entry.getKey(), snapshot.getAccessToken(), snapshot.getRefreshToken(), snapshot.getExpiresAt());
+            }
+            return vault;
+        }
+        
+        private static void writeString(ObjectOutput out, String value) throws IOException
+        {
+            if (value == null)
+            {
+                out.writeInt(-1);
+            }
+            else
+            {
+                byte[] bytes = value.getBytes("UTF-8");
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+        
+        private static String readString(ObjectInput in) throws IOException
+        {
+            int length = in.readInt();
+            if (length < 0)
+            {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+    }
+
+    /**
+     * The tokens held for an endpoint at a single point in time
+     */
+    public static final class TokenSnapshot
+    {
+        private final String accessToken;
+        private final String refreshToken;
+        private final Long expiresAt;
+
+        private TokenSnapshot(String accessToken, String refreshToken, Long expiresAt)
+        {
+            this.accessToken = accessToken;
+            this.refreshToken = refreshToken;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getAccessToken()
+        {
+            return accessToken;
+        }
+
+        public String getRefreshToken()
+        {
+            return refreshToken;
+        }
+
+        public Long getExpiresAt()
+        {
+            return expiresAt;
+        }
+    }
+
 }
@@ -9,8 +9,16 @@ import org.springframework.extensions.webscripts.connector.CredentialVaultProvid
 
 public class OAuth2CredentialVaultProvider implements CredentialVaultProvider
 {
+    /* Connector service shared by all vaults on this node, used to restore deserialized vaults */
+    private static volatile ConnectorService nodeConnectorService;
+
+    /* Response cache shared by all vaults on this node, used to remove a user's cached responses */
+    private static volatile OAuth2ResponseCache nodeResponseCache;
+
     private ConnectorService connectorService;
 
+    private OAuth2ResponseCache responseCache;
+
     private static Log logger = LogFactory.getLog(OAuth2CredentialVaultProvider.class);
 
     /**
@@ -32,6 +40,7 @@ public class OAuth2CredentialVaultProvider implements CredentialVaultProvider
             throw new IllegalStateException("Connection service is required by the credential vault.");
         }
         vault.setConnectorService(connectorService);
+        vault.setResponseCache(responseCache);
         return vault;
     }
 
@@ -50,6 +59,39 @@ public class OAuth2CredentialVaultProvider implements CredentialVaultProvider
     public void setConnectorService(ConnectorService connectorService)
     {
         this.connectorService = connectorService;
+        nodeConnectorService = connectorService;
+    }
+
+    public OAuth2ResponseCache getResponseCache()
+    {
+        return responseCache;
+    }
+
+    /**
+     * @param responseCache     Cache of proxied responses, from which a user's responses are removed when their
+     *                          tokens are removed or replaced, or their session ends
+     */
+    public void setResponseCache(OAuth2ResponseCache responseCache)
+    {
+        this.responseCache = responseCache;
+        nodeResponseCache = responseCache;
+    }
+
+    /**
+     * @return The connector service used by the vault provider on this node, or null if the provider has
+     *          not yet been configured
+     */
+    static ConnectorService getNodeConnectorService()
+    {
+        return nodeConnectorService;
+    }
+
+    /**
+     * @return The response cache used by the vault provider on this node, or null if there is none
+     */
+    static OAuth2ResponseCache getNodeResponseCache()
+    {
+        return nodeResponseCache;
     }
 
 }
@@ -11,5 +11,8 @@ public interface OAuth2Credentials
     public static final String CREDENTIAL_ACCESS_TOKEN = "accessToken";
     
     public static final String CREDENTIAL_REFRESH_TOKEN = "refreshToken";
+    
+    /** Access token expiry time in milliseconds since the epoch, as a Long, if known */
+    public static final String CREDENTIAL_EXPIRES_AT = "expiresAt";
 
 }
@@ -0,0 +1,129 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in microseconds, which can be recorded to from any number of threads without locking.
+ *
+ * Values are counted in buckets laid out as in an HDR histogram. Values below 64 have a bucket each, and above that
+ * each power of two is split into 32 buckets, so percentiles are accurate to within about 3% however large the
+ * values are. Values of more than about 19 hours are counted in the last bucket. The histogram takes 8KB whatever
+ * is recorded in it.
+ */
+public class OAuth2LatencyHistogram
+{
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_BUCKETS = SUB_BUCKETS * 2;
+    private static final int MAX_SHIFT = 30;
+    private static final int BUCKETS = LINEAR_BUCKETS + MAX_SHIFT * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param micros    The latency in microseconds
+     */
+    public void record(long micros)
+    {
+        if (micros < 0)
+        {
+            micros = 0;
+        }
+        counts.incrementAndGet(getIndex(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+        while (micros > current && !max.compareAndSet(current, micros))
+        {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Get the latency which the given percentage of recorded values were at or below
+     *
+     * @param percentile    The percentile, from 0 to 100
+     * @return The highest value in the bucket containing the percentile, in microseconds, or 0 if nothing has been
+     *         recorded
+     */
+    public long getValueAtPercentile(double percentile)
+    {
+        long recorded = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            snapshot[i] = counts.get(i);
+            recorded += snapshot[i];
+        }
+        if (recorded == 0)
+        {
+            return 0L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * recorded));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= target)
+            {
+                return Math.min(getHighestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return Number of values recorded
+     */
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    /**
+     * @return Mean of the values recorded, in microseconds, or 0 if nothing has been recorded
+     */
+    public double getMean()
+    {
+        long n = count.get();
+        return n > 0 ? (double) total.get() / n : 0.0;
+    }
+
+    /**
+     * @return Largest value recorded, in microseconds
+     */
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    private static int getIndex(long value)
+    {
+        if (value < LINEAR_BUCKETS)
+        {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT)
+        {
+            return BUCKETS - 1;
+        }
+        return LINEAR_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long getHighestValue(int index)
+    {
+        if (index < LINEAR_BUCKETS)
+        {
+            return index;
+        }
+        int shift = (index - LINEAR_BUCKETS) / SUB_BUCKETS + 1;
+        long subBucket = (index - LINEAR_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+}
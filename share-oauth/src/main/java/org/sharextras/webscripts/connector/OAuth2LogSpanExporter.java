@@ -0,0 +1,54 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes each span as a line of JSON to the log, at INFO level, so that traces can be collected without any further
+ * infrastructure. Route the <code>org.sharextras.webscripts.connector.OAuth2LogSpanExporter</code> category to its
+ * own file to keep spans apart from other log output.
+ */
+public class OAuth2LogSpanExporter implements OAuth2SpanExporter
+{
+    private static Log logger = LogFactory.getLog(OAuth2LogSpanExporter.class);
+
+    public void export(OAuth2Span span)
+    {
+        if (!logger.isInfoEnabled())
+        {
+            return;
+        }
+        try
+        {
+            JSONObject json = new JSONObject();
+            json.put("traceId", span.getTraceId());
+            json.put("spanId", span.getSpanId());
+            if (span.getParentSpanId() != null)
+            {
+                json.put("parentSpanId", span.getParentSpanId());
+            }
+            json.put("name", span.getName());
+            json.put("start", span.getStartTime());
+            json.put("durationMicros", span.getDurationNanos() / 1000L);
+            if (!span.getAttributes().isEmpty())
+            {
+                JSONObject attributes = new JSONObject();
+                for (Map.Entry<String, Object> attribute : span.getAttributes().entrySet())
+                {
+                    attributes.put(attribute.getKey(), attribute.getValue());
+                }
+                json.put("attributes", attributes);
+            }
+            logger.info(json.toString());
+        }
+        catch (JSONException e)
+        {
+            logger.warn("Unable to write span " + span.getName(), e);
+        }
+    }
+
+}
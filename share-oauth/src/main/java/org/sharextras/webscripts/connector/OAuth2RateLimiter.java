@@ -0,0 +1,389 @@
+package org.sharextras.webscripts.connector;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tracks the rate limits reported by providers, and shapes the requests made to them so that they stay within the
+ * limit rather than using it up and then being rejected.
+ *
+ * <p>Many providers return the number of requests left in the current window and the time the window resets in
+ * <code>X-RateLimit-Remaining</code> and <code>X-RateLimit-Reset</code> headers, or the equivalent
+ * <code>RateLimit-Remaining</code> and <code>RateLimit-Reset</code> headers. The reset time may be given either as
+ * seconds since the epoch or as a number of seconds from now. Limits are kept both for each access token, under a
+ * key made from the endpoint and a hash of the token, and for the whole application, under the endpoint ID. Where
+ * the limit reported in these headers applies to each token, the application's limit is taken from
+ * <code>X-App-RateLimit-Remaining</code> and <code>X-App-RateLimit-Reset</code> headers, if the provider sends
+ * them.</p>
+ *
+ * <p>Requests are passed through the token buckets for both their token and the application. Each bucket is refilled so that the remaining requests are
+ * spread evenly until the window resets, and holds up to <code>burst</code> requests. Requests which find the bucket
+ * empty wait for it to refill, up to <code>maxWait</code> milliseconds, or are otherwise shed. Low priority requests
+ * never wait, and are shed once the provider reports fewer than the <code>lowPriorityReserve</code> fraction of its
+ * limit remaining, so that the rest is kept for requests made by users. A request waits for whichever bucket takes
+ * longer to refill, and is shed if either bucket sheds it. Keys for which no limit has been reported, or whose
+ * window has reset since, are not shaped.</p>
+ */
+public class OAuth2RateLimiter
+{
+    private static final String[] HEADERS_REMAINING = { "X-RateLimit-Remaining", "RateLimit-Remaining" };
+    private static final String[] HEADERS_RESET = { "X-RateLimit-Reset", "RateLimit-Reset" };
+    private static final String[] HEADERS_LIMIT = { "X-RateLimit-Limit", "RateLimit-Limit" };
+    private static final String[] HEADERS_APP_REMAINING = { "X-App-RateLimit-Remaining" };
+    private static final String[] HEADERS_APP_RESET = { "X-App-RateLimit-Reset" };
+    private static final String[] HEADERS_APP_LIMIT = { "X-App-RateLimit-Limit" };
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    // Bytes of the token hash kept in the key, enough that different tokens do not share a limit
+    private static final int KEY_HASH_BYTES = 12;
+
+    // Reset times larger than this are seconds since the epoch rather than seconds from now
+    private static final long EPOCH_SECONDS_MIN = 1000000000L;
+
+    private static Log logger = LogFactory.getLog(OAuth2RateLimiter.class);
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+
+    private int burst = 10;
+
+    private long maxWait = 2000L;
+
+    private double lowPriorityReserve = 0.2;
+
+    private int maxKeys = 10000;
+
+    /**
+     * Get the key for a limit which applies to each access token. The token is hashed with SHA-256, so that neither
+     * the token nor anything which could be used to find it is kept.
+     *
+     * @param endpointId    The endpoint ID
+     * @param accessToken   The access token, which is not kept as part of the key
+     */
+    public static String getKey(String endpointId, String accessToken)
+    {
+        byte[] hash;
+        try
+        {
+            hash = MessageDigest.getInstance("SHA-256").digest(accessToken.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+        StringBuilder key = new StringBuilder(endpointId.length() + 1 + KEY_HASH_BYTES * 2);
+        key.append(endpointId).append('#');
+        for (int i = 0; i < KEY_HASH_BYTES; i++)
+        {
+            key.append(HEX_DIGITS[(hash[i] >> 4) & 0xf]).append(HEX_DIGITS[hash[i] & 0xf]);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Take a request from the buckets for the token and the application, before it is sent. If one bucket sheds
+     * the request, it is given back to the other.
+     *
+     * @param tokenKey      The endpoint and token key, or null if the request is not made with a user's token
+     * @param appKey        The endpoint ID
+     * @param lowPriority   Whether the request may be shed first
+     * @return The time in milliseconds to wait before sending the request, or -1 if it should not be sent
+     */
+    public long acquire(String tokenKey, String appKey, boolean lowPriority)
+    {
+        long now = System.currentTimeMillis();
+        Bucket tokenBucket = tokenKey != null ? buckets.get(tokenKey) : null;
+        long tokenWait = tokenBucket != null ? tokenBucket.acquire(now, lowPriority) : 0L;
+        if (tokenWait < 0)
+        {
+            return -1L;
+        }
+        Bucket appBucket = buckets.get(appKey);
+        long appWait = appBucket != null ? appBucket.acquire(now, lowPriority) : 0L;
+        if (appWait < 0)
+        {
+            if (tokenBucket != null)
+            {
+                tokenBucket.release(now);
+            }
+            return -1L;
+        }
+        return Math.max(tokenWait, appWait);
+    }
+
+    /**
+     * @param tokenKey      The endpoint and token key, or null if the request is not made with a user's token
+     * @param appKey        The endpoint ID
+     * @return The time in milliseconds until the buckets for the token and the application will both have a
+     *          request available
+     */
+    public long getWait(String tokenKey, String appKey)
+    {
+        long now = System.currentTimeMillis();
+        Bucket tokenBucket = tokenKey != null ? buckets.get(tokenKey) : null, appBucket = buckets.get(appKey);
+        return Math.max(tokenBucket != null ? tokenBucket.getWait(now) : 0L,
+                appBucket != null ? appBucket.getWait(now) : 0L);
+    }
+
+    /**
+     * Update the limits for the token and the application from the headers of a provider's response. If there is a
+     * token key, the <code>X-RateLimit</code> headers give the token's limit and the <code>X-App-RateLimit</code>
+     * headers the application's, and otherwise the application's limit is taken from either. Responses without
+     * rate limit headers are ignored.
+     *
+     * @param tokenKey      The endpoint and token key, or null if the limit reported applies to the application
+     * @param appKey        The endpoint ID
+     * @param headers       The response headers
+     */
+    public void update(String tokenKey, String appKey, Map<String, String> headers)
+    {
+        if (headers == null)
+        {
+            return;
+        }
+        boolean appUpdated = update(appKey, headers, HEADERS_APP_REMAINING, HEADERS_APP_RESET, HEADERS_APP_LIMIT);
+        if (tokenKey != null)
+        {
+            update(tokenKey, headers, HEADERS_REMAINING, HEADERS_RESET, HEADERS_LIMIT);
+        }
+        else if (!appUpdated)
+        {
+            update(appKey, headers, HEADERS_REMAINING, HEADERS_RESET, HEADERS_LIMIT);
+        }
+    }
+
+    /**
+     * Update the limit for a key from the given rate limit headers
+     *
+     * @return Whether the headers were present
+     */
+    private boolean update(String key, Map<String, String> headers, String[] remainingNames, String[] resetNames,
+            String[] limitNames)
+    {
+        long remaining = getLongHeader(headers, remainingNames), reset = getLongHeader(headers, resetNames);
+        if (remaining < 0 || reset < 0)
+        {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        long resetAt = reset >= EPOCH_SECONDS_MIN ? reset * 1000L : now + reset * 1000L;
+        Bucket bucket = buckets.get(key);
+        if (bucket == null)
+        {
+            if (buckets.size() >= maxKeys)
+            {
+                removeExpired(now);
+            }
+            bucket = new Bucket(this);
+            Bucket existing = buckets.putIfAbsent(key, bucket);
+            if (existing != null)
+            {
+                bucket = existing;
+            }
+        }
+        bucket.update(getLongHeader(headers, limitNames), remaining, resetAt, now);
+        if (logger.isDebugEnabled())
+            logger.debug("Rate limit for " + key + " has " + remaining + " requests remaining for " + (resetAt - now) + "ms");
+        return true;
+    }
+
+    /**
+     * Remove buckets whose window has reset, since they no longer limit anything
+     */
+    private void removeExpired(long now)
+    {
+        for (Iterator<Bucket> it = buckets.values().iterator(); it.hasNext();)
+        {
+            if (it.next().isExpired(now))
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private static long getLongHeader(Map<String, String> headers, String[] names)
+    {
+        for (Map.Entry<String, String> header : headers.entrySet())
+        {
+            for (String name : names)
+            {
+                if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null)
+                {
+                    try
+                    {
+                        return Long.parseLong(header.getValue().trim());
+                    }
+                    catch (NumberFormatException e)
+                    {
+                        return -1L;
+                    }
+                }
+            }
+        }
+        return -1L;
+    }
+
+    public int getBurst()
+    {
+        return burst;
+    }
+
+    /**
+     * @param burst     Largest number of requests which may be sent for a key at once
+     */
+    public void setBurst(int burst)
+    {
+        this.burst = burst;
+    }
+
+    public long getMaxWait()
+    {
+        return maxWait;
+    }
+
+    /**
+     * @param maxWait   Longest time in milliseconds a request waits for the bucket to refill before it is shed
+     */
+    public void setMaxWait(long maxWait)
+    {
+        this.maxWait = maxWait;
+    }
+
+    public double getLowPriorityReserve()
+    {
+        return lowPriorityReserve;
+    }
+
+    /**
+     * @param lowPriorityReserve    Fraction of the provider's limit below which low priority requests are shed
+     */
+    public void setLowPriorityReserve(double lowPriorityReserve)
+    {
+        this.lowPriorityReserve = lowPriorityReserve;
+    }
+
+    public int getMaxKeys()
+    {
+        return maxKeys;
+    }
+
+    /**
+     * @param maxKeys   Number of keys tracked before those whose window has reset are removed
+     */
+    public void setMaxKeys(int maxKeys)
+    {
+        this.maxKeys = maxKeys;
+    }
+
+    /**
+     * Token bucket for a single key. Requests which wait take their token straight away, leaving the bucket in
+     * debt, so that later requests queue up behind them.
+     */
+    private static final class Bucket
+    {
+        private final OAuth2RateLimiter limiter;
+
+        private long limit = -1L;
+        private long remaining;
+        private long resetAt;
+        private double capacity;
+        private double tokens;
+        private double rate;
+        private long lastRefill;
+
+        private Bucket(OAuth2RateLimiter limiter)
+        {
+            this.limiter = limiter;
+        }
+
+        private synchronized void update(long limit, long remaining, long resetAt, long now)
+        {
+            boolean first = lastRefill == 0L;
+            refill(now);
+            this.limit = limit;
+            this.remaining = remaining;
+            this.resetAt = resetAt;
+            capacity = Math.min(limiter.burst, remaining);
+            rate = (double) remaining / Math.max(1L, resetAt - now);
+            tokens = first ? capacity : Math.min(tokens, capacity);
+        }
+
+        private synchronized long acquire(long now, boolean lowPriority)
+        {
+            if (isExpired(now))
+            {
+                return 0L;
+            }
+            refill(now);
+            if (lowPriority && (tokens < 1.0 || (limit > 0 && remaining < limiter.lowPriorityReserve * limit)))
+            {
+                return -1L;
+            }
+            long wait = getWait(now);
+            if (wait > limiter.maxWait)
+            {
+                return -1L;
+            }
+            tokens -= 1.0;
+            remaining--;
+            return wait;
+        }
+
+        /**
+         * Give back a request taken at the same time, which was not sent
+         */
+        private synchronized void release(long now)
+        {
+            if (!isExpired(now))
+            {
+                tokens = Math.min(capacity, tokens + 1.0);
+                remaining++;
+            }
+        }
+
+        private synchronized long getWait(long now)
+        {
+            if (isExpired(now))
+            {
+                return 0L;
+            }
+            refill(now);
+            if (tokens >= 1.0)
+            {
+                return 0L;
+            }
+            // Nothing is left in this window, so wait for it to reset
+            if (rate <= 0.0 || remaining <= 0)
+            {
+                return resetAt - now;
+            }
+            return Math.min(resetAt - now, (long) Math.ceil((1.0 - tokens) / rate));
+        }
+
+        private void refill(long now)
+        {
+            if (lastRefill > 0L && now > lastRefill)
+            {
+                tokens = Math.min(capacity, tokens + (now - lastRefill) * rate);
+            }
+            lastRefill = now;
+        }
+
+        private synchronized boolean isExpired(long now)
+        {
+            return now >= resetAt;
+        }
+    }
+
+}
@@ -0,0 +1,186 @@
+package org.sharextras.webscripts.connector;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.surf.util.FakeHttpServletResponse;
+import org.springframework.extensions.webscripts.connector.Response;
+
+/**
+ * Combines identical requests which are made to a provider at the same time, so that only one request is sent
+ * and its response is shared with all of the callers.
+ *
+ * <p>Requests are identical if they have the same key, which callers must build from everything which affects the
+ * response, including the access token, so that responses are never shared between users. Only the first caller
+ * makes the request. Other callers wait for it to complete and then receive a copy of the buffered response.
+ * If the response is too large to share, or does not arrive in time, the waiting callers make their own
+ * requests instead.</p>
+ */
+public class OAuth2RequestCoalescer
+{
+    private static final int DEFAULT_MAX_RESPONSE_SIZE = 1024 * 1024;
+    private static final long DEFAULT_WAIT_TIMEOUT = 30000L;
+
+    private static Log logger = LogFactory.getLog(OAuth2RequestCoalescer.class);
+
+    private final ConcurrentMap<String, InFlightRequest> inFlight = new ConcurrentHashMap<String, InFlightRequest>();
+
+    private boolean enabled = true;
+
+    private int maxResponseSize = DEFAULT_MAX_RESPONSE_SIZE;
+
+    private long waitTimeout = DEFAULT_WAIT_TIMEOUT;
+
+    /**
+     * A request to the provider, which writes its response body to the given servlet response
+     */
+    public interface Request
+    {
+        Response call(FakeHttpServletResponse res);
+    }
+
+    /**
+     * Make a request, or wait for an identical request which is already in progress
+     *
+     * @param key       Identifies the request, including the access token and any headers which affect the response
+     * @param res       Buffered response to write the response body to
+     * @param request   Makes the request, if needed
+     * @return The response
+     */
+    public Response execute(String key, FakeHttpServletResponse res, Request request)
+    {
+        if (!enabled)
+        {
+            return request.call(res);
+        }
+
+        InFlightRequest current = new InFlightRequest();
+        InFlightRequest existing = inFlight.putIfAbsent(key, current);
+        if (existing == null)
+        {
+            try
+            {
+                Response resp = request.call(res);
+                // A response which outgrew its buffer has been streamed, and only part of it is held
+                if (resp != null && current.waiters.get() > 0 && !HttpOAuth2Connector.isOverflowed(res))
+                {
+                    byte[] body = res.getContentAsByteArray();
+                    if (body.length <= maxResponseSize)
+                    {
+                        current.result = new SharedResponse(resp, body, res.getCharacterEncoding());
+                    }
+                    else if (logger.isDebugEnabled())
+                    {
+                        logger.debug("Response of " + body.length + " bytes is too large to share with waiting requests");
+                    }
+                }
+                return resp;
+            }
+            finally
+            {
+                inFlight.remove(key, current);
+                current.done.countDown();
+            }
+        }
+
+        existing.waiters.incrementAndGet();
+        try
+        {
+            if (existing.done.await(waitTimeout, TimeUnit.MILLISECONDS))
+            {
+                SharedResponse shared = existing.result;
+                if (shared != null)
+                {
+                    logger.debug("Using response from identical request in progress");
+                    res.setStatus(shared.response.getStatus().getCode());
+                    // Headers are needed if the copy is too large to buffer and is streamed to the client
+                    for (Map.Entry<String, String> header : shared.response.getStatus().getHeaders().entrySet())
+                    {
+                        res.setHeader(header.getKey(), header.getValue());
+                    }
+                    if (shared.characterEncoding != null)
+                    {
+                        res.setCharacterEncoding(shared.characterEncoding);
+                    }
+                    res.getOutputStream().write(shared.body);
+                    return shared.response;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not copy shared response, making a separate request", e);
+            res.reset();
+        }
+        return request.call(res);
+    }
+
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled)
+    {
+        this.enabled = enabled;
+    }
+
+    public int getMaxResponseSize()
+    {
+        return maxResponseSize;
+    }
+
+    /**
+     * @param maxResponseSize   Maximum size in bytes of a response body which will be shared with waiting requests
+     */
+    public void setMaxResponseSize(int maxResponseSize)
+    {
+        this.maxResponseSize = maxResponseSize;
+    }
+
+    public long getWaitTimeout()
+    {
+        return waitTimeout;
+    }
+
+    /**
+     * @param waitTimeout   Time in milliseconds to wait for an identical request before making a separate request
+     */
+    public void setWaitTimeout(long waitTimeout)
+    {
+        this.waitTimeout = waitTimeout;
+    }
+
+    private static final class InFlightRequest
+    {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private final AtomicInteger waiters = new AtomicInteger();
+        private volatile SharedResponse result;
+    }
+
+    private static final class SharedResponse
+    {
+        private final Response response;
+        private final byte[] body;
+        private final String characterEncoding;
+
+        private SharedResponse(Response response, byte[] body, String characterEncoding)
+        {
+            this.response = response;
+            this.body = body;
+            this.characterEncoding = characterEncoding;
+        }
+    }
+
+}
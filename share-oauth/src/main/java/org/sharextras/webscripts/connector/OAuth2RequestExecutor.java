@@ -0,0 +1,129 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of threads used to make requests to providers in parallel on behalf of a single Share request.
+ *
+ * <p>The number of threads and the number of requests waiting for a thread are both limited, so that a burst of
+ * parallel requests cannot use up the threads or memory of the web tier. Requests which cannot be queued are
+ * rejected straight away, and callers should report these as unavailable rather than making them one by one.</p>
+ */
+public class OAuth2RequestExecutor
+{
+    private static final int DEFAULT_THREADS = 8;
+    private static final int DEFAULT_QUEUE_SIZE = 200;
+
+    private int threads = DEFAULT_THREADS;
+
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    private volatile ThreadPoolExecutor executor;
+
+    private OAuth2Tracer tracer;
+
+    /**
+     * Run a request on the pool
+     *
+     * @param request   The request
+     * @return The pending result of the request
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> Future<T> submit(Callable<T> request)
+    {
+        try
+        {
+            return getExecutor().submit(request);
+        }
+        catch (RejectedExecutionException e)
+        {
+            if (tracer != null)
+            {
+                tracer.recordRejection(null, "requestExecutor");
+            }
+            throw e;
+        }
+    }
+
+    private ThreadPoolExecutor getExecutor()
+    {
+        if (executor == null)
+        {
+            synchronized (this)
+            {
+                if (executor == null)
+                {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(queueSize),
+                            new ThreadFactory()
+                            {
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                public Thread newThread(Runnable r)
+                                {
+                                    Thread thread = new Thread(r, "OAuth2Request-" + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    executor = pool;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Stop any requests in progress, called when the application context is closed
+     */
+    public void destroy()
+    {
+        if (executor != null)
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    public int getThreads()
+    {
+        return threads;
+    }
+
+    /**
+     * @param threads   Maximum number of requests made at the same time
+     */
+    public void setThreads(int threads)
+    {
+        this.threads = threads;
+    }
+
+    public int getQueueSize()
+    {
+        return queueSize;
+    }
+
+    /**
+     * @param queueSize Maximum number of requests waiting for a thread
+     */
+    public void setQueueSize(int queueSize)
+    {
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * @param tracer    Tracer to record rejected requests with, or null
+     */
+    public void setTracer(OAuth2Tracer tracer)
+    {
+        this.tracer = tracer;
+    }
+
+}
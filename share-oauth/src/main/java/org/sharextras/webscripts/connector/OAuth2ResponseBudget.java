@@ -0,0 +1,187 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Limits the total memory used across the node to buffer responses from providers while they are proxied.
+ *
+ * <p>Responses are buffered so that a request can be retried if the provider rejects the access token. Each
+ * buffered response first reserves a fixed number of bytes from the budget, waiting briefly if the budget is used
+ * up. Requests which cannot reserve any memory in time should stream the response straight to the client instead,
+ * so that a burst of large downloads cannot use up the heap. Responses which grow beyond their reservation are
+ * charged for the bytes they actually use, so that they hold back other requests until they are released. A
+ * response may not grow beyond the per-request limit, or take the node over its budget. Instead, what has been
+ * buffered so far is sent to the client and the rest of the response is streamed, after which the request can no
+ * longer be retried.</p>
+ */
+public class OAuth2ResponseBudget implements OAuth2ResponseBudgetMBean
+{
+    private static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024L * 1024L;
+    private static final long DEFAULT_MAX_REQUEST_BYTES = 2L * 1024L * 1024L;
+    private static final long DEFAULT_MAX_RESPONSE_BYTES = 8L * 1024L * 1024L;
+    private static final long DEFAULT_WAIT_TIMEOUT = 500L;
+
+    private static Log logger = LogFactory.getLog(OAuth2ResponseBudget.class);
+
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    private long maxRequestBytes = DEFAULT_MAX_REQUEST_BYTES;
+
+    private long maxResponseBytes = DEFAULT_MAX_RESPONSE_BYTES;
+
+    private long waitTimeout = DEFAULT_WAIT_TIMEOUT;
+
+    // Bytes currently reserved, guarded by this object
+    private long bufferedBytes;
+
+    private final AtomicLong streamedResponses = new AtomicLong();
+
+    private final AtomicLong overflowedResponses = new AtomicLong();
+
+    /**
+     * Reserve memory to buffer a response, waiting up to the wait timeout for memory to be released
+     *
+     * @return The number of bytes reserved, or 0 if the response should not be buffered
+     */
+    public synchronized long reserve()
+    {
+        long deadline = System.currentTimeMillis() + waitTimeout;
+        try
+        {
+            while (bufferedBytes + maxRequestBytes > maxBufferedBytes)
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                {
+                    if (logger.isDebugEnabled())
+                        logger.debug("Response buffer budget of " + maxBufferedBytes + " bytes is in use, streaming response");
+                    streamedResponses.incrementAndGet();
+                    return 0L;
+                }
+                wait(remaining);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            streamedResponses.incrementAndGet();
+            return 0L;
+        }
+        bufferedBytes += maxRequestBytes;
+        return maxRequestBytes;
+    }
+
+    /**
+     * Charge a buffered response for the memory it is about to use, if this is more than it has reserved. This
+     * never waits. Growth is refused if the response would be larger than the per-request limit, or the node would
+     * go over its budget, in which case the response must be streamed from then on.
+     *
+     * @param reserved  Bytes already reserved for the response
+     * @param size      Bytes the response needs
+     * @return The number of bytes now reserved for the response, or -1 if it may not grow
+     */
+    public synchronized long grow(long reserved, long size)
+    {
+        if (size <= reserved)
+        {
+            return reserved;
+        }
+        if (size > maxResponseBytes || bufferedBytes + size - reserved > maxBufferedBytes)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Buffered response of " + size + " bytes does not fit the response buffer budget, streaming the rest of it");
+            overflowedResponses.incrementAndGet();
+            return -1L;
+        }
+        if (reserved <= maxRequestBytes && logger.isDebugEnabled())
+            logger.debug("Buffered response is larger than the " + maxRequestBytes + " bytes reserved for it");
+        bufferedBytes += size - reserved;
+        return size;
+    }
+
+    /**
+     * Release the memory reserved for a response, once it has been sent to the client
+     *
+     * @param reserved  Bytes reserved for the response, which may be 0
+     */
+    public synchronized void release(long reserved)
+    {
+        if (reserved > 0)
+        {
+            bufferedBytes -= reserved;
+            notifyAll();
+        }
+    }
+
+    public synchronized long getBufferedBytes()
+    {
+        return bufferedBytes;
+    }
+
+    public long getStreamedResponses()
+    {
+        return streamedResponses.get();
+    }
+
+    public long getOverflowedResponses()
+    {
+        return overflowedResponses.get();
+    }
+
+    public long getMaxBufferedBytes()
+    {
+        return maxBufferedBytes;
+    }
+
+    /**
+     * @param maxBufferedBytes  Maximum number of bytes reserved for buffered responses across the node
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes)
+    {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public long getMaxRequestBytes()
+    {
+        return maxRequestBytes;
+    }
+
+    /**
+     * @param maxRequestBytes   Number of bytes reserved for each buffered response
+     */
+    public void setMaxRequestBytes(long maxRequestBytes)
+    {
+        this.maxRequestBytes = maxRequestBytes;
+    }
+
+    public long getMaxResponseBytes()
+    {
+        return maxResponseBytes;
+    }
+
+    /**
+     * @param maxResponseBytes  Largest number of bytes buffered for a single response, beyond which the rest of the
+     *                          response is streamed
+     */
+    public void setMaxResponseBytes(long maxResponseBytes)
+    {
+        this.maxResponseBytes = maxResponseBytes;
+    }
+
+    public long getWaitTimeout()
+    {
+        return waitTimeout;
+    }
+
+    /**
+     * @param waitTimeout   Time in milliseconds to wait for memory to be released before streaming a response
+     */
+    public void setWaitTimeout(long waitTimeout)
+    {
+        this.waitTimeout = waitTimeout;
+    }
+
+}
@@ -0,0 +1,38 @@
+package org.sharextras.webscripts.connector;
+
+/**
+ * Management interface for {@link OAuth2ResponseBudget}, which exposes the current memory use of buffered proxy
+ * responses when the budget is exported over JMX
+ */
+public interface OAuth2ResponseBudgetMBean
+{
+    /**
+     * @return Number of bytes currently reserved for or used by buffered responses
+     */
+    long getBufferedBytes();
+
+    /**
+     * @return Maximum number of bytes reserved for buffered responses before further responses are streamed
+     */
+    long getMaxBufferedBytes();
+
+    /**
+     * @return Number of bytes reserved for each buffered response
+     */
+    long getMaxRequestBytes();
+
+    /**
+     * @return Largest number of bytes buffered for a single response
+     */
+    long getMaxResponseBytes();
+
+    /**
+     * @return Number of responses which have been streamed because no memory was available to buffer them
+     */
+    long getStreamedResponses();
+
+    /**
+     * @return Number of buffered responses which grew too large for the budget, and were streamed from then on
+     */
+    long getOverflowedResponses();
+}
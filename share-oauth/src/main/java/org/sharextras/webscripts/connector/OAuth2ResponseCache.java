@@ -0,0 +1,463 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Caches responses to GET requests made through OAuth 2.0 connectors, so that resources which the provider has
+ * marked as cacheable are not fetched again each time a user views them.
+ *
+ * <p>Entries are always keyed by user as well as by endpoint and URI, so a response fetched with one user's
+ * token is never returned to another user. The cache is bounded by the total size of the response bodies it
+ * holds and by the number of entries held for each user, and the least recently used entries are evicted
+ * first.</p>
+ *
+ * <p>Entries are fresh for the <code>max-age</code> given by the provider. Stale entries which have an
+ * <code>ETag</code> or <code>Last-Modified</code> header are kept so that they can be revalidated with a
+ * conditional request. Endpoints may also allow stale entries to be returned while they are refreshed in the
+ * background, using a small bounded pool of threads. At most one background refresh runs for each entry.</p>
+ */
+public class OAuth2ResponseCache
+{
+    private static final long DEFAULT_MAX_SIZE = 10L * 1024L * 1024L;
+    private static final int DEFAULT_MAX_ENTRY_SIZE = 256 * 1024;
+    private static final int DEFAULT_MAX_ENTRIES_PER_USER = 100;
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+    private static final int DEFAULT_REFRESH_QUEUE_SIZE = 100;
+
+    private static Log logger = LogFactory.getLog(OAuth2ResponseCache.class);
+
+    private final LinkedHashMap<CacheKey, CachedResponse> entries = new LinkedHashMap<CacheKey, CachedResponse>(64, 0.75f, true);
+
+    private final Map<String, Integer> userEntryCounts = new HashMap<String, Integer>();
+
+    private long size = 0L;
+
+    private long maxSize = DEFAULT_MAX_SIZE;
+
+    private int maxEntrySize = DEFAULT_MAX_ENTRY_SIZE;
+
+    private int maxEntriesPerUser = DEFAULT_MAX_ENTRIES_PER_USER;
+
+    private int refreshThreads = DEFAULT_REFRESH_THREADS;
+
+    private int refreshQueueSize = DEFAULT_REFRESH_QUEUE_SIZE;
+
+    private final Set<CacheKey> refreshing = Collections.newSetFromMap(new ConcurrentHashMap<CacheKey, Boolean>());
+
+    private volatile ThreadPoolExecutor refreshExecutor;
+
+    /**
+     * Get a cached response
+     *
+     * @param userId        The user the response was fetched for
+     * @param endpointId    The endpoint ID
+     * @param uri           The request URI, including any query string
+     * @param variant       Request headers which the response may vary on, e.g. <code>Accept</code>
+     * @return The cached response, which may be stale, or null if there is none
+     */
+    public synchronized CachedResponse get(String userId, String endpointId, String uri, String variant)
+    {
+        return entries.get(new CacheKey(userId, endpointId, uri, variant));
+    }
+
+    /**
+     * Add a response to the cache, replacing any existing entry. Responses larger than the maximum entry size
+     * are not cached.
+     *
+     * @return true if the response was cached
+     */
+    public synchronized boolean put(String userId, String endpointId, String uri, String variant, CachedResponse response)
+    {
+        if (response.body.length > maxEntrySize)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("Not caching response of " + response.body.length + " bytes for " + HttpOAuth2Connector.withoutQuery(uri));
+            return false;
+        }
+        CacheKey key = new CacheKey(userId, endpointId, uri, variant);
+        removeEntry(key);
+        entries.put(key, response);
+        size += response.body.length;
+        Integer count = userEntryCounts.get(userId);
+        userEntryCounts.put(userId, count != null ? count + 1 : 1);
+        evict(userId);
+        return true;
+    }
+
+    /**
+     * Remove a cached response, e.g. because the provider no longer returns it
+     */
+    public synchronized void remove(String userId, String endpointId, String uri, String variant)
+    {
+        removeEntry(new CacheKey(userId, endpointId, uri, variant));
+    }
+
+    /**
+     * Remove all responses cached for a user, e.g. when they log out
+     */
+    public void removeAll(String userId)
+    {
+        removeAll(userId, null);
+    }
+
+    /**
+     * Remove the responses cached for a user from an endpoint, e.g. when their tokens for it are revoked or
+     * replaced by tokens for another account
+     *
+     * @param endpointId    The endpoint ID, or null to remove the responses from all endpoints
+     */
+    public synchronized void removeAll(String userId, String endpointId)
+    {
+        Iterator<Map.Entry<CacheKey, CachedResponse>> it = entries.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<CacheKey, CachedResponse> entry = it.next();
+            if (entry.getKey().userId.equals(userId) &&
+                    (endpointId == null || entry.getKey().endpointId.equals(endpointId)))
+            {
+                size -= entry.getValue().body.length;
+                decrementUserCount(userId);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Refresh a cached response in the background. Nothing is done if a refresh is already running for the
+     * same response, or if the refresh queue is full.
+     *
+     * @param refresh   Fetches the response again and updates the cache
+     * @return true if the refresh was started
+     */
+    public boolean refreshAsync(String userId, String endpointId, String uri, String variant, final Runnable refresh)
+    {
+        final CacheKey key = new CacheKey(userId, endpointId, uri, variant);
+        if (!refreshing.add(key))
+        {
+            return false;
+        }
+        try
+        {
+            getRefreshExecutor().execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        refresh.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        logger.warn("Background refresh of cached response failed", e);
+                    }
+                    finally
+                    {
+                        refreshing.remove(key);
+                    }
+                }
+            });
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            refreshing.remove(key);
+            logger.debug("Background refresh queue is full, not refreshing " + HttpOAuth2Connector.withoutQuery(uri));
+            return false;
+        }
+    }
+
+    private ThreadPoolExecutor getRefreshExecutor()
+    {
+        if (refreshExecutor == null)
+        {
+            synchronized (this)
+            {
+                if (refreshExecutor == null)
+                {
+                    ThreadPoolExecutor executor = new ThreadPoolExecutor(refreshThreads, refreshThreads,
+                            60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(refreshQueueSize),
+                            new ThreadFactory()
+                            {
+                                private final AtomicInteger count = new AtomicInteger();
+
+                                public Thread newThread(Runnable r)
+                                {
+                                    Thread thread = new Thread(r, "OAuth2ResponseCacheRefresh-" + count.incrementAndGet());
+                                    thread.setDaemon(true);
+                                    return thread;
+                                }
+                            });
+                    executor.allowCoreThreadTimeOut(true);
+                    refreshExecutor = executor;
+                }
+            }
+        }
+        return refreshExecutor;
+    }
+
+    /**
+     * Stop any background refreshes, called when the application context is closed
+     */
+    public void destroy()
+    {
+        if (refreshExecutor != null)
+        {
+            refreshExecutor.shutdownNow();
+        }
+    }
+
+    private void removeEntry(CacheKey key)
+    {
+        CachedResponse existing = entries.remove(key);
+        if (existing != null)
+        {
+            size -= existing.body.length;
+            decrementUserCount(key.userId);
+        }
+    }
+
+    private void decrementUserCount(String userId)
+    {
+        Integer count = userEntryCounts.get(userId);
+        if (count != null && count > 1)
+        {
+            userEntryCounts.put(userId, count - 1);
+        }
+        else
+        {
+            userEntryCounts.remove(userId);
+        }
+    }
+
+    /**
+     * Evict the least recently used entries until the cache is within its limits
+     */
+    private void evict(String userId)
+    {
+        Integer userCount = userEntryCounts.get(userId);
+        boolean overUserLimit = userCount != null && userCount > maxEntriesPerUser;
+        Iterator<Map.Entry<CacheKey, CachedResponse>> it = entries.entrySet().iterator();
+        while ((size > maxSize || overUserLimit) && it.hasNext())
+        {
+            Map.Entry<CacheKey, CachedResponse> entry = it.next();
+            boolean sameUser = entry.getKey().userId.equals(userId);
+            if (size > maxSize || sameUser)
+            {
+                size -= entry.getValue().body.length;
+                it.remove();
+                decrementUserCount(entry.getKey().userId);
+                if (sameUser)
+                {
+                    overUserLimit = false;
+                }
+            }
+        }
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * @param maxSize   Maximum total size in bytes of the response bodies held
+     */
+    public void setMaxSize(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    public int getMaxEntrySize()
+    {
+        return maxEntrySize;
+    }
+
+    /**
+     * @param maxEntrySize  Maximum size in bytes of a single response body which will be cached
+     */
+    public void setMaxEntrySize(int maxEntrySize)
+    {
+        this.maxEntrySize = maxEntrySize;
+    }
+
+    public int getMaxEntriesPerUser()
+    {
+        return maxEntriesPerUser;
+    }
+
+    /**
+     * @param maxEntriesPerUser Maximum number of responses held for a single user
+     */
+    public void setMaxEntriesPerUser(int maxEntriesPerUser)
+    {
+        this.maxEntriesPerUser = maxEntriesPerUser;
+    }
+
+    public int getRefreshThreads()
+    {
+        return refreshThreads;
+    }
+
+    /**
+     * @param refreshThreads    Number of threads used to refresh stale responses in the background
+     */
+    public void setRefreshThreads(int refreshThreads)
+    {
+        this.refreshThreads = refreshThreads;
+    }
+
+    public int getRefreshQueueSize()
+    {
+        return refreshQueueSize;
+    }
+
+    /**
+     * @param refreshQueueSize  Maximum number of background refreshes waiting for a thread
+     */
+    public void setRefreshQueueSize(int refreshQueueSize)
+    {
+        this.refreshQueueSize = refreshQueueSize;
+    }
+
+    /**
+     * A cached response. The body and headers are never modified once the response has been cached, but the
+     * freshness information is updated when the response is revalidated.
+     */
+    public static final class CachedResponse
+    {
+        private final int status;
+        private final Map<String, String> headers;
+        private final String characterEncoding;
+        private final byte[] body;
+        private volatile long storedAt;
+        private volatile long maxAge;
+
+        /**
+         * @param status            HTTP status code
+         * @param headers           Response headers
+         * @param characterEncoding Character encoding of the body
+         * @param body              The response body
+         * @param maxAge            Time in milliseconds for which the response is fresh
+         */
+        public CachedResponse(int status, Map<String, String> headers, String characterEncoding, byte[] body, long maxAge)
+        {
+            this.status = status;
+            this.headers = Collections.unmodifiableMap(new HashMap<String, String>(headers));
+            this.characterEncoding = characterEncoding;
+            this.body = body;
+            this.storedAt = System.currentTimeMillis();
+            this.maxAge = maxAge;
+        }
+
+        public boolean isFresh()
+        {
+            return System.currentTimeMillis() - storedAt < maxAge;
+        }
+
+        /**
+         * Mark the response as fresh again, after the provider has confirmed that it has not changed
+         *
+         * @param maxAge    Time in milliseconds for which the response is fresh
+         */
+        public void revalidated(long maxAge)
+        {
+            this.storedAt = System.currentTimeMillis();
+            this.maxAge = maxAge;
+        }
+
+        /**
+         * @return Time in milliseconds since the response became stale, or a negative value if it is fresh
+         */
+        public long getStaleness()
+        {
+            return System.currentTimeMillis() - storedAt - maxAge;
+        }
+
+        /**
+         * @return Time in seconds since the response was fetched or last revalidated
+         */
+        public long getAge()
+        {
+            return (System.currentTimeMillis() - storedAt) / 1000L;
+        }
+
+        public int getStatus()
+        {
+            return status;
+        }
+
+        public Map<String, String> getHeaders()
+        {
+            return headers;
+        }
+
+        public String getCharacterEncoding()
+        {
+            return characterEncoding;
+        }
+
+        public byte[] getBody()
+        {
+            return body;
+        }
+    }
+
+    private static final class CacheKey
+    {
+        private final String userId;
+        private final String endpointId;
+        private final String uri;
+        private final String variant;
+
+        private CacheKey(String userId, String endpointId, String uri, String variant)
+        {
+            this.userId = userId;
+            this.endpointId = endpointId;
+            this.uri = uri;
+            this.variant = variant != null ? variant : "";
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof CacheKey))
+            {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return userId.equals(other.userId) && endpointId.equals(other.endpointId) &&
+                    uri.equals(other.uri) && variant.equals(other.variant);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = userId.hashCode();
+            result = 31 * result + endpointId.hashCode();
+            result = 31 * result + uri.hashCode();
+            result = 31 * result + variant.hashCode();
+            return result;
+        }
+    }
+
+}
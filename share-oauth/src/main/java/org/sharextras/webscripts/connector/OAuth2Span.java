@@ -0,0 +1,169 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A timed stage of a proxied request, identified in the same way as a span in a W3C Trace Context
+ * <code>traceparent</code> header, so that it can be joined with spans recorded by the repository and the provider.
+ *
+ * Spans are started by {@link OAuth2Tracer#startSpan(String)} and become the current span for the thread until
+ * {@link #end()} is called, which must always be done in a <code>finally</code> block. Attributes are only kept for
+ * spans which are sampled or are being recorded by the tracer's {@link OAuth2SpanRecorder}.
+ */
+public class OAuth2Span
+{
+    private static final String TRACEPARENT_VERSION = "00";
+
+    private final OAuth2Tracer tracer;
+    private final OAuth2Span parent;
+    private final String name;
+    private final String traceId;
+    private final String spanId;
+    private final String parentSpanId;
+    private final boolean sampled;
+    private final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    private long durationNanos = -1L;
+    private Map<String, Object> attributes;
+    private Object recording;
+
+    OAuth2Span(OAuth2Tracer tracer, OAuth2Span parent, String name, String traceId, String spanId, String parentSpanId,
+               boolean sampled)
+    {
+        this.tracer = tracer;
+        this.parent = parent;
+        this.name = name;
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentSpanId = parentSpanId;
+        this.sampled = sampled;
+    }
+
+    /**
+     * Record a value describing the span. Values are only kept if the span is sampled or recorded, so this costs
+     * nothing otherwise.
+     */
+    public OAuth2Span setAttribute(String key, Object value)
+    {
+        if (isRecorded())
+        {
+            if (attributes == null)
+            {
+                attributes = new LinkedHashMap<String, Object>();
+            }
+            attributes.put(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * End the span, making its parent the current span again, and export it if sampled
+     */
+    public void end()
+    {
+        if (durationNanos < 0)
+        {
+            durationNanos = System.nanoTime() - startNanos;
+            tracer.end(this);
+        }
+    }
+
+    /**
+     * @return The value of a <code>traceparent</code> header which makes this span the parent of the receiver's span
+     */
+    public String getTraceparent()
+    {
+        return TRACEPARENT_VERSION + "-" + traceId + "-" + spanId + (sampled ? "-01" : "-00");
+    }
+
+    /**
+     * @return The span which was current when this span started, or null if there was none
+     */
+    public OAuth2Span getParent()
+    {
+        return parent;
+    }
+
+    /**
+     * Whether attributes are being kept for the span, in which case the caller may work out values which are
+     * otherwise not needed
+     */
+    public boolean isRecorded()
+    {
+        return sampled || recording != null;
+    }
+
+    /**
+     * @return The state kept by the span recorder for this span, or null if it is not being recorded
+     */
+    public Object getRecording()
+    {
+        return recording;
+    }
+
+    void setRecording(Object recording)
+    {
+        this.recording = recording;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String getTraceId()
+    {
+        return traceId;
+    }
+
+    public String getSpanId()
+    {
+        return spanId;
+    }
+
+    /**
+     * @return The ID of the parent span, or null for the root span of a trace
+     */
+    public String getParentSpanId()
+    {
+        return parentSpanId;
+    }
+
+    public boolean isSampled()
+    {
+        return sampled;
+    }
+
+    /**
+     * @return Start time in milliseconds since the epoch
+     */
+    public long getStartTime()
+    {
+        return startTime;
+    }
+
+    /**
+     * @return Duration in nanoseconds, or -1 if the span has not ended
+     */
+    public long getDurationNanos()
+    {
+        return durationNanos;
+    }
+
+    /**
+     * @return The value of an attribute, or null if it has not been set or the span is not recorded
+     */
+    public Object getAttribute(String key)
+    {
+        return attributes != null ? attributes.get(key) : null;
+    }
+
+    public Map<String, Object> getAttributes()
+    {
+        return attributes != null ? Collections.unmodifiableMap(attributes) : Collections.<String, Object>emptyMap();
+    }
+
+}
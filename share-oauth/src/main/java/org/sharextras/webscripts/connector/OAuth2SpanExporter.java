@@ -0,0 +1,15 @@
+package org.sharextras.webscripts.connector;
+
+/**
+ * Receives spans recorded by {@link OAuth2Tracer} once they have ended. Only sampled spans are exported.
+ *
+ * Exporters are called on the thread which handled the request, so implementations which send spans to a remote
+ * collector should queue them rather than sending them straight away.
+ */
+public interface OAuth2SpanExporter
+{
+    /**
+     * @param span  The span, which has ended
+     */
+    void export(OAuth2Span span);
+}
@@ -0,0 +1,31 @@
+package org.sharextras.webscripts.connector;
+
+/**
+ * Sees every span started by {@link OAuth2Tracer} while it is recording, whether or not the span is sampled, so that
+ * the stages of proxied requests can be passed on to a profiler as they happen.
+ *
+ * {@link #isRecording()} is called as each span starts, so it must be cheap.
+ */
+public interface OAuth2SpanRecorder
+{
+    /**
+     * @return Whether spans should be recorded at present
+     */
+    boolean isRecording();
+
+    /**
+     * Called when a span starts, while recording
+     *
+     * @param span  The span, which has no attributes yet
+     * @return State to keep with the span until it ends, or null not to record the span
+     */
+    Object start(OAuth2Span span);
+
+    /**
+     * Called when a recorded span ends, with the attributes set on it
+     *
+     * @param span      The span
+     * @param recording The state returned by {@link #start(OAuth2Span)}
+     */
+    void end(OAuth2Span span, Object recording);
+}
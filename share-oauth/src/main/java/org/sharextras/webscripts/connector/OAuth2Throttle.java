@@ -0,0 +1,177 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.http.client.utils.DateUtils;
+
+/**
+ * Remembers when providers have asked for requests to be slowed down, and works out how long to wait before
+ * retrying a throttled request.
+ *
+ * <p>A provider throttles requests by returning <code>429 Too Many Requests</code> or
+ * <code>503 Service Unavailable</code>, usually with a <code>Retry-After</code> header giving the number of seconds
+ * or the date after which requests may be made again. The end of this throttle window is kept for the endpoint, so
+ * that other requests to it, including those made for other users, can wait for it to pass before they are sent
+ * rather than each being rejected by the provider first.</p>
+ *
+ * <p>Retries back off exponentially from a base delay, with jitter so that requests throttled at the same time are
+ * not all retried at the same time, and never before the time given by <code>Retry-After</code>.</p>
+ */
+public class OAuth2Throttle
+{
+    public static final int STATUS_TOO_MANY_REQUESTS = 429;
+    public static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private static final long DEFAULT_MAX_WINDOW = 10L * 60L * 1000L;
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private static Log logger = LogFactory.getLog(OAuth2Throttle.class);
+
+    // End of the current throttle window for each endpoint, in milliseconds since the epoch
+    private final ConcurrentMap<String, AtomicLong> windows = new ConcurrentHashMap<String, AtomicLong>();
+
+    private long maxWindow = DEFAULT_MAX_WINDOW;
+
+    /**
+     * Whether a response status means that the provider is throttling requests
+     */
+    public static boolean isThrottled(int status)
+    {
+        return status == STATUS_TOO_MANY_REQUESTS || status == HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Record that the provider has throttled a request, extending the endpoint's throttle window to the time given
+     * in the <code>Retry-After</code> header, if there is one
+     *
+     * @param endpointId    The endpoint ID
+     * @param retryAfter    The value of the <code>Retry-After</code> header, or null
+     * @return The time in milliseconds the provider asked to wait, or -1 if it did not say
+     */
+    public long throttled(String endpointId, String retryAfter)
+    {
+        long now = System.currentTimeMillis();
+        long wait = parseRetryAfter(retryAfter, now);
+        if (wait < 0)
+        {
+            return -1L;
+        }
+        wait = Math.min(wait, maxWindow);
+        long until = now + wait;
+        AtomicLong window = windows.get(endpointId);
+        if (window == null)
+        {
+            window = new AtomicLong();
+            AtomicLong existing = windows.putIfAbsent(endpointId, window);
+            if (existing != null)
+            {
+                window = existing;
+            }
+        }
+        long current = window.get();
+        while (until > current && !window.compareAndSet(current, until))
+        {
+            current = window.get();
+        }
+        if (logger.isDebugEnabled())
+            logger.debug("Endpoint " + endpointId + " is throttled for " + wait + "ms");
+        return wait;
+    }
+
+    /**
+     * @param endpointId    The endpoint ID
+     * @return The time in milliseconds until the endpoint's throttle window ends, or 0 if it is not throttled
+     */
+    public long getWindow(String endpointId)
+    {
+        AtomicLong window = windows.get(endpointId);
+        if (window == null)
+        {
+            return 0L;
+        }
+        long until = window.get(), remaining = until - System.currentTimeMillis();
+        if (remaining <= 0)
+        {
+            // Only remove the window if it has not been extended in the meantime
+            if (window.compareAndSet(until, 0L))
+            {
+                windows.remove(endpointId, window);
+            }
+            return 0L;
+        }
+        return remaining;
+    }
+
+    /**
+     * Get the time to wait before sending a request again
+     *
+     * @param attempt       Number of retries already made, starting from 0
+     * @param baseDelay     Delay before the first retry, in milliseconds, which is doubled for each later retry
+     * @param retryAfter    Time the provider asked to wait in milliseconds, or -1 if it did not say
+     * @return The delay in milliseconds, which is at least <code>retryAfter</code>
+     */
+    public long getRetryDelay(int attempt, long baseDelay, long retryAfter)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long backoff = Math.max(1L, baseDelay) << Math.min(attempt, MAX_BACKOFF_SHIFT);
+        // Half of the delay is fixed and the rest is random
+        long delay = backoff / 2 + random.nextLong(backoff / 2 + 1);
+        if (retryAfter >= 0)
+        {
+            // Spread out requests waiting for the same window by up to the base delay
+            delay = Math.max(delay, retryAfter + random.nextLong(Math.max(1L, baseDelay)));
+        }
+        return delay;
+    }
+
+    /**
+     * Parse a <code>Retry-After</code> header, which gives either a number of seconds or an HTTP date
+     *
+     * @return The time to wait in milliseconds, or -1 if the value is missing or invalid
+     */
+    static long parseRetryAfter(String retryAfter, long now)
+    {
+        if (retryAfter == null || retryAfter.trim().length() == 0)
+        {
+            return -1L;
+        }
+        String value = retryAfter.trim();
+        try
+        {
+            return Math.max(0L, Math.min(Long.parseLong(value), Integer.MAX_VALUE) * 1000L);
+        }
+        catch (NumberFormatException e)
+        {
+            Date date = DateUtils.parseDate(value);
+            if (date == null)
+            {
+                if (logger.isDebugEnabled())
+                    logger.debug("Ignoring invalid Retry-After header " + value);
+                return -1L;
+            }
+            return Math.max(0L, date.getTime() - now);
+        }
+    }
+
+    public long getMaxWindow()
+    {
+        return maxWindow;
+    }
+
+    /**
+     * @param maxWindow     Longest throttle window in milliseconds which is kept, however long the provider asks for
+     */
+    public void setMaxWindow(long maxWindow)
+    {
+        this.maxWindow = maxWindow;
+    }
+
+}
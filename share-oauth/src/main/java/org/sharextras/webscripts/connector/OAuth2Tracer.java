@@ -0,0 +1,270 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records spans for the stages of a proxied request - loading tokens from the repository, requesting tokens from the
+ * provider and calling the provider's API - so that the time taken by each can be seen.
+ *
+ * Spans are identified as in the W3C Trace Context specification. A request which arrives with a valid
+ * <code>traceparent</code> header continues that trace and follows its sampling decision, and otherwise a new trace
+ * is started and sampled at the configured rate. The current span is held per thread, and its
+ * <code>traceparent</code> is sent on with requests to the repository and to the provider whether or not it is
+ * sampled, so that they can join the same trace. Sampled spans are passed to the exporter when they end.
+ *
+ * A recorder may also be set, which sees every span while it is recording, whether or not the span is sampled, e.g.
+ * to pass them on to a profiler. When it is not recording the only cost is a call to
+ * {@link OAuth2SpanRecorder#isRecording()} for each span.
+ */
+public class OAuth2Tracer
+{
+    public static final String HEADER_TRACEPARENT = "traceparent";
+
+    private static final int TRACEPARENT_LENGTH = 55;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static Log logger = LogFactory.getLog(OAuth2Tracer.class);
+
+    private static final ThreadLocal<OAuth2Span> currentSpan = new ThreadLocal<OAuth2Span>();
+
+    private double sampleRate = 0.0;
+
+    private OAuth2SpanExporter exporter = new OAuth2LogSpanExporter();
+
+    private volatile OAuth2SpanRecorder recorder;
+
+    /**
+     * Start a span as a child of the current span, or as the root of a new trace if there is none
+     *
+     * @param name  Name of the stage
+     * @return The span, which is now the current span
+     */
+    public OAuth2Span startSpan(String name)
+    {
+        return startSpan(name, null);
+    }
+
+    /**
+     * Start a span as a child of the current span. If there is none then the span continues the trace given by
+     * the <code>traceparent</code> header, if it is valid, or else starts a new trace.
+     *
+     * @param name          Name of the stage
+     * @param traceparent   Value of the incoming <code>traceparent</code> header, or null
+     * @return The span, which is now the current span
+     */
+    public OAuth2Span startSpan(String name, String traceparent)
+    {
+        OAuth2Span parent = currentSpan.get();
+        String traceId, parentSpanId;
+        boolean sampled;
+        if (parent != null)
+        {
+            traceId = parent.getTraceId();
+            parentSpanId = parent.getSpanId();
+            sampled = parent.isSampled();
+        }
+        else if (isValidTraceparent(traceparent))
+        {
+            traceId = traceparent.substring(3, 35);
+            parentSpanId = traceparent.substring(36, 52);
+            sampled = (Character.digit(traceparent.charAt(54), 16) & 1) == 1;
+        }
+        else
+        {
+            traceId = newId(2);
+            parentSpanId = null;
+            sampled = sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate;
+        }
+        OAuth2Span span = new OAuth2Span(this, parent, name, traceId, newId(1), parentSpanId, sampled);
+        OAuth2SpanRecorder recorder = this.recorder;
+        if (recorder != null && recorder.isRecording())
+        {
+            span.setRecording(recorder.start(span));
+        }
+        currentSpan.set(span);
+        return span;
+    }
+
+    /**
+     * Record that a request was turned away, or handled in a reduced way, because a limit on shared resources
+     * was reached
+     *
+     * @param endpointId    The endpoint ID, or null if not known
+     * @param reason        Name of the limit which was reached
+     */
+    public void recordRejection(String endpointId, String reason)
+    {
+        startSpan("oauth2.rejected").setAttribute("endpoint", endpointId).setAttribute("reason", reason).end();
+    }
+
+    /**
+     * Called when a span ends
+     */
+    void end(OAuth2Span span)
+    {
+        if (currentSpan.get() == span)
+        {
+            if (span.getParent() != null)
+            {
+                currentSpan.set(span.getParent());
+            }
+            else
+            {
+                currentSpan.remove();
+            }
+        }
+        OAuth2SpanRecorder recorder = this.recorder;
+        if (span.getRecording() != null && recorder != null)
+        {
+            try
+            {
+                recorder.end(span, span.getRecording());
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Unable to record span " + span.getName(), e);
+            }
+        }
+        if (span.isSampled() && exporter != null)
+        {
+            try
+            {
+                exporter.export(span);
+            }
+            catch (RuntimeException e)
+            {
+                logger.warn("Unable to export span " + span.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * @return The current span for this thread, or null if there is none
+     */
+    public static OAuth2Span getCurrentSpan()
+    {
+        return currentSpan.get();
+    }
+
+    /**
+     * Get the headers which pass the current trace on to another system
+     *
+     * @return The headers, or null if there is no current span
+     */
+    public static Map<String, String> getTraceHeaders()
+    {
+        OAuth2Span span = currentSpan.get();
+        return span != null ? Collections.singletonMap(HEADER_TRACEPARENT, span.getTraceparent()) : null;
+    }
+
+    /**
+     * Whether a <code>traceparent</code> header value can be continued. Later versions may add fields after the
+     * flags, which are ignored.
+     */
+    private static boolean isValidTraceparent(String traceparent)
+    {
+        if (traceparent == null || traceparent.length() < TRACEPARENT_LENGTH ||
+                (traceparent.length() > TRACEPARENT_LENGTH && traceparent.charAt(TRACEPARENT_LENGTH) != '-') ||
+                traceparent.startsWith("ff") || traceparent.charAt(2) != '-' || traceparent.charAt(35) != '-' ||
+                traceparent.charAt(52) != '-')
+        {
+            return false;
+        }
+        return isHex(traceparent, 0, 2) && isHex(traceparent, 3, 35) && isHex(traceparent, 36, 52) &&
+                isHex(traceparent, 53, 55) && !isZero(traceparent, 3, 35) && !isZero(traceparent, 36, 52);
+    }
+
+    private static boolean isHex(String value, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            char c = value.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isZero(String value, int start, int end)
+    {
+        for (int i = start; i < end; i++)
+        {
+            if (value.charAt(i) != '0')
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Generate a random, non-zero ID of the given number of 64-bit words, as lower case hex
+     */
+    private static String newId(int words)
+    {
+        char[] id = new char[words * 16];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int word = 0; word < words; word++)
+        {
+            long value = random.nextLong();
+            while (value == 0L)
+            {
+                value = random.nextLong();
+            }
+            for (int i = 15; i >= 0; i--)
+            {
+                id[word * 16 + i] = HEX_DIGITS[(int) (value & 0xf)];
+                value >>>= 4;
+            }
+        }
+        return new String(id);
+    }
+
+    public double getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /**
+     * @param sampleRate    Fraction of new traces which are sampled, from 0 to 1. Traces continued from an incoming
+     *                      <code>traceparent</code> header follow its sampling decision instead.
+     */
+    public void setSampleRate(double sampleRate)
+    {
+        this.sampleRate = sampleRate;
+    }
+
+    public OAuth2SpanRecorder getRecorder()
+    {
+        return recorder;
+    }
+
+    /**
+     * @param recorder  Sees every span while it is recording, or null for none
+     */
+    public void setRecorder(OAuth2SpanRecorder recorder)
+    {
+        this.recorder = recorder;
+    }
+
+    public OAuth2SpanExporter getExporter()
+    {
+        return exporter;
+    }
+
+    /**
+     * @param exporter  Receives sampled spans once they have ended
+     */
+    public void setExporter(OAuth2SpanExporter exporter)
+    {
+        this.exporter = exporter;
+    }
+
+}
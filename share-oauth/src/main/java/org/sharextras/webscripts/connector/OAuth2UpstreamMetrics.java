@@ -0,0 +1,366 @@
+package org.sharextras.webscripts.connector;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.extensions.webscripts.connector.Response;
+
+/**
+ * Records the latency of calls made to providers by the connectors, so that percentiles can be reported for each
+ * endpoint rather than only averages, and logs proxied requests which are slow.
+ *
+ * Each call to a provider's API is recorded in a {@link OAuth2LatencyHistogram} for its endpoint and the class of
+ * its status code, e.g. <code>2xx</code>, or <code>error</code> if no response was received. Recording takes no
+ * locks, and the histograms can be read and reset at any time by the latency web script.
+ *
+ * A proxied request is timed from when the connector receives it until the response is complete, and the time is
+ * broken down into time spent calling the provider's API, time spent loading, refreshing and saving tokens, and the
+ * rest. Requests taking longer than the slow call threshold are logged at WARN level, at most once per log interval,
+ * with the number of slow requests not logged in between. Only the path of the URI is logged, with segments which
+ * look like IDs replaced by <code>{id}</code>, so that query strings holding credentials are never written.
+ */
+public class OAuth2UpstreamMetrics
+{
+    public static final String STATUS_CLASS_ERROR = "error";
+
+    private static final String[] STATUS_CLASSES = { STATUS_CLASS_ERROR, "1xx", "2xx", "3xx", "4xx", "5xx" };
+    private static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    private static final String URI_ID = "{id}";
+    private static final int MIN_ID_LENGTH = 16;
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private static Log logger = LogFactory.getLog(OAuth2UpstreamMetrics.class);
+
+    private static final ThreadLocal<Call> currentCall = new ThreadLocal<Call>();
+
+    private final ConcurrentMap<String, AtomicReferenceArray<OAuth2LatencyHistogram>> histograms =
+            new ConcurrentHashMap<String, AtomicReferenceArray<OAuth2LatencyHistogram>>();
+
+    private volatile long since = System.currentTimeMillis();
+
+    private final AtomicLong nextSlowCallLog = new AtomicLong();
+    private final AtomicLong unloggedSlowCalls = new AtomicLong();
+
+    private long slowCallThreshold = 2000L;
+
+    private long slowCallLogInterval = 10000L;
+
+    /**
+     * Start timing a request made through a connector, which becomes the current request for the thread until
+     * {@link Call#end(int, long)} is called, which must always be done in a <code>finally</code> block
+     *
+     * @param endpointId    The endpoint ID
+     * @param method        The HTTP method
+     * @param uri           The URI relative to the endpoint
+     * @return The request timing
+     */
+    public Call start(String endpointId, String method, String uri)
+    {
+        Call call = new Call(this, currentCall.get(), endpointId, method, uri);
+        currentCall.set(call);
+        return call;
+    }
+
+    /**
+     * Record a call made to a provider's API, adding its time to the current request if there is one
+     *
+     * @param endpointId    The endpoint ID
+     * @param status        The status code of the response, or 0 if none was received
+     * @param nanos         Time taken by the call, in nanoseconds
+     */
+    public void recordUpstream(String endpointId, int status, long nanos)
+    {
+        getHistogram(endpointId, status).record(nanos / 1000L);
+        Call call = currentCall.get();
+        if (call != null)
+        {
+            call.upstreamNanos += nanos;
+            call.upstreamCalls++;
+        }
+    }
+
+    /**
+     * Add time spent loading, refreshing or saving tokens to the current request, if there is one
+     *
+     * @param nanos         Time taken, in nanoseconds
+     */
+    public static void addTokenTime(long nanos)
+    {
+        Call call = currentCall.get();
+        if (call != null)
+        {
+            call.tokenNanos += nanos;
+        }
+    }
+
+    /**
+     * Get the histograms recorded since they were last reset
+     *
+     * @return Map of endpoint ID to a map of status class to histogram, both sorted by name
+     */
+    public Map<String, Map<String, OAuth2LatencyHistogram>> getHistograms()
+    {
+        Map<String, Map<String, OAuth2LatencyHistogram>> result = new TreeMap<String, Map<String, OAuth2LatencyHistogram>>();
+        for (Map.Entry<String, AtomicReferenceArray<OAuth2LatencyHistogram>> endpoint : histograms.entrySet())
+        {
+            Map<String, OAuth2LatencyHistogram> byStatus = new TreeMap<String, OAuth2LatencyHistogram>();
+            for (int i = 0; i < STATUS_CLASSES.length; i++)
+            {
+                OAuth2LatencyHistogram histogram = endpoint.getValue().get(i);
+                if (histogram != null)
+                {
+                    byStatus.put(STATUS_CLASSES[i], histogram);
+                }
+            }
+            result.put(endpoint.getKey(), byStatus);
+        }
+        return result;
+    }
+
+    /**
+     * Discard all recorded latencies. Calls which are being recorded at the same time may be lost.
+     */
+    public void reset()
+    {
+        histograms.clear();
+        since = System.currentTimeMillis();
+    }
+
+    /**
+     * @return Time the histograms were created or last reset, in milliseconds since the epoch
+     */
+    public long getSince()
+    {
+        return since;
+    }
+
+    private OAuth2LatencyHistogram getHistogram(String endpointId, int status)
+    {
+        String key = endpointId != null ? endpointId : "";
+        AtomicReferenceArray<OAuth2LatencyHistogram> byStatus = histograms.get(key);
+        if (byStatus == null)
+        {
+            byStatus = new AtomicReferenceArray<OAuth2LatencyHistogram>(STATUS_CLASSES.length);
+            AtomicReferenceArray<OAuth2LatencyHistogram> existing = histograms.putIfAbsent(key, byStatus);
+            if (existing != null)
+            {
+                byStatus = existing;
+            }
+        }
+        int statusClass = status >= 100 && status < 600 ? status / 100 : 0;
+        OAuth2LatencyHistogram histogram = byStatus.get(statusClass);
+        if (histogram == null)
+        {
+            byStatus.compareAndSet(statusClass, null, new OAuth2LatencyHistogram());
+            histogram = byStatus.get(statusClass);
+        }
+        return histogram;
+    }
+
+    /**
+     * Log a slow request, unless one has already been logged within the log interval
+     */
+    private void logSlowCall(Call call, int status, long bytes, long totalNanos)
+    {
+        long now = System.currentTimeMillis(), next = nextSlowCallLog.get();
+        if (now < next || !nextSlowCallLog.compareAndSet(next, now + slowCallLogInterval))
+        {
+            unloggedSlowCalls.incrementAndGet();
+            return;
+        }
+        long unlogged = unloggedSlowCalls.getAndSet(0L);
+        long otherNanos = Math.max(0L, totalNanos - call.upstreamNanos - call.tokenNanos);
+        logger.warn("Slow call to endpoint " + call.endpointId + ": " + call.method + " " + getUriTemplate(call.uri) +
+                " returned " + (status > 0 ? String.valueOf(status) : STATUS_CLASS_ERROR) + ", " +
+                (bytes >= 0 ? bytes + " bytes" : "unknown size") + " in " + totalNanos / NANOS_PER_MILLI + "ms (provider " +
+                call.upstreamNanos / NANOS_PER_MILLI + "ms in " + call.upstreamCalls + " call(s), tokens " +
+                call.tokenNanos / NANOS_PER_MILLI + "ms, other " + otherNanos / NANOS_PER_MILLI + "ms)" +
+                (unlogged > 0 ? ", " + unlogged + " more slow call(s) not logged" : ""));
+    }
+
+    /**
+     * Get the path of a URI with any query string removed, and any segments which look like IDs replaced by
+     * <code>{id}</code>, so that calls to the same resource type are grouped together
+     */
+    public static String getUriTemplate(String uri)
+    {
+        int queryStart = uri.indexOf('?');
+        String path = queryStart > -1 ? uri.substring(0, queryStart) : uri;
+        StringBuilder template = new StringBuilder(path.length());
+        int segmentStart = 0;
+        while (segmentStart <= path.length())
+        {
+            int segmentEnd = path.indexOf('/', segmentStart);
+            if (segmentEnd < 0)
+            {
+                segmentEnd = path.length();
+            }
+            if (segmentStart > 0)
+            {
+                template.append('/');
+            }
+            String segment = path.substring(segmentStart, segmentEnd);
+            template.append(isId(segment) ? URI_ID : segment);
+            segmentStart = segmentEnd + 1;
+        }
+        return template.toString();
+    }
+
+    /**
+     * Whether a path segment looks like an ID - a number, or a long string containing digits such as a UUID
+     */
+    private static boolean isId(String segment)
+    {
+        boolean digits = false, letters = false;
+        for (int i = 0; i < segment.length(); i++)
+        {
+            if (Character.isDigit(segment.charAt(i)))
+            {
+                digits = true;
+            }
+            else
+            {
+                letters = true;
+            }
+        }
+        return digits && (!letters || segment.length() >= MIN_ID_LENGTH);
+    }
+
+    /**
+     * Get the size of a response body from its <code>Content-Length</code> header
+     *
+     * @return The size in bytes, or -1 if it is not known
+     */
+    public static long getContentLength(Response resp)
+    {
+        for (Map.Entry<String, String> header : resp.getStatus().getHeaders().entrySet())
+        {
+            if (HEADER_CONTENT_LENGTH.equalsIgnoreCase(header.getKey()) && header.getValue() != null)
+            {
+                try
+                {
+                    return Long.parseLong(header.getValue().trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    return -1L;
+                }
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Get the endpoint ID from a request proxied to it, i.e. the path segment before the URI
+     *
+     * @param uri       URI path relative to the endpoint, as passed to the connector
+     * @param request   The proxied request
+     * @return The endpoint ID, or null if the request was not made through the proxy
+     */
+    public static String getProxiedEndpointId(String uri, HttpServletRequest request)
+    {
+        String pathInfo = request != null ? request.getPathInfo() : null;
+        int queryStart = uri.indexOf('?');
+        int uriLength = queryStart > -1 ? queryStart : uri.length();
+        if (pathInfo == null || pathInfo.length() < uriLength || !pathInfo.regionMatches(pathInfo.length() - uriLength, uri, 0, uriLength))
+        {
+            return null;
+        }
+        String basePath = pathInfo.substring(0, pathInfo.length() - uriLength);
+        return basePath.substring(basePath.lastIndexOf('/') + 1);
+    }
+
+    public long getSlowCallThreshold()
+    {
+        return slowCallThreshold;
+    }
+
+    /**
+     * @param slowCallThreshold     Time in milliseconds above which proxied requests are logged, or 0 not to log them
+     */
+    public void setSlowCallThreshold(long slowCallThreshold)
+    {
+        this.slowCallThreshold = slowCallThreshold;
+    }
+
+    public long getSlowCallLogInterval()
+    {
+        return slowCallLogInterval;
+    }
+
+    /**
+     * @param slowCallLogInterval   Minimum time in milliseconds between slow requests being logged
+     */
+    public void setSlowCallLogInterval(long slowCallLogInterval)
+    {
+        this.slowCallLogInterval = slowCallLogInterval;
+    }
+
+    /**
+     * Timing of a request made through a connector, which may involve several calls to the provider
+     */
+    public static final class Call
+    {
+        private final OAuth2UpstreamMetrics metrics;
+        private final Call previous;
+        private final String endpointId;
+        private final String method;
+        private final String uri;
+        private final long startNanos = System.nanoTime();
+
+        private long upstreamNanos;
+        private int upstreamCalls;
+        private long tokenNanos;
+        private boolean ended;
+
+        private Call(OAuth2UpstreamMetrics metrics, Call previous, String endpointId, String method, String uri)
+        {
+            this.metrics = metrics;
+            this.previous = previous;
+            this.endpointId = endpointId;
+            this.method = method;
+            this.uri = uri;
+        }
+
+        /**
+         * End the request, logging it if it was slow
+         *
+         * @param status    The status code returned, or 0 if there was no response
+         * @param bytes     The size of the response body, or -1 if it is not known
+         */
+        public void end(int status, long bytes)
+        {
+            if (ended)
+            {
+                return;
+            }
+            ended = true;
+            if (currentCall.get() == this)
+            {
+                if (previous != null)
+                {
+                    currentCall.set(previous);
+                }
+                else
+                {
+                    currentCall.remove();
+                }
+            }
+            long totalNanos = System.nanoTime() - startNanos;
+            if (metrics.slowCallThreshold > 0 && totalNanos >= metrics.slowCallThreshold * NANOS_PER_MILLI &&
+                    logger.isWarnEnabled())
+            {
+                metrics.logSlowCall(this, status, bytes, totalNanos);
+            }
+        }
+    }
+
+}
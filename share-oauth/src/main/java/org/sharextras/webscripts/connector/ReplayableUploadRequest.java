@@ -0,0 +1,189 @@
+package org.sharextras.webscripts.connector;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+
+/**
+ * Proxied request whose body is streamed to the provider as it is read from the client, rather than being read in
+ * full first.
+ *
+ * <p>The body is only read from the client as fast as the provider accepts it, so uploads of any size are sent in
+ * constant memory. Bodies sent by the client without a length are passed on with chunked encoding, since the
+ * client's own <code>Transfer-Encoding</code> header is not forwarded. The first bytes read are kept, up to a limit,
+ * so that the request can be sent again if the provider rejects the access token. A request which has read more
+ * than that cannot be sent again.</p>
+ */
+class ReplayableUploadRequest extends HttpServletRequestWrapper
+{
+    private static final String HEADER_TRANSFER_ENCODING = "Transfer-Encoding";
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    private final int replayLimit;
+
+    // Bytes read from the client so far, or null if more than the limit have been read
+    private byte[] buffer;
+    private int count;
+
+    // Position within the body of the current attempt
+    private long position;
+
+    private final ServletInputStream inputStream = new ServletInputStream()
+    {
+        @Override
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            return readBody(b, off, len);
+        }
+    };
+
+    private ReplayableUploadRequest(HttpServletRequest request, int replayLimit)
+    {
+        super(request);
+        this.replayLimit = replayLimit;
+        this.buffer = new byte[Math.max(Math.min(replayLimit, INITIAL_BUFFER_SIZE), 0)];
+    }
+
+    /**
+     * Wrap a request so that its body is streamed, if it has one
+     *
+     * @param request       The client's request
+     * @param replayLimit   Maximum number of bytes to keep so that the request can be sent again
+     * @return The wrapped request, or the same request if it has no body
+     */
+    static HttpServletRequest wrap(HttpServletRequest request, int replayLimit)
+    {
+        if (request == null || request instanceof ReplayableUploadRequest ||
+                (request.getContentLength() <= 0 && request.getHeader(HEADER_TRANSFER_ENCODING) == null))
+        {
+            return request;
+        }
+        return new ReplayableUploadRequest(request, replayLimit);
+    }
+
+    /**
+     * Prepare to send a request again, if its body can be sent again
+     *
+     * @param request   The request, as returned by {@link #wrap}
+     * @return true if the request can be sent again, either because it has no body or because the part of its body
+     * which has been read has been kept
+     */
+    static boolean rewind(HttpServletRequest request)
+    {
+        if (!(request instanceof ReplayableUploadRequest))
+        {
+            return true;
+        }
+        ReplayableUploadRequest upload = (ReplayableUploadRequest) request;
+        if (upload.buffer == null)
+        {
+            return false;
+        }
+        upload.position = 0L;
+        return true;
+    }
+
+    private int readBody(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        // Replay the bytes kept from an earlier attempt before carrying on reading from the client
+        if (buffer != null && position < count)
+        {
+            int n = (int) Math.min(len, count - position);
+            System.arraycopy(buffer, (int) position, b, off, n);
+            position += n;
+            return n;
+        }
+
+        int n = super.getInputStream().read(b, off, len);
+        if (n > 0)
+        {
+            keep(b, off, n);
+            position += n;
+        }
+        return n;
+    }
+
+    private void keep(byte[] b, int off, int len)
+    {
+        if (buffer == null)
+        {
+            return;
+        }
+        if (count + len > replayLimit)
+        {
+            // Too large to send again, so stop using memory for it
+            buffer = null;
+            return;
+        }
+        if (count + len > buffer.length)
+        {
+            byte[] larger = new byte[Math.min(Math.max(buffer.length * 2, count + len), replayLimit)];
+            System.arraycopy(buffer, 0, larger, 0, count);
+            buffer = larger;
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public ServletInputStream getInputStream()
+    {
+        return inputStream;
+    }
+
+    @Override
+    public BufferedReader getReader() throws IOException
+    {
+        String encoding = getCharacterEncoding();
+        return new BufferedReader(new InputStreamReader(inputStream, encoding != null ? encoding : "ISO-8859-1"));
+    }
+
+    @Override
+    public String getHeader(String name)
+    {
+        return HEADER_TRANSFER_ENCODING.equalsIgnoreCase(name) ? null : super.getHeader(name);
+    }
+
+    @Override
+    public Enumeration getHeaders(String name)
+    {
+        return HEADER_TRANSFER_ENCODING.equalsIgnoreCase(name) ? Collections.enumeration(Collections.emptyList()) :
+                super.getHeaders(name);
+    }
+
+    @Override
+    public Enumeration getHeaderNames()
+    {
+        List<String> names = new ArrayList<String>();
+        for (Enumeration e = super.getHeaderNames(); e.hasMoreElements(); )
+        {
+            String name = (String) e.nextElement();
+            if (!HEADER_TRANSFER_ENCODING.equalsIgnoreCase(name))
+            {
+                names.add(name);
+            }
+        }
+        return Collections.enumeration(names);
+    }
+
+}
@@ -0,0 +1,239 @@
+package org.sharextras.webscripts.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+import org.json.JSONTokener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.webscripts.connector.Connector;
+import org.springframework.extensions.webscripts.connector.Credentials;
+import org.springframework.extensions.webscripts.connector.Response;
+import org.springframework.extensions.webscripts.connector.ResponseStatus;
+
+/**
+ * Checks that the vault stays consistent when the requests in a session use it concurrently.
+ *
+ * Tokens are stored in generations, so that the access token, refresh token and expiry time written by a single
+ * call to {@link OAuth2CredentialVault#storeTokens(String, String, String, Long)} can be recognised wherever they
+ * are read back or saved. Any mix of generations shows that a reader saw a partly updated set of tokens.
+ */
+public class OAuth2CredentialVaultTest
+{
+    private static final String[] ENDPOINTS = { "google-drive", "dropbox", "box" };
+    private static final int THREADS = 8;
+    private static final int ITERATIONS = 5000;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final List<String> errors = new CopyOnWriteArrayList<String>();
+    private final Map<String, JSONObject> saved = new ConcurrentHashMap<String, JSONObject>();
+
+    private OAuth2CredentialVault vault;
+    private Connector alfrescoConnector;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        vault = new OAuth2CredentialVault("test", null);
+        alfrescoConnector = (Connector) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] { Connector.class }, new TokenStoreHandler());
+        executor = Executors.newFixedThreadPool(THREADS);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception
+    {
+        Map<String, Credentials> initial = new ConcurrentHashMap<String, Credentials>();
+        for (String endpointId : ENDPOINTS)
+        {
+            initial.put(endpointId, storeNextGeneration(endpointId));
+        }
+
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> results = new ArrayList<Future<Void>>(THREADS);
+        for (int i = 0; i < THREADS; i++)
+        {
+            final Random random = new Random(i);
+            results.add(executor.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws Exception
+                {
+                    start.await();
+                    for (int j = 0; j < ITERATIONS; j++)
+                    {
+                        String endpointId = ENDPOINTS[random.nextInt(ENDPOINTS.length)];
+                        switch (random.nextInt(4))
+                        {
+                            case 0:
+                                checkTokens(endpointId, OAuth2CredentialVault.getTokens(vault.retrieve(endpointId)));
+                                break;
+                            case 1:
+                                checkTokens(endpointId, OAuth2CredentialVault.getTokens(vault.newCredentials(endpointId)));
+                                break;
+                            case 2:
+                                storeNextGeneration(endpointId);
+                                break;
+                            default:
+                                if (!vault.save(alfrescoConnector))
+                                {
+                                    errors.add("Save failed");
+                                }
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> result : results)
+        {
+            result.get(60, TimeUnit.SECONDS);
+        }
+
+        if (!errors.isEmpty())
+        {
+            fail(errors.size() + " inconsistencies found, first was: " + errors.get(0));
+        }
+
+        // Credentials are never replaced once created, and a final save writes exactly what the vault holds
+        assertEquals(ENDPOINTS.length, vault.getStoredIds().length);
+        assertTrue(vault.save(alfrescoConnector));
+        for (String endpointId : ENDPOINTS)
+        {
+            Credentials credentials = vault.retrieve(endpointId);
+            assertSame(initial.get(endpointId), credentials);
+            assertSame(credentials, vault.newCredentials(endpointId));
+            OAuth2CredentialVault.TokenSnapshot tokens = OAuth2CredentialVault.getTokens(credentials);
+            checkTokens(endpointId, tokens);
+            JSONObject body = saved.get(endpointId);
+            assertNotNull(body);
+            assertEquals(tokens.getAccessToken(), body.getString("accessToken"));
+            assertEquals(tokens.getRefreshToken(), body.getString("refreshToken"));
+            assertEquals(tokens.getExpiresAt().longValue(), body.getLong("expiresAt"));
+        }
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void testCachedResponsesRemoved()
+    {
+        OAuth2ResponseCache cache = new OAuth2ResponseCache();
+        vault.setResponseCache(cache);
+        vault.setUserId("alice");
+        for (String endpointId : ENDPOINTS)
+        {
+            storeNextGeneration(endpointId);
+            cacheResponse(cache, "alice", endpointId);
+            cacheResponse(cache, "bob", endpointId);
+        }
+
+        // Removing the tokens for an endpoint removes only that user's responses from the endpoint
+        vault.remove(ENDPOINTS[0]);
+        assertNull(vault.getCachedCredentials(ENDPOINTS[0]));
+        assertNull(cache.get("alice", ENDPOINTS[0], "/files", null));
+        assertNotNull(cache.get("alice", ENDPOINTS[1], "/files", null));
+        assertNotNull(cache.get("bob", ENDPOINTS[0], "/files", null));
+
+        // Ending the session removes all of that user's responses
+        vault.valueUnbound(null);
+        for (String endpointId : ENDPOINTS)
+        {
+            assertNull(cache.get("alice", endpointId, "/files", null));
+            assertNotNull(cache.get("bob", endpointId, "/files", null));
+        }
+    }
+
+    private static void cacheResponse(OAuth2ResponseCache cache, String userId, String endpointId)
+    {
+        assertTrue(cache.put(userId, endpointId, "/files", null, new OAuth2ResponseCache.CachedResponse(
+                ResponseStatus.STATUS_OK, Collections.<String, String>emptyMap(), "UTF-8", new byte[16], 60L)));
+    }
+
+    private Credentials storeNextGeneration(String endpointId)
+    {
+        long g = generation.incrementAndGet();
+        return vault.storeTokens(endpointId, endpointId + "-access-" + g, endpointId + "-refresh-" + g, Long.valueOf(g));
+    }
+
+    private void checkTokens(String endpointId, OAuth2CredentialVault.TokenSnapshot tokens)
+    {
+        checkTokens(endpointId, tokens.getAccessToken(), tokens.getRefreshToken(), tokens.getExpiresAt());
+    }
+
+    private void checkTokens(String endpointId, String accessToken, String refreshToken, Long expiresAt)
+    {
+        if (expiresAt == null ||
+                !(endpointId + "-access-" + expiresAt).equals(accessToken) ||
+                !(endpointId + "-refresh-" + expiresAt).equals(refreshToken))
+        {
+            errors.add(endpointId + " had tokens " + accessToken + ", " + refreshToken + ", " + expiresAt);
+        }
+    }
+
+    /**
+     * Stands in for the repository token store, checking the tokens in each save and keeping the last one
+     */
+    private class TokenStoreHandler implements InvocationHandler
+    {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+        {
+            ResponseStatus status = new ResponseStatus();
+            if ("call".equals(method.getName()) && args.length == 3 && args[2] instanceof InputStream)
+            {
+                String uri = (String) args[0];
+                JSONObject body = new JSONObject(new JSONTokener(new InputStreamReader((InputStream) args[2], "UTF-8")));
+                String endpointId = body.getString("name");
+                if (!vault.getTokenApi(endpointId).equals(uri))
+                {
+                    errors.add("Tokens for " + endpointId + " sent to " + uri);
+                }
+                checkTokens(endpointId, body.getString("accessToken"), body.getString("refreshToken"),
+                        Long.valueOf(body.getLong("expiresAt")));
+                saved.put(endpointId, body);
+                status.setCode(ResponseStatus.STATUS_OK);
+                return new Response("", status);
+            }
+            if ("call".equals(method.getName()))
+            {
+                status.setCode(ResponseStatus.STATUS_NOT_FOUND);
+                return new Response("", status);
+            }
+            throw new UnsupportedOperationException(method.getName());
+        }
+    }
+}
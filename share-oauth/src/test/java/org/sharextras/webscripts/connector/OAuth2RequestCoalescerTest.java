@@ -0,0 +1,151 @@
+package org.sharextras.webscripts.connector;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.extensions.surf.util.FakeHttpServletResponse;
+import org.springframework.extensions.webscripts.connector.Response;
+import org.springframework.extensions.webscripts.connector.ResponseStatus;
+
+/**
+ * Checks which requests made to a provider at the same time share a single response
+ */
+public class OAuth2RequestCoalescerTest
+{
+    private static final String URL = "https://api.example.com/files/1";
+    private static final String TOKEN = "access-token";
+    private static final String ETAG = "\"v1\"";
+
+    private OAuth2RequestCoalescer coalescer;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp()
+    {
+        coalescer = new OAuth2RequestCoalescer();
+        executor = Executors.newFixedThreadPool(2);
+    }
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testConditionalRequestNotShared() throws Exception
+    {
+        Map<String, String> conditionalHeaders = new HashMap<String, String>();
+        conditionalHeaders.put("If-None-Match", ETAG);
+        final String conditionalKey = HttpOAuth2Connector.getCoalescingKey("GET", URL,
+                newRequest(conditionalHeaders), "gzip", TOKEN);
+        final String unconditionalKey = HttpOAuth2Connector.getCoalescingKey("GET", URL,
+                newRequest(new HashMap<String, String>()), "gzip", TOKEN);
+        assertFalse(conditionalKey.equals(unconditionalKey));
+
+        // The conditional request is sent first, and the provider only answers it once the unconditional request
+        // has been sent too, or has given up waiting for it because it is waiting for the conditional response
+        final CountDownLatch conditionalSent = new CountDownLatch(1);
+        final CountDownLatch unconditionalSent = new CountDownLatch(1);
+        Future<Response> conditional = executor.submit(new Callable<Response>()
+        {
+            @Override
+            public Response call() throws Exception
+            {
+                return coalescer.execute(conditionalKey, new FakeHttpServletResponse(null),
+                        new OAuth2RequestCoalescer.Request()
+                {
+                    public Response call(FakeHttpServletResponse res)
+                    {
+                        conditionalSent.countDown();
+                        try
+                        {
+                            unconditionalSent.await(2, TimeUnit.SECONDS);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        return newResponse(res, 304, "");
+                    }
+                });
+            }
+        });
+        assertEquals(true, conditionalSent.await(10, TimeUnit.SECONDS));
+        Future<Response> unconditional = executor.submit(new Callable<Response>()
+        {
+            @Override
+            public Response call() throws Exception
+            {
+                return coalescer.execute(unconditionalKey, new FakeHttpServletResponse(null),
+                        new OAuth2RequestCoalescer.Request()
+                {
+                    public Response call(FakeHttpServletResponse res)
+                    {
+                        unconditionalSent.countDown();
+                        return newResponse(res, 200, "content");
+                    }
+                });
+            }
+        });
+
+        assertEquals(304, conditional.get(10, TimeUnit.SECONDS).getStatus().getCode());
+        Response response = unconditional.get(10, TimeUnit.SECONDS);
+        assertEquals(200, response.getStatus().getCode());
+        assertEquals("content", response.getResponse());
+    }
+
+    @Test
+    public void testIdenticalRequestsShareKey()
+    {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("If-Modified-Since", "Sat, 17 Oct 2026 10:00:00 GMT");
+        assertEquals(HttpOAuth2Connector.getCoalescingKey("GET", URL, newRequest(headers), "gzip", TOKEN),
+                HttpOAuth2Connector.getCoalescingKey("GET", URL, newRequest(headers), "gzip", TOKEN));
+    }
+
+    private static Response newResponse(FakeHttpServletResponse res, int code, String body)
+    {
+        ResponseStatus status = new ResponseStatus();
+        status.setCode(code);
+        res.setStatus(code);
+        return new Response(body, status);
+    }
+
+    /**
+     * Get a client request which has only the given headers
+     */
+    private static HttpServletRequest newRequest(final Map<String, String> headers)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(OAuth2RequestCoalescerTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler()
+        {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+            {
+                if ("getHeader".equals(method.getName()))
+                {
+                    return headers.get(args[0]);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+}